@@ -3,9 +3,15 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
 import com.perforce.p4java.core.IChangelist.Type;
 import com.perforce.p4java.core.IChangelistSummary;
@@ -20,11 +26,23 @@ import com.perforce.p4java.option.server.GetChangelistsOptions;
  * specification includes a revision range, it limits its report to submitted
  * changelists that affect those particular revisions.</p>
  *
+ * In watermark mode, enabled by the "watermarkFile" or "watermarkCounter"
+ * attribute, only submitted changelists above the highest changelist seen by
+ * the previous run are listed. The watermark is kept in a local state file or
+ * a Perforce counter. The changelists between the watermark and the current
+ * head are paged through with at most "pageSize" changelists per command, and
+ * the watermark is advanced to the highest changelist listed. The file specs
+ * must not have revision specifiers in this mode, and "maxMostRecent" is
+ * ignored. </p>
+ *
  * @see PerforceTask
  * @see ServerTask
  */
 public class ChangesTask extends ClientTask {
 
+    /** Default maximum number of changelists listed by a single command. */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
     /**
      * If positive, restrict the list to the maxMostRecent most recent
      * changelists. Corresponds to -mmax.
@@ -67,6 +85,18 @@ public class ChangesTask extends ClientTask {
      */
     protected String property = "p4.changelists";
 
+    /** The local state file of the watermark. */
+    protected java.io.File watermarkFile = null;
+
+    /** The Perforce counter of the watermark. */
+    protected String watermarkCounter = null;
+
+    /** If true, the watermark is advanced after the changelists are listed. */
+    protected boolean updateWatermark = true;
+
+    /** Maximum number of changelists listed by a single command. */
+    protected int pageSize = DEFAULT_PAGE_SIZE;
+
     /**
      * Collection of changelist summaries returned from the Perforce command.
      */
@@ -153,6 +183,46 @@ public class ChangesTask extends ClientTask {
         this.property = property;
     }
 
+    /**
+     * Sets the watermark file.
+     *
+     * @param watermarkFile
+     *            the new watermark file
+     */
+    public void setWatermarkFile(java.io.File watermarkFile) {
+        this.watermarkFile = watermarkFile;
+    }
+
+    /**
+     * Sets the watermark counter.
+     *
+     * @param watermarkCounter
+     *            the new watermark counter
+     */
+    public void setWatermarkCounter(String watermarkCounter) {
+        this.watermarkCounter = watermarkCounter;
+    }
+
+    /**
+     * Sets the update watermark.
+     *
+     * @param updateWatermark
+     *            the new update watermark
+     */
+    public void setUpdateWatermark(boolean updateWatermark) {
+        this.updateWatermark = updateWatermark;
+    }
+
+    /**
+     * Sets the page size.
+     *
+     * @param pageSize
+     *            the new page size
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
     /**
      * Gets the ret changelist summaries.
      *
@@ -176,10 +246,14 @@ public class ChangesTask extends ClientTask {
      */
     protected void execP4Command() throws BuildException {
         try {
-            fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
-            retChangelistSummaries = getP4Server().getChangelists(fileSpecs,
-                    ((GetChangelistsOptions) commandOptions));
-            logChangelistSummaries(retChangelistSummaries);
+            if (watermarkFile != null || watermarkCounter != null) {
+                retChangelistSummaries = getChangelistsAboveWatermark();
+            } else {
+                fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
+                retChangelistSummaries = getP4Server().getChangelists(
+                        fileSpecs, ((GetChangelistsOptions) commandOptions));
+                logChangelistSummaries(retChangelistSummaries);
+            }
             // Set the changelist numbers to a specified property.
             StringBuilder sb = new StringBuilder();
             for (IChangelistSummary changelistSummary : retChangelistSummaries) {
@@ -190,8 +264,171 @@ public class ChangesTask extends ClientTask {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
         } catch (P4JavaError e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
         } catch (Throwable t) {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
+
+    /**
+     * List the submitted changelists above the watermark, newest first, and
+     * advance the watermark. The range between the watermark and the head
+     * changelist at the start is paged through from the top, each page ending
+     * below the lowest changelist of the previous one.
+     *
+     * @return the changelist summaries
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected List<IChangelistSummary> getChangelistsAboveWatermark()
+            throws P4JavaException, IOException {
+        String[] paths = getFiles();
+        if (paths.length == 0) {
+            paths = new String[] { "//..." };
+        }
+        for (String path : paths) {
+            if (path.indexOf('@') >= 0 || path.indexOf('#') >= 0) {
+                throw new BuildException(
+                        "Revision specifiers are not allowed in watermark mode: " //$NON-NLS-1$
+                                + path);
+            }
+        }
+        int watermark = readWatermark();
+        int head = getHeadChange();
+        GetChangelistsOptions options = (GetChangelistsOptions) commandOptions;
+        int maxMostRecent = options.getMaxMostRecent();
+        Type changeType = options.getType();
+        options.setMaxMostRecent((pageSize > 0) ? pageSize : DEFAULT_PAGE_SIZE);
+        options.setType(Type.SUBMITTED);
+        List<IChangelistSummary> summaries = new ArrayList<IChangelistSummary>();
+        try {
+            int top = head;
+            while (top > watermark) {
+                List<String> specs = new ArrayList<String>();
+                for (String path : paths) {
+                    specs.add(path + "@" + (watermark + 1) + ",@" + top);
+                }
+                fileSpecs = FileSpecBuilder.makeFileSpecList(specs);
+                List<IChangelistSummary> page = getP4Server().getChangelists(
+                        fileSpecs, options);
+                logChangelistSummaries(page);
+                if (page == null || page.isEmpty()) {
+                    break;
+                }
+                summaries.addAll(page);
+                int lowest = top;
+                for (IChangelistSummary summary : page) {
+                    lowest = Math.min(lowest, summary.getId());
+                }
+                if (page.size() < options.getMaxMostRecent()) {
+                    break;
+                }
+                top = lowest - 1;
+            }
+        } finally {
+            options.setMaxMostRecent(maxMostRecent);
+            options.setType(changeType);
+        }
+        int highest = watermark;
+        for (IChangelistSummary summary : summaries) {
+            highest = Math.max(highest, summary.getId());
+        }
+        log("Changelists above watermark " + watermark + ": " //$NON-NLS-1$
+                + summaries.size() + ", new watermark " + highest, //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+        if (updateWatermark && highest > watermark) {
+            writeWatermark(highest);
+        }
+        return summaries;
+    }
+
+    /**
+     * Gets the number of the last submitted changelist.
+     *
+     * @return the head changelist, or 0 if none
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private int getHeadChange() throws P4JavaException {
+        GetChangelistsOptions options = new GetChangelistsOptions();
+        options.setMaxMostRecent(1);
+        options.setType(Type.SUBMITTED);
+        List<IChangelistSummary> head = getP4Server().getChangelists(null,
+                options);
+        return (head == null || head.isEmpty()) ? 0 : head.get(0).getId();
+    }
+
+    /**
+     * Read the watermark from the state file or the counter.
+     *
+     * @return the watermark, or 0 if not set yet
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private int readWatermark() throws P4JavaException, IOException {
+        String value = null;
+        if (watermarkCounter != null) {
+            value = getP4Server().getCounter(watermarkCounter);
+        } else if (watermarkFile.isFile()) {
+            BufferedReader reader = new BufferedReader(new FileReader(
+                    watermarkFile));
+            try {
+                value = reader.readLine();
+            } finally {
+                reader.close();
+            }
+        }
+        if (value == null || value.trim().length() == 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BuildException("Invalid watermark: " + value, e, //$NON-NLS-1$
+                    getLocation());
+        }
+    }
+
+    /**
+     * Write the watermark to the state file or the counter. The state file is
+     * written to a temporary file first and renamed.
+     *
+     * @param watermark
+     *            the watermark
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void writeWatermark(int watermark) throws P4JavaException,
+            IOException {
+        if (watermarkCounter != null) {
+            getP4Server().setCounter(watermarkCounter,
+                    String.valueOf(watermark), false);
+            return;
+        }
+        java.io.File file = watermarkFile.getAbsoluteFile();
+        java.io.File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+        }
+        java.io.File tmp = new java.io.File(parent, file.getName() + ".tmp");
+        FileWriter writer = new FileWriter(tmp);
+        try {
+            writer.write(watermark + LINE_SEPARATOR);
+        } finally {
+            writer.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file); //$NON-NLS-1$
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file); //$NON-NLS-1$
+        }
+    }
 }
@@ -3,11 +3,18 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.util.Date;
+import java.util.List;
+
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
 import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.client.IClientSummary;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.server.GetClientsOptions;
+import com.perforce.p4java.server.IOptionsServer;
 
 /**
  * Base class for Perforce client specific Ant tasks. It initializes an instance
@@ -21,6 +28,20 @@ public abstract class ClientTask extends ServerTask {
     /** Perforce client. */
     protected IClient p4Client;
 
+    /**
+     * If true, client specs are reused from a build-scoped client cache instead
+     * of being retrieved by each task. None of the tasks modifies a client
+     * spec; a build that changes one by other means (such as switching the
+     * client's stream) must validate the cache.
+     */
+    protected boolean useClientCache = false;
+
+    /**
+     * If true, a cached client spec is validated against the update time
+     * reported by the server before it is used.
+     */
+    protected boolean validateClientCache = false;
+
     /**
      * Default constructor.
      */
@@ -47,14 +68,43 @@ public abstract class ClientTask extends ServerTask {
         this.p4Client = p4Client;
     }
 
+    /**
+     * Sets the use client cache.
+     *
+     * @param useClientCache
+     *            the new use client cache
+     */
+    public void setUseClientCache(boolean useClientCache) {
+        this.useClientCache = useClientCache;
+    }
+
+    /**
+     * Sets the validate client cache.
+     *
+     * @param validateClientCache
+     *            the new validate client cache
+     */
+    public void setValidateClientCache(boolean validateClientCache) {
+        this.validateClientCache = validateClientCache;
+    }
+
     /**
      * Initialize an instance of the Perforce client from the server with a
-     * specified client name. Set the current client on the server.
+     * specified client name. If a client with the same name has been set by an
+     * enclosing task (i.e. a session), use it instead of retrieving it. If the
+     * client cache is enabled, use a cached client spec. Set the current
+     * client on the server.
      */
-    private void initP4Client() {
+    protected void initP4Client() {
         try {
+            if (p4Client != null
+                    && (isEmpty(client) || client.equals(p4Client.getName()))) {
+                // The client is owned by an enclosing task.
+                p4Server.setCurrentClient(p4Client);
+                return;
+            }
             // Get an instance of the Perforce client.
-            p4Client = p4Server.getClient(client);
+            p4Client = getClient(p4Server);
             if (p4Client == null) {
                 String errorMsg = p4Messages.getMessage(
                         "p4.client.unknown", new Object[] { client }); //$NON-NLS-1$
@@ -71,10 +121,129 @@ public abstract class ClientTask extends ServerTask {
         }
     }
 
+    /**
+     * Set the client workspace as the current client of an additional server
+     * connection acquired for parallel jobs.
+     *
+     * @see ServerTask#prepareP4Server(IOptionsServer)
+     */
+    @Override
+    protected void prepareP4Server(IOptionsServer server)
+            throws P4JavaException {
+        IClient current = server.getCurrentClient();
+        if (current != null && client.equals(current.getName())) {
+            return;
+        }
+        IClient serverClient = getClient(server);
+        if (serverClient == null) {
+            String errorMsg = p4Messages.getMessage(
+                    "p4.client.unknown", new Object[] { client }); //$NON-NLS-1$
+            throw new BuildException(errorMsg);
+        }
+        server.setCurrentClient(serverClient);
+    }
+
+    /**
+     * Get the client from the client cache, if enabled, or from the server.
+     * Cache a client retrieved from the server.
+     *
+     * @param server
+     *            the server
+     * @return the client, or null if it doesn't exist
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected IClient getClient(IOptionsServer server) throws P4JavaException {
+        if (!isClientCached()) {
+            return server.getClient(client);
+        }
+        PerforceClientCache cache = PerforceClientCache
+                .getInstance(getProject());
+        String key = getClientCacheKey();
+        IClient cachedClient = cache.getClient(key, server);
+        if (cachedClient != null && isClientCacheValid(server, cache, key)) {
+            log("Using cached client spec " + client, Project.MSG_DEBUG);
+            return cachedClient;
+        }
+        IClient serverClient = server.getClient(client);
+        if (serverClient != null) {
+            cache.putClient(key, serverClient);
+        } else {
+            cache.invalidate(key);
+        }
+        return serverClient;
+    }
+
+    /**
+     * Checks if a cached client spec is still valid. If validation is enabled,
+     * compare its update time with the one reported by "p4 clients", which is
+     * much cheaper than retrieving the full client spec.
+     *
+     * @param server
+     *            the server
+     * @param cache
+     *            the client cache
+     * @param key
+     *            the cache key
+     * @return true, if the cached client spec is valid
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected boolean isClientCacheValid(IOptionsServer server,
+            PerforceClientCache cache, String key) throws P4JavaException {
+        if (!isClientCacheValidated()) {
+            return true;
+        }
+        List<IClientSummary> summaries = server.getClients(new GetClientsOptions()
+                .setNameFilter(client).setMaxResults(1));
+        Date cachedUpdated = cache.getUpdated(key);
+        if (summaries == null || summaries.isEmpty() || cachedUpdated == null
+                || summaries.get(0).getUpdated() == null) {
+            return false;
+        }
+        // Compare at the resolution of the client spec form.
+        return summaries.get(0).getUpdated().getTime() / 1000 == cachedUpdated
+                .getTime() / 1000;
+    }
+
+    /**
+     * Gets the client cache key of this task.
+     *
+     * @return the client cache key
+     */
+    protected String getClientCacheKey() {
+        return PerforceClientCache.makeKey(protocol + "://" + port, client);
+    }
+
+    /**
+     * Checks if client specs are cached for the whole build. The client cache
+     * is enabled by the "useClientCache" attribute or the "p4.clientcache"
+     * project property.
+     *
+     * @return true, if client cached
+     */
+    protected boolean isClientCached() {
+        return useClientCache
+                || Project.toBoolean(getProject().getProperty("p4.clientcache"));
+    }
+
+    /**
+     * Checks if cached client specs are validated. Validation is enabled by
+     * the "validateClientCache" attribute or the "p4.clientcache.validate"
+     * project property.
+     *
+     * @return true, if client cache validated
+     */
+    protected boolean isClientCacheValidated() {
+        return validateClientCache
+                || Project.toBoolean(getProject().getProperty(
+                        "p4.clientcache.validate"));
+    }
+
     /**
      * Cleanup the Perforce client instance.
      */
-    private void cleanupP4Client() {
+    protected void cleanupP4Client() {
         // Set the client to null.
         p4Client = null;
     }
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.util.Map;
+
+import org.apache.tools.ant.Task;
+
+/**
+ * Record sink that only counts the records.
+ *
+ * @see RecordSink
+ */
+public class CountRecordSink implements RecordSink {
+
+    /** Number of records. */
+    private long count = 0;
+
+    /**
+     * Default constructor.
+     */
+    public CountRecordSink() {
+    }
+
+    /**
+     * @see RecordSink#open(org.apache.tools.ant.Task)
+     */
+    public void open(Task task) {
+        count = 0;
+    }
+
+    /**
+     * @see RecordSink#handleRecord(java.util.Map)
+     */
+    public boolean handleRecord(Map<String, Object> record) {
+        count++;
+        return true;
+    }
+
+    /**
+     * @see RecordSink#close()
+     */
+    public void close() {
+    }
+
+    /**
+     * Gets the number of records.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -3,16 +3,32 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
 import com.perforce.p4java.core.IFileDiff;
+import com.perforce.p4java.core.file.FileSpecBuilder;
 import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetFileContentsOptions;
 import com.perforce.p4java.option.server.GetFileDiffsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
 
 /**
  * Run diff (on the server) of two files in the depot. Both files may optionally
@@ -21,6 +37,22 @@ import com.perforce.p4java.option.server.GetFileDiffsOptions;
  * Note if using clients or labels as file arguments they must be preceded with
  * a file path e.g. //...@mylabel //...@yourlabel.</p>
  *
+ * Many pairs of files can be compared at once with nested "pair" elements.
+ * The pairs are compared concurrently over "threads" connections, pooled if
+ * pooling is enabled. If a "report" file is set, the diff output of the pairs
+ * is streamed into it in the order of the pairs, instead of logging each file
+ * diff: the output of each batch of "batchSize" pairs is spooled into
+ * temporary files and appended to the report. </p>
+ *
+ * If "local" is true, the pairs are compared in the JVM instead of on the
+ * server. The revisions are listed with "p4 fstat -Ol", fetched once into the
+ * digest-keyed "revisionCache" (shared with the sync task) and diffed with
+ * {@link LocalDiff}, in the output format selected by the diff options
+ * (default, unified, context, summary, RCS or GNU unified, with the
+ * whitespace and line end options). Identical digests are reported without
+ * fetching. Pairs with a branch view are still compared on the server.
+ * </p>
+ *
  * @see PerforceTask
  * @see ServerTask
  */
@@ -94,6 +126,32 @@ public class Diff2Task extends ClientTask {
     /** If true, ignore line endings; corresponds to -dl. */
     protected boolean ignoreLineEndings = false;
 
+    /** Number of threads and connections comparing pairs concurrently. */
+    protected int threads = 4;
+
+    /** The report file the diff output of the pairs is written to. */
+    protected java.io.File report = null;
+
+    /** If true, the pairs are compared in the JVM. */
+    protected boolean local = false;
+
+    /** The directory of the local revision cache. */
+    protected java.io.File revisionCache = null;
+
+    /** The maximum size of the local revision cache in megabytes. */
+    protected long revisionCacheSize = SyncTask.DEFAULT_REVISION_CACHE_SIZE;
+
+    /** The digester of each thread. */
+    private ThreadLocal<FileDigester> digesters = new ThreadLocal<FileDigester>() {
+        protected FileDigester initialValue() {
+            return new FileDigester();
+        }
+    };
+
+    /** Collection of nested "pair" elements. */
+    protected List<Pair> pairs = Collections
+            .synchronizedList(new ArrayList<Pair>());
+
     /**
      * Left depot file and revision specifier used as input for this Perforce
      * command.
@@ -111,6 +169,92 @@ public class Diff2Task extends ClientTask {
      */
     protected List<IFileDiff> retFileDiffs;
 
+    /** Default number of pairs spooled per batch. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** Fields requested from fstat for local diffs. */
+    private static final String LOCAL_DIFF_FIELDS = "depotFile,headRev,headType,headAction,digest";
+
+    /** Encoding of the diff output, which keeps any byte unchanged. */
+    private static final String REPORT_ENCODING = "ISO-8859-1";
+
+    /**
+     * This inner class is used for handling nested "pair" elements.
+     */
+    public class Pair {
+        /**
+         * Constructor to create a new instance of "pair".
+         */
+        public Pair() {
+        }
+
+        /** The "file1" attribute inside the nested "pair" element. */
+        private String file1;
+
+        /** The "file2" attribute inside the nested "pair" element. */
+        private String file2;
+
+        /** The "branch" attribute inside the nested "pair" element. */
+        private String branch;
+
+        /**
+         * Sets the file1.
+         *
+         * @param file1
+         *            the new file1
+         */
+        public void setFile1(String file1) {
+            this.file1 = file1;
+        }
+
+        /**
+         * Gets the file1.
+         *
+         * @return the file1
+         */
+        public String getFile1() {
+            return file1;
+        }
+
+        /**
+         * Sets the file2.
+         *
+         * @param file2
+         *            the new file2
+         */
+        public void setFile2(String file2) {
+            this.file2 = file2;
+        }
+
+        /**
+         * Gets the file2.
+         *
+         * @return the file2
+         */
+        public String getFile2() {
+            return file2;
+        }
+
+        /**
+         * Sets the branch.
+         *
+         * @param branch
+         *            the new branch
+         */
+        public void setBranch(String branch) {
+            this.branch = branch;
+        }
+
+        /**
+         * Gets the branch.
+         *
+         * @return the branch
+         */
+        public String getBranch() {
+            return branch;
+        }
+    }
+
     /**
      * Default constructor.
      */
@@ -151,6 +295,69 @@ public class Diff2Task extends ClientTask {
         this.branch = branch;
     }
 
+    /**
+     * Sets the threads.
+     *
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the report.
+     *
+     * @param report
+     *            the new report
+     */
+    public void setReport(java.io.File report) {
+        this.report = report;
+    }
+
+    /**
+     * Sets the local.
+     *
+     * @param local
+     *            the new local
+     */
+    public void setLocal(boolean local) {
+        this.local = local;
+    }
+
+    /**
+     * Sets the revision cache.
+     *
+     * @param revisionCache
+     *            the new revision cache
+     */
+    public void setRevisionCache(java.io.File revisionCache) {
+        this.revisionCache = revisionCache;
+    }
+
+    /**
+     * Sets the revision cache size.
+     *
+     * @param revisionCacheSize
+     *            the new revision cache size
+     */
+    public void setRevisionCacheSize(long revisionCacheSize) {
+        this.revisionCacheSize = revisionCacheSize;
+    }
+
+    /**
+     * This method is called by an Ant factory method to instantiates a
+     * collection of "pair" nested elements. It saves the reference to the
+     * collection and returns it to Ant Core.
+     *
+     * @return the pair
+     */
+    public Pair createPair() {
+        Pair pair = new Pair();
+        pairs.add(pair);
+        return pair;
+    }
+
     /**
      * Sets the quiet.
      *
@@ -299,6 +506,14 @@ public class Diff2Task extends ClientTask {
      */
     protected void execP4Command() throws BuildException {
         try {
+            if (local) {
+                diffPairsLocally();
+                return;
+            }
+            if (!pairs.isEmpty() || report != null) {
+                diffPairs();
+                return;
+            }
             file1FileSpec = new FileSpec(file1);
             file2FileSpec = new FileSpec(file2);
             retFileDiffs = getP4Server().getFileDiffs(file1FileSpec,
@@ -309,8 +524,567 @@ public class Diff2Task extends ClientTask {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
         } catch (P4JavaError e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
         } catch (Throwable t) {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
+
+    /**
+     * Compare the "file1" and "file2" attributes and the nested pairs
+     * concurrently. Stream the diff output into the report file, or log the
+     * file diffs if there is no report.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected void diffPairs() throws IOException {
+        final List<Pair> all = getAllPairs();
+        final GetFileDiffsOptions options = (GetFileDiffsOptions) commandOptions;
+        if (report == null) {
+            List<ServerJob<List<IFileDiff>>> jobs = new ArrayList<ServerJob<List<IFileDiff>>>();
+            for (final Pair pair : all) {
+                jobs.add(new ServerJob<List<IFileDiff>>() {
+                    public List<IFileDiff> run(IOptionsServer server)
+                            throws Exception {
+                        return server.getFileDiffs(toFileSpec(pair.file1),
+                                toFileSpec(pair.file2), pair.branch, options);
+                    }
+                });
+            }
+            retFileDiffs = new ArrayList<IFileDiff>();
+            for (List<IFileDiff> fileDiffs : execParallel(jobs, threads)) {
+                if (fileDiffs != null) {
+                    retFileDiffs.addAll(fileDiffs);
+                }
+            }
+            logFileDiffs(retFileDiffs);
+            return;
+        }
+        java.io.File parent = report.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+        }
+        long bytes = 0;
+        FileOutputStream out = new FileOutputStream(report);
+        try {
+            FileChannel reportChannel = out.getChannel();
+            int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+            for (int start = 0; start < all.size(); start += size) {
+                List<Pair> batch = all.subList(start,
+                        Math.min(start + size, all.size()));
+                final java.io.File[] spooled = new java.io.File[batch.size()];
+                try {
+                    List<ServerJob<Long>> jobs = new ArrayList<ServerJob<Long>>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        final int index = i;
+                        final Pair pair = batch.get(i);
+                        jobs.add(new ServerJob<Long>() {
+                            public Long run(IOptionsServer server)
+                                    throws Exception {
+                                spooled[index] = java.io.File.createTempFile(
+                                        "p4diff2", ".tmp");
+                                return spool(server, pair, options,
+                                        spooled[index]);
+                            }
+                        });
+                    }
+                    execParallel(jobs, threads);
+                    for (java.io.File tmp : spooled) {
+                        bytes += append(tmp, reportChannel);
+                    }
+                } finally {
+                    for (java.io.File tmp : spooled) {
+                        if (tmp != null) {
+                            tmp.delete();
+                        }
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        log("Wrote the diffs of " + all.size() + " pair(s) (" + bytes //$NON-NLS-1$
+                + " bytes) to " + report, Project.MSG_INFO); //$NON-NLS-1$
+    }
+
+    /**
+     * Gets the pair of the "file1" and "file2" attributes, if set, followed by
+     * the nested pairs.
+     *
+     * @return the pairs
+     */
+    private List<Pair> getAllPairs() {
+        List<Pair> all = new ArrayList<Pair>();
+        if (file1 != null || file2 != null) {
+            Pair pair = new Pair();
+            pair.setFile1(file1);
+            pair.setFile2(file2);
+            pair.setBranch(branch);
+            all.add(pair);
+        }
+        all.addAll(pairs);
+        return all;
+    }
+
+    /**
+     * Convert a file argument to a file spec.
+     *
+     * @param file
+     *            the file argument
+     * @return the file spec, or null
+     */
+    private static IFileSpec toFileSpec(String file) {
+        return (file != null) ? new FileSpec(file) : null;
+    }
+
+    /**
+     * Stream the diff output of a pair into a file.
+     *
+     * @param server
+     *            the server
+     * @param pair
+     *            the pair
+     * @param options
+     *            the options
+     * @param target
+     *            the file
+     * @return the number of bytes written
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static long spool(IOptionsServer server, Pair pair,
+            GetFileDiffsOptions options, java.io.File target)
+            throws P4JavaException, IOException {
+        InputStream in = server.getFileDiffsStream(toFileSpec(pair.file1),
+                toFileSpec(pair.file2), pair.branch, options);
+        if (in == null) {
+            return 0;
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                return out.getChannel().transferFrom(Channels.newChannel(in),
+                        0, Long.MAX_VALUE);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Append a file to the report.
+     *
+     * @param source
+     *            the file
+     * @param reportChannel
+     *            the report channel
+     * @return the number of bytes appended
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static long append(java.io.File source, FileChannel reportChannel)
+            throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            long position = 0;
+            while (position < length) {
+                position += channel.transferTo(position, length - position,
+                        reportChannel);
+            }
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A depot revision compared locally.
+     */
+    private static class LocalRevision {
+
+        /** The depot path. */
+        private String depotPath;
+
+        /** The revision. */
+        private String revision;
+
+        /** The file type. */
+        private String fileType;
+
+        /** The digest; null if unknown. */
+        private String digest;
+
+        /**
+         * Gets the file spec of the revision.
+         *
+         * @return the file spec
+         */
+        private String getSpec() {
+            return depotPath + "#" + revision;
+        }
+    }
+
+    /**
+     * Compare the pairs in the JVM, concurrently, and write the output to the
+     * report or the log in the order of the pairs.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected void diffPairsLocally() throws IOException {
+        List<Pair> all = getAllPairs();
+        final GetFileDiffsOptions options = (GetFileDiffsOptions) commandOptions;
+        java.io.File cacheDir = (revisionCache != null) ? revisionCache
+                : new java.io.File(System.getProperty("java.io.tmpdir"),
+                        "p4revisions");
+        final RevisionCache cache = RevisionCache.getInstance(getProject(),
+                cacheDir, revisionCacheSize * 1024 * 1024);
+        java.io.Writer writer = null;
+        if (report != null) {
+            java.io.File parent = report.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+            }
+            writer = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                    new FileOutputStream(report), REPORT_ENCODING));
+        }
+        try {
+            int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+            for (int start = 0; start < all.size(); start += size) {
+                List<ServerJob<String>> jobs = new ArrayList<ServerJob<String>>();
+                for (final Pair pair : all.subList(start,
+                        Math.min(start + size, all.size()))) {
+                    jobs.add(new ServerJob<String>() {
+                        public String run(IOptionsServer server)
+                                throws Exception {
+                            if (pair.branch != null) {
+                                return diffOnServer(server, pair, options);
+                            }
+                            return diffLocally(server, pair, options, cache);
+                        }
+                    });
+                }
+                for (String output : execParallel(jobs, threads)) {
+                    if (writer != null) {
+                        writer.write(output);
+                    } else if (output.length() > 0) {
+                        log(output, Project.MSG_INFO);
+                    }
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        log("Revision cache " + cache.getDirectory() + ": " + cache.getHits() //$NON-NLS-1$
+                + " hit(s), " + cache.getMisses() + " miss(es)", //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+    }
+
+    /**
+     * Compare a pair on the server and return the output.
+     *
+     * @param server
+     *            the server
+     * @param pair
+     *            the pair
+     * @param options
+     *            the options
+     * @return the output
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static String diffOnServer(IOptionsServer server, Pair pair,
+            GetFileDiffsOptions options) throws P4JavaException, IOException {
+        InputStream in = server.getFileDiffsStream(toFileSpec(pair.file1),
+                toFileSpec(pair.file2), pair.branch, options);
+        if (in == null) {
+            return "";
+        }
+        try {
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString(REPORT_ENCODING);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compare the files of a pair in the JVM and return the output. The files
+     * of the two sides are matched by their path below the first wild card.
+     *
+     * @param server
+     *            the server
+     * @param pair
+     *            the pair
+     * @param options
+     *            the options
+     * @param cache
+     *            the revision cache
+     * @return the output
+     * @throws Exception
+     *             the exception
+     */
+    private String diffLocally(IOptionsServer server, Pair pair,
+            GetFileDiffsOptions options, RevisionCache cache) throws Exception {
+        Map<String, LocalRevision> left = listRevisions(server, pair.file1);
+        Map<String, LocalRevision> right = listRevisions(server, pair.file2);
+        if (left.size() == 1 && right.size() == 1 && !isWild(pair.file1)
+                && !isWild(pair.file2)) {
+            // Two single files are compared whatever their names.
+            right = Collections.singletonMap(left.keySet().iterator().next(),
+                    right.values().iterator().next());
+        }
+        TreeSet<String> keys = new TreeSet<String>(left.keySet());
+        keys.addAll(right.keySet());
+        StringBuilder out = new StringBuilder();
+        List<java.io.File> temps = new ArrayList<java.io.File>();
+        try {
+            for (String key : keys) {
+                diffRevisions(server, left.get(key), right.get(key), options,
+                        cache, temps, out);
+            }
+        } finally {
+            for (java.io.File tmp : temps) {
+                tmp.delete();
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Compare two revisions and append the output.
+     *
+     * @param server
+     *            the server
+     * @param left
+     *            the left revision, or null
+     * @param right
+     *            the right revision, or null
+     * @param options
+     *            the options
+     * @param cache
+     *            the revision cache
+     * @param temps
+     *            the temporary files, to be deleted
+     * @param out
+     *            the output
+     * @throws Exception
+     *             the exception
+     */
+    private void diffRevisions(IOptionsServer server, LocalRevision left,
+            LocalRevision right, GetFileDiffsOptions options,
+            RevisionCache cache, List<java.io.File> temps, StringBuilder out)
+            throws Exception {
+        String leftName = (left != null) ? left.getSpec() : "<none>";
+        String rightName = (right != null) ? right.getSpec() : "<none>";
+        if (left == null || right == null) {
+            if (!options.isGnuDiffs()) {
+                out.append("==== ").append(leftName).append(" - ")
+                        .append(rightName).append(" ====\n");
+            }
+            return;
+        }
+        boolean sameType = left.fileType.equals(right.fileType);
+        boolean textual = (FileTypes.isTextual(left.fileType) && FileTypes
+                .isTextual(right.fileType)) || options.isIncludeNonTextDiffs();
+        List<String> lines1 = null;
+        List<String> lines2 = null;
+        List<LocalDiff.Change> changes = null;
+        boolean identical;
+        if (left.digest != null && right.digest != null) {
+            identical = left.digest.equals(right.digest);
+        } else {
+            lines1 = LocalDiff.readLines(fetch(server, left, cache, temps));
+            lines2 = LocalDiff.readLines(fetch(server, right, cache, temps));
+            identical = lines1.equals(lines2);
+        }
+        if (!identical && textual) {
+            if (lines1 == null) {
+                lines1 = LocalDiff.readLines(fetch(server, left, cache, temps));
+                lines2 = LocalDiff.readLines(fetch(server, right, cache, temps));
+            }
+            changes = new LocalDiff(options.isIgnoreWhitespaceChanges(),
+                    options.isIgnoreWhitespace(), options.isIgnoreLineEndings())
+                    .diff(lines1, lines2);
+        }
+        if (options.isGnuDiffs()) {
+            if (changes != null && !changes.isEmpty()) {
+                out.append("--- ").append(leftName).append("\n");
+                out.append("+++ ").append(rightName).append("\n");
+                LocalDiff.formatUnified(lines1, lines2, changes,
+                        LocalDiff.DEFAULT_CONTEXT, out);
+            }
+            return;
+        }
+        if (options.isQuiet() && identical && sameType) {
+            return;
+        }
+        out.append("==== ").append(leftName).append(" (")
+                .append(left.fileType).append(") - ").append(rightName)
+                .append(" (").append(right.fileType).append(") ==== ")
+                .append(!identical ? "content" : !sameType ? "types"
+                        : "identical").append("\n");
+        if (changes == null || options.isQuiet()) {
+            return;
+        }
+        if (options.isSummaryDiff()) {
+            LocalDiff.formatSummary(changes, out);
+        } else if (options.isRcsDiffs()) {
+            LocalDiff.formatRcs(lines2, changes, out);
+        } else if (options.isUnifiedDiff() >= 0) {
+            LocalDiff.formatUnified(lines1, lines2, changes,
+                    (options.isUnifiedDiff() > 0) ? options.isUnifiedDiff()
+                            : LocalDiff.DEFAULT_CONTEXT, out);
+        } else if (options.getDiffContext() >= 0) {
+            LocalDiff.formatContext(lines1, lines2, changes,
+                    (options.getDiffContext() > 0) ? options.getDiffContext()
+                            : LocalDiff.DEFAULT_CONTEXT, out);
+        } else {
+            LocalDiff.formatNormal(lines1, lines2, changes, out);
+        }
+    }
+
+    /**
+     * List the revisions of a file argument with a streamed "p4 fstat -Ol",
+     * keyed by their path below the first wild card. Deleted revisions are
+     * skipped.
+     *
+     * @param server
+     *            the server
+     * @param file
+     *            the file argument
+     * @return the revisions
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private static Map<String, LocalRevision> listRevisions(
+            final IOptionsServer server, String file) throws P4JavaException {
+        final Map<String, LocalRevision> revisions = new TreeMap<String, LocalRevision>();
+        if (file == null) {
+            return revisions;
+        }
+        int end = file.length();
+        for (int i = 0; i < file.length(); i++) {
+            char c = file.charAt(i);
+            if (c == '@' || c == '#' || c == '*' || file.startsWith("...", i)) {
+                end = i;
+                break;
+            }
+        }
+        final String base = file.substring(0, end);
+        server.execStreamingMapCommand("fstat", new String[] { "-Ol", "-T",
+                LOCAL_DIFF_FIELDS, file }, null, new IStreamingCallback() {
+            public boolean startResults(int key) {
+                return true;
+            }
+
+            public boolean endResults(int key) {
+                return true;
+            }
+
+            public boolean handleResult(Map<String, Object> record, int key)
+                    throws P4JavaException {
+                checkError(server, record);
+                Object depotFile = record.get("depotFile");
+                if (depotFile == null
+                        || ExportTask.isDeleted(record.get("headAction"))) {
+                    return true;
+                }
+                LocalRevision revision = new LocalRevision();
+                revision.depotPath = depotFile.toString();
+                revision.revision = String.valueOf(record.get("headRev"));
+                revision.fileType = String.valueOf(record.get("headType"));
+                revision.digest = (String) record.get("digest");
+                String name = revision.depotPath;
+                revisions.put(name.startsWith(base) ? name.substring(base
+                        .length()) : name, revision);
+                return true;
+            }
+        }, 0);
+        return revisions;
+    }
+
+    /**
+     * Checks if a file argument has wild cards.
+     *
+     * @param file
+     *            the file argument
+     * @return true, if wild
+     */
+    private static boolean isWild(String file) {
+        return file != null
+                && (file.indexOf('*') >= 0 || file.indexOf("...") >= 0);
+    }
+
+    /**
+     * Gets a local file with the content of a revision: the cached revision,
+     * or a temporary file printed from the server. A printed revision whose
+     * content matches its digest is added to the cache.
+     *
+     * @param server
+     *            the server
+     * @param revision
+     *            the revision
+     * @param cache
+     *            the revision cache
+     * @param temps
+     *            the temporary files, to be deleted
+     * @return the file
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private java.io.File fetch(IOptionsServer server, LocalRevision revision,
+            RevisionCache cache, List<java.io.File> temps)
+            throws P4JavaException, IOException {
+        if (revision.digest != null) {
+            java.io.File cached = cache.lookup(revision.digest);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        java.io.File tmp = java.io.File.createTempFile("p4diff2", ".tmp");
+        temps.add(tmp);
+        InputStream in = server.getFileContents(
+                FileSpecBuilder.makeFileSpecList(revision.getSpec()),
+                new GetFileContentsOptions(false, true));
+        if (in == null) {
+            throw new P4JavaException("Cannot print " + revision.getSpec()); //$NON-NLS-1$
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.getChannel().transferFrom(Channels.newChannel(in), 0,
+                        Long.MAX_VALUE);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (revision.digest != null
+                && revision.digest.equalsIgnoreCase(digesters.get().digest(
+                        tmp, false))) {
+            cache.put(revision.digest, tmp);
+        }
+        return tmp;
+    }
 }
@@ -0,0 +1,595 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.zip.UnixStat;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.server.GetFileContentsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+/**
+ * Export depot files to a directory, a zip file or a tar file, without a
+ * client workspace. </p>
+ *
+ * The files matching the file specs (for example "//depot/proj/...@label")
+ * are listed with a streamed "p4 files"; deleted revisions are skipped. The
+ * content of each revision is streamed from "p4 print" to its target through
+ * NIO channels and a fixed, reusable buffer per thread, so no file is held in
+ * memory. The revisions are printed over "threads" concurrent connections.
+ * </p>
+ *
+ * The target name of a file is its depot path without the "stripPrefix" (by
+ * default, without the leading "//"). Executable file types are exported with
+ * the executable permission, and the modification time is the time of the
+ * change that submitted the revision. </p>
+ *
+ * An archive is written by a single writer in depot order. The revisions of
+ * each batch of "batchSize" files are printed concurrently into temporary
+ * files, which are then appended to the archive and deleted, so the temporary
+ * space used is bounded by the batch. The format is "dir", "zip", "tar" or
+ * "tgz"; if not set, it is derived from the extension of "destFile". </p>
+ *
+ * @see PerforceTask
+ * @see ServerTask
+ */
+public class ExportTask extends ServerTask {
+
+    /** Directory format. */
+    public static final String FORMAT_DIR = "dir";
+
+    /** Zip format. */
+    public static final String FORMAT_ZIP = "zip";
+
+    /** Tar format. */
+    public static final String FORMAT_TAR = "tar";
+
+    /** Gzip compressed tar format. */
+    public static final String FORMAT_TGZ = "tgz";
+
+    /** Default number of files printed into temporary files per batch. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** Size of the copy buffers. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Unix permissions of exported files. */
+    private static final int FILE_MODE = 0644;
+
+    /** Unix permissions of exported executable files. */
+    private static final int EXECUTABLE_MODE = 0755;
+
+    /** The target directory. */
+    protected java.io.File toDir = null;
+
+    /** The target archive file. */
+    protected java.io.File destFile = null;
+
+    /** The format: dir, zip, tar or tgz. */
+    protected String format = null;
+
+    /** The depot path prefix removed from the target names. */
+    protected String stripPrefix = null;
+
+    /** Number of threads and connections printing revisions. */
+    protected int threads = 4;
+
+    /** Number of exported files. */
+    protected long exportedFiles = 0;
+
+    /** Number of exported bytes. */
+    protected long exportedBytes = 0;
+
+    /** The copy buffer of each thread. */
+    private ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * A revision to export.
+     */
+    private static class ExportFile {
+
+        /** The depot path. */
+        private String depotPath;
+
+        /** The revision. */
+        private String revision;
+
+        /** The file type. */
+        private String fileType;
+
+        /** The time of the change in milliseconds. */
+        private long time;
+
+        /** The target name. */
+        private String name;
+    }
+
+    /**
+     * Sets the to dir.
+     *
+     * @param toDir
+     *            the new to dir
+     */
+    public void setToDir(java.io.File toDir) {
+        this.toDir = toDir;
+    }
+
+    /**
+     * Sets the dest file.
+     *
+     * @param destFile
+     *            the new dest file
+     */
+    public void setDestFile(java.io.File destFile) {
+        this.destFile = destFile;
+    }
+
+    /**
+     * Sets the format.
+     *
+     * @param format
+     *            the new format
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets the strip prefix.
+     *
+     * @param stripPrefix
+     *            the new strip prefix
+     */
+    public void setStripPrefix(String stripPrefix) {
+        this.stripPrefix = stripPrefix;
+    }
+
+    /**
+     * Sets the threads.
+     *
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * List the revisions of the file specs and export their content.
+     *
+     * @see PerforceTask#execP4Command()
+     */
+    protected void execP4Command() throws BuildException {
+        try {
+            exportedFiles = 0;
+            exportedBytes = 0;
+            String resolvedFormat = resolveFormat();
+            List<ExportFile> files = listFiles();
+            if (FORMAT_DIR.equals(resolvedFormat)) {
+                exportToDir(files);
+            } else {
+                exportToArchive(files, resolvedFormat);
+            }
+            logExportSummary(resolvedFormat);
+        } catch (P4JavaException e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (P4JavaError e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new BuildException(t.getLocalizedMessage(), t, getLocation());
+        }
+    }
+
+    /**
+     * Determine the format from the attributes.
+     *
+     * @return the format
+     */
+    private String resolveFormat() {
+        String resolved = format;
+        if (resolved == null) {
+            if (destFile == null) {
+                resolved = FORMAT_DIR;
+            } else {
+                String name = destFile.getName().toLowerCase();
+                if (name.endsWith(".zip") || name.endsWith(".jar")) {
+                    resolved = FORMAT_ZIP;
+                } else if (name.endsWith(".tgz") || name.endsWith(".tar.gz")) {
+                    resolved = FORMAT_TGZ;
+                } else {
+                    resolved = FORMAT_TAR;
+                }
+            }
+        }
+        resolved = resolved.toLowerCase();
+        if (FORMAT_DIR.equals(resolved)) {
+            if (toDir == null) {
+                throw new BuildException("The toDir attribute is required"); //$NON-NLS-1$
+            }
+        } else if (FORMAT_ZIP.equals(resolved) || FORMAT_TAR.equals(resolved)
+                || FORMAT_TGZ.equals(resolved)) {
+            if (destFile == null) {
+                throw new BuildException("The destFile attribute is required"); //$NON-NLS-1$
+            }
+        } else {
+            throw new BuildException("Unknown format: " + format); //$NON-NLS-1$
+        }
+        return resolved;
+    }
+
+    /**
+     * List the revisions to export with a streamed "p4 files".
+     *
+     * @return the revisions in depot order
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<ExportFile> listFiles() throws P4JavaException {
+        final IOptionsServer server = getP4Server();
+        final List<ExportFile> files = new ArrayList<ExportFile>();
+        server.execStreamingMapCommand("files", getFiles(), null,
+                new IStreamingCallback() {
+                    public boolean startResults(int key) {
+                        return true;
+                    }
+
+                    public boolean endResults(int key) {
+                        return true;
+                    }
+
+                    public boolean handleResult(Map<String, Object> record,
+                            int key) throws P4JavaException {
+                        checkError(server, record);
+                        Object depotFile = record.get("depotFile");
+                        Object action = record.get("action");
+                        if (depotFile == null || isDeleted(action)) {
+                            return true;
+                        }
+                        ExportFile file = new ExportFile();
+                        file.depotPath = depotFile.toString();
+                        file.revision = String.valueOf(record.get("rev"));
+                        file.fileType = (String) record.get("type");
+                        Object time = record.get("time");
+                        file.time = (time != null) ? Long.parseLong(time
+                                .toString()) * 1000 : 0;
+                        file.name = getTargetName(file.depotPath);
+                        files.add(file);
+                        return true;
+                    }
+                }, 0);
+        return files;
+    }
+
+    /**
+     * Checks if a head action leaves no content to export.
+     *
+     * @param action
+     *            the action
+     * @return true, if deleted
+     */
+    static boolean isDeleted(Object action) {
+        if (action == null) {
+            return false;
+        }
+        String value = action.toString();
+        return value.equals("delete") || value.equals("move/delete")
+                || value.equals("purge") || value.equals("archive");
+    }
+
+    /**
+     * Gets the target name of a depot file: the unescaped depot path without
+     * the strip prefix.
+     *
+     * @param depotPath
+     *            the depot path
+     * @return the target name
+     */
+    private String getTargetName(String depotPath) {
+        String name = depotPath;
+        if (stripPrefix != null && name.startsWith(stripPrefix)) {
+            name = name.substring(stripPrefix.length());
+        }
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return name.replace("%40", "@").replace("%23", "#")
+                .replace("%2A", "*").replace("%25", "%");
+    }
+
+    /**
+     * Export the revisions to the target directory, printing them
+     * concurrently.
+     *
+     * @param files
+     *            the revisions
+     */
+    private void exportToDir(List<ExportFile> files) {
+        List<ServerJob<Long>> jobs = new ArrayList<ServerJob<Long>>();
+        for (final ExportFile file : files) {
+            jobs.add(new ServerJob<Long>() {
+                public Long run(IOptionsServer server) throws Exception {
+                    java.io.File target = new java.io.File(toDir, file.name);
+                    long bytes = print(server, file, target);
+                    if (FileTypes.isExecutable(file.fileType)) {
+                        target.setExecutable(true, false);
+                    }
+                    if (file.time > 0) {
+                        target.setLastModified(file.time);
+                    }
+                    return bytes;
+                }
+            });
+        }
+        for (Long bytes : execParallel(jobs, threads)) {
+            exportedFiles++;
+            exportedBytes += bytes;
+        }
+    }
+
+    /**
+     * Export the revisions to an archive. Each batch of revisions is printed
+     * concurrently into temporary files, which are appended to the archive in
+     * depot order.
+     *
+     * @param files
+     *            the revisions
+     * @param archiveFormat
+     *            the archive format
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void exportToArchive(List<ExportFile> files, String archiveFormat)
+            throws IOException {
+        java.io.File parent = destFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+        }
+        ZipOutputStream zip = null;
+        TarOutputStream tar = null;
+        OutputStream out;
+        if (FORMAT_ZIP.equals(archiveFormat)) {
+            zip = new ZipOutputStream(destFile);
+            zip.setEncoding("UTF-8");
+            out = zip;
+        } else {
+            OutputStream fileOut = new BufferedOutputStream(
+                    new FileOutputStream(destFile), BUFFER_SIZE);
+            if (FORMAT_TGZ.equals(archiveFormat)) {
+                fileOut = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+            }
+            tar = new TarOutputStream(fileOut, "UTF-8");
+            tar.setLongFileMode(TarOutputStream.LONGFILE_POSIX);
+            out = tar;
+        }
+        try {
+            WritableByteChannel channel = Channels.newChannel(out);
+            int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+            for (int start = 0; start < files.size(); start += size) {
+                List<ExportFile> batch = files.subList(start,
+                        Math.min(start + size, files.size()));
+                java.io.File[] spooled = new java.io.File[batch.size()];
+                try {
+                    spool(batch, spooled);
+                    for (int i = 0; i < batch.size(); i++) {
+                        ExportFile file = batch.get(i);
+                        long length = spooled[i].length();
+                        int mode = FileTypes.isExecutable(file.fileType) ? EXECUTABLE_MODE
+                                : FILE_MODE;
+                        if (zip != null) {
+                            ZipEntry entry = new ZipEntry(file.name);
+                            entry.setUnixMode(UnixStat.FILE_FLAG | mode);
+                            if (file.time > 0) {
+                                entry.setTime(file.time);
+                            }
+                            zip.putNextEntry(entry);
+                        } else {
+                            TarEntry entry = new TarEntry(file.name);
+                            entry.setMode(UnixStat.FILE_FLAG | mode);
+                            entry.setSize(length);
+                            if (file.time > 0) {
+                                entry.setModTime(file.time);
+                            }
+                            tar.putNextEntry(entry);
+                        }
+                        append(spooled[i], channel);
+                        if (zip != null) {
+                            zip.closeEntry();
+                        } else {
+                            tar.closeEntry();
+                        }
+                        spooled[i].delete();
+                        spooled[i] = null;
+                        exportedFiles++;
+                        exportedBytes += length;
+                    }
+                } finally {
+                    for (java.io.File tmp : spooled) {
+                        if (tmp != null) {
+                            tmp.delete();
+                        }
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Print a batch of revisions concurrently into temporary files.
+     *
+     * @param batch
+     *            the revisions
+     * @param spooled
+     *            the temporary files, set as they are created
+     */
+    private void spool(List<ExportFile> batch, final java.io.File[] spooled) {
+        List<ServerJob<Long>> jobs = new ArrayList<ServerJob<Long>>();
+        for (int i = 0; i < batch.size(); i++) {
+            final int index = i;
+            final ExportFile file = batch.get(i);
+            jobs.add(new ServerJob<Long>() {
+                public Long run(IOptionsServer server) throws Exception {
+                    java.io.File tmp = java.io.File.createTempFile(
+                            "p4export", ".tmp");
+                    spooled[index] = tmp;
+                    return print(server, file, tmp);
+                }
+            });
+        }
+        execParallel(jobs, threads);
+    }
+
+    /**
+     * Print a revision to a file. The file is replaced.
+     *
+     * @param server
+     *            the server
+     * @param file
+     *            the revision
+     * @param target
+     *            the target file
+     * @return the number of bytes written
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private long print(IOptionsServer server, ExportFile file,
+            java.io.File target) throws P4JavaException, IOException {
+        InputStream in = server.getFileContents(FileSpecBuilder
+                .makeFileSpecList(file.depotPath + "#" + file.revision),
+                new GetFileContentsOptions(false, true));
+        if (in == null) {
+            throw new P4JavaException("Cannot print " + file.depotPath //$NON-NLS-1$
+                    + "#" + file.revision);
+        }
+        try {
+            java.io.File parent = target.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+            }
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Cannot replace " + target); //$NON-NLS-1$
+            }
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                return copy(Channels.newChannel(in), out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copy a channel to another through the buffer of the current thread.
+     *
+     * @param in
+     *            the input channel
+     * @param out
+     *            the output channel
+     * @return the number of bytes copied
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private long copy(ReadableByteChannel in, WritableByteChannel out)
+            throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        long total = 0;
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                total += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return total;
+    }
+
+    /**
+     * Append a file to an archive channel.
+     *
+     * @param source
+     *            the file
+     * @param out
+     *            the archive channel
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void append(java.io.File source, WritableByteChannel out)
+            throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            long position = 0;
+            while (position < length) {
+                position += channel.transferTo(position, length - position,
+                        out);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Log the export summary.
+     *
+     * @param resolvedFormat
+     *            the format
+     */
+    private void logExportSummary(String resolvedFormat) {
+        int messagePriority = Project.MSG_INFO;
+        if (!isLoggable(messagePriority)) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append("exportSummary {" + LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("format").append("=")
+                .append(resolvedFormat).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("target").append("=")
+                .append(FORMAT_DIR.equals(resolvedFormat) ? toDir : destFile)
+                .append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("files").append("=")
+                .append(exportedFiles).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("bytes").append("=")
+                .append(exportedBytes).append(LINE_SEPARATOR);
+        message.append("}" + LINE_SEPARATOR);
+        log(message.toString(), messagePriority);
+    }
+}
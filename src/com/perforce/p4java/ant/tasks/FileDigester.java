@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes MD5 digests of local files in the format reported by "p4 fstat
+ * -Ol" (upper case hex). </p>
+ *
+ * Large files are read through memory-mapped regions; small files are read
+ * into a reusable buffer, which is cheaper than mapping them. For text files
+ * written with CRLF line endings, the line endings can be normalized to LF, so
+ * the digest matches the one of the depot revision. </p>
+ *
+ * A digester reuses its buffers and is not thread-safe; use one digester per
+ * thread.
+ */
+public class FileDigester {
+
+    /** Files of at least this size are memory-mapped. */
+    public static final long MAP_THRESHOLD = 256 * 1024;
+
+    /** Size of the regions of a memory-mapped file. */
+    private static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+
+    /** Size of the read buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Hex digits. */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /** The MD5 message digest. */
+    private MessageDigest md5;
+
+    /** The read buffer for small files. */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Scratch array for normalizing line endings. */
+    private byte[] scratch = new byte[BUFFER_SIZE];
+
+    /** If true, the last byte of the previous block was a CR. */
+    private boolean pendingCR;
+
+    /**
+     * Instantiates a new file digester.
+     */
+    public FileDigester() {
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compute the MD5 digest of a file.
+     *
+     * @param file
+     *            the file
+     * @param normalizeLineEnds
+     *            if true, CRLF line endings are digested as LF
+     * @return the digest as upper case hex string
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public String digest(File file, boolean normalizeLineEnds)
+            throws IOException {
+        md5.reset();
+        pendingCR = false;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_REGION_SIZE) {
+                    update(channel.map(FileChannel.MapMode.READ_ONLY,
+                            position, Math.min(MAP_REGION_SIZE, size
+                                    - position)), normalizeLineEnds);
+                }
+            } else {
+                buffer.clear();
+                while (channel.read(buffer) > 0) {
+                    if (!buffer.hasRemaining()) {
+                        buffer.flip();
+                        update(buffer, normalizeLineEnds);
+                        buffer.clear();
+                    }
+                }
+                buffer.flip();
+                update(buffer, normalizeLineEnds);
+            }
+        } finally {
+            in.close();
+        }
+        if (pendingCR) {
+            md5.update((byte) '\r');
+        }
+        return toHex(md5.digest());
+    }
+
+    /**
+     * Update the digest with a block of bytes.
+     *
+     * @param block
+     *            the block
+     * @param normalizeLineEnds
+     *            if true, CRLF line endings are digested as LF
+     */
+    private void update(ByteBuffer block, boolean normalizeLineEnds) {
+        if (!normalizeLineEnds) {
+            md5.update(block);
+            return;
+        }
+        while (block.hasRemaining()) {
+            int n = Math.min(block.remaining(), scratch.length);
+            block.get(scratch, 0, n);
+            int out = 0;
+            for (int i = 0; i < n; i++) {
+                byte b = scratch[i];
+                if (pendingCR) {
+                    pendingCR = false;
+                    if (b != '\n') {
+                        // A lone CR is kept.
+                        if (out > 0) {
+                            md5.update(scratch, 0, out);
+                            out = 0;
+                        }
+                        md5.update((byte) '\r');
+                    }
+                }
+                if (b == '\r') {
+                    pendingCR = true;
+                    md5.update(scratch, 0, out);
+                    out = 0;
+                    continue;
+                }
+                scratch[out++] = b;
+            }
+            md5.update(scratch, 0, out);
+        }
+    }
+
+    /**
+     * Format a digest as upper case hex string.
+     *
+     * @param digest
+     *            the digest
+     * @return the hex string
+     */
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
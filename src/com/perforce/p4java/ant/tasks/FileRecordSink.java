@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import org.apache.tools.ant.Task;
+
+/**
+ * Record sink that writes each record to a file in the tagged format of the
+ * Perforce command line client ('p4 -ztag'). Each field is written on a line
+ * as "... name value"; records are separated by an empty line.
+ *
+ * @see RecordSink
+ */
+public class FileRecordSink implements RecordSink {
+
+    /** Encoding of the output file. */
+    public static final String ENCODING = "UTF-8";
+
+    /** Tagged field prefix. */
+    private static final String FIELD_PREFIX = "... ";
+
+    /** Line separator for this system. */
+    private static final String LINE_SEPARATOR = System
+            .getProperty("line.separator");
+
+    /** The output file. */
+    private File file;
+
+    /** If true, append to the output file. */
+    private boolean append;
+
+    /** The writer. */
+    private Writer writer;
+
+    /**
+     * Instantiates a new file record sink.
+     *
+     * @param file
+     *            the output file
+     * @param append
+     *            if true, append to the output file
+     */
+    public FileRecordSink(File file, boolean append) {
+        this.file = file;
+        this.append = append;
+    }
+
+    /**
+     * @see RecordSink#open(org.apache.tools.ant.Task)
+     */
+    public void open(Task task) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, append), ENCODING));
+    }
+
+    /**
+     * @see RecordSink#handleRecord(java.util.Map)
+     */
+    public boolean handleRecord(Map<String, Object> record) throws IOException {
+        for (Map.Entry<String, Object> entry : record.entrySet()) {
+            writer.write(FIELD_PREFIX);
+            writer.write(entry.getKey());
+            writer.write(' ');
+            Object value = entry.getValue();
+            writer.write((value != null) ? value.toString() : "");
+            writer.write(LINE_SEPARATOR);
+        }
+        writer.write(LINE_SEPARATOR);
+        return true;
+    }
+
+    /**
+     * @see RecordSink#close()
+     */
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
+
+/**
+ * Aggregated counts of file specs returned from Perforce commands. It is used
+ * to report the results of commands executed in batches or in summary mode
+ * without keeping the returned file specs. It counts the file specs by
+ * operation status, file action and file type, and totals the file sizes where
+ * they are known.
+ *
+ * @see PerforceTask
+ */
+public class FileSpecSummary {
+
+    /** Number of file specs by operation status. */
+    private Map<FileSpecOpStatus, Long> statusCounts = new EnumMap<FileSpecOpStatus, Long>(
+            FileSpecOpStatus.class);
+
+    /** Number of file specs by file action. */
+    private Map<FileAction, Long> actionCounts = new EnumMap<FileAction, Long>(
+            FileAction.class);
+
+    /** Number of file specs by file type. */
+    private Map<String, Long> fileTypeCounts = new TreeMap<String, Long>();
+
+    /** Total number of file specs. */
+    private long total = 0;
+
+    /** Total size in bytes of the file specs with a known size. */
+    private long totalBytes = 0;
+
+    /** Number of file specs with a known size. */
+    private long sizedFiles = 0;
+
+    /** Number of batches. */
+    private long batches = 0;
+
+    /**
+     * Default constructor.
+     */
+    public FileSpecSummary() {
+    }
+
+    /**
+     * Add a batch of file specs to the summary.
+     *
+     * @param fileSpecs
+     *            the file specs
+     */
+    public void addAll(List<? extends IFileSpec> fileSpecs) {
+        addBatch();
+        if (fileSpecs != null) {
+            for (IFileSpec fileSpec : fileSpecs) {
+                add(fileSpec);
+            }
+        }
+    }
+
+    /**
+     * Count a batch.
+     */
+    public void addBatch() {
+        batches++;
+    }
+
+    /**
+     * Add a file spec to the summary.
+     *
+     * @param fileSpec
+     *            the file spec
+     */
+    public void add(IFileSpec fileSpec) {
+        if (fileSpec == null) {
+            return;
+        }
+        total++;
+        FileSpecOpStatus status = fileSpec.getOpStatus();
+        if (status == null) {
+            status = FileSpecOpStatus.UNKNOWN;
+        }
+        increment(statusCounts, status);
+        if (status != FileSpecOpStatus.VALID) {
+            return;
+        }
+        FileAction action = fileSpec.getAction();
+        String fileType = fileSpec.getFileType();
+        if (fileSpec instanceof IExtendedFileSpec) {
+            IExtendedFileSpec extendedFileSpec = (IExtendedFileSpec) fileSpec;
+            if (action == null) {
+                action = extendedFileSpec.getHeadAction();
+            }
+            if (fileType == null) {
+                fileType = extendedFileSpec.getHeadType();
+            }
+            if (extendedFileSpec.getFileSize() > 0) {
+                totalBytes += extendedFileSpec.getFileSize();
+                sizedFiles++;
+            }
+        }
+        if (action != null) {
+            increment(actionCounts, action);
+        }
+        if (fileType != null) {
+            increment(fileTypeCounts, fileType);
+        }
+    }
+
+    /**
+     * Increment the count of a key.
+     *
+     * @param <K>
+     *            the key type
+     * @param counts
+     *            the counts
+     * @param key
+     *            the key
+     */
+    private static <K> void increment(Map<K, Long> counts, K key) {
+        Long count = counts.get(key);
+        counts.put(key, (count != null) ? count + 1 : 1L);
+    }
+
+    /**
+     * Gets the number of file specs with an operation status.
+     *
+     * @param status
+     *            the status
+     * @return the count
+     */
+    public long getCount(FileSpecOpStatus status) {
+        Long count = statusCounts.get(status);
+        return (count != null) ? count : 0;
+    }
+
+    /**
+     * Gets the number of file specs by operation status.
+     *
+     * @return the status counts
+     */
+    public Map<FileSpecOpStatus, Long> getStatusCounts() {
+        return statusCounts;
+    }
+
+    /**
+     * Gets the number of valid file specs by file action.
+     *
+     * @return the action counts
+     */
+    public Map<FileAction, Long> getActionCounts() {
+        return actionCounts;
+    }
+
+    /**
+     * Gets the number of valid file specs by file type.
+     *
+     * @return the file type counts
+     */
+    public Map<String, Long> getFileTypeCounts() {
+        return fileTypeCounts;
+    }
+
+    /**
+     * Gets the total number of file specs.
+     *
+     * @return the total
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the total size in bytes of the file specs with a known size.
+     *
+     * @return the total bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Gets the number of file specs with a known size.
+     *
+     * @return the sized files
+     */
+    public long getSizedFiles() {
+        return sizedFiles;
+    }
+
+    /**
+     * Gets the number of errors (file specs with an error status).
+     *
+     * @return the errors
+     */
+    public long getErrors() {
+        return getCount(FileSpecOpStatus.ERROR)
+                + getCount(FileSpecOpStatus.CLIENT_ERROR);
+    }
+
+    /**
+     * Gets the number of batches.
+     *
+     * @return the batches
+     */
+    public long getBatches() {
+        return batches;
+    }
+}
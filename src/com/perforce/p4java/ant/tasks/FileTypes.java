@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import com.perforce.p4java.client.IClientSummary.ClientLineEnd;
+
+/**
+ * Helper class for interpreting Perforce file types, such as "text",
+ * "xbinary" or "text+kx", when comparing or writing local files without the
+ * help of the server.
+ */
+public class FileTypes {
+
+    /**
+     * Private constructor.
+     */
+    private FileTypes() {
+    }
+
+    /**
+     * Gets the base type of a file type, without modifiers.
+     *
+     * @param fileType
+     *            the file type
+     * @return the base type
+     */
+    public static String getBaseType(String fileType) {
+        if (fileType == null) {
+            return "";
+        }
+        int plus = fileType.indexOf('+');
+        return (plus >= 0) ? fileType.substring(0, plus) : fileType;
+    }
+
+    /**
+     * Gets the modifiers of a file type.
+     *
+     * @param fileType
+     *            the file type
+     * @return the modifiers
+     */
+    public static String getModifiers(String fileType) {
+        if (fileType == null) {
+            return "";
+        }
+        int plus = fileType.indexOf('+');
+        return (plus >= 0) ? fileType.substring(plus + 1) : "";
+    }
+
+    /**
+     * Checks if the file type is a text type (including the old "xtext",
+     * "ktext", etc. types, but not unicode or utf16).
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is text
+     */
+    public static boolean isText(String fileType) {
+        return getBaseType(fileType).endsWith("text");
+    }
+
+    /**
+     * Checks if files of the type hold text, including the unicode, utf8 and
+     * utf16 types searched by "p4 grep".
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is textual
+     */
+    public static boolean isTextual(String fileType) {
+        String baseType = getBaseType(fileType);
+        return isText(fileType) || baseType.equals("unicode")
+                || baseType.equals("utf8") || baseType.equals("utf16");
+    }
+
+    /**
+     * Checks if the file type is a binary type.
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is binary
+     */
+    public static boolean isBinary(String fileType) {
+        return getBaseType(fileType).endsWith("binary");
+    }
+
+    /**
+     * Checks if the file type is a symlink.
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is symlink
+     */
+    public static boolean isSymlink(String fileType) {
+        return getBaseType(fileType).equals("symlink");
+    }
+
+    /**
+     * Checks if keywords are expanded in files of the type.
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is keyword expanded
+     */
+    public static boolean isKeywordExpanded(String fileType) {
+        return getBaseType(fileType).startsWith("k")
+                || getModifiers(fileType).indexOf('k') >= 0;
+    }
+
+    /**
+     * Checks if files of the type are executable.
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is executable
+     */
+    public static boolean isExecutable(String fileType) {
+        String baseType = getBaseType(fileType);
+        return baseType.startsWith("x") || baseType.startsWith("kx")
+                || baseType.startsWith("cx")
+                || getModifiers(fileType).indexOf('x') >= 0;
+    }
+
+    /**
+     * Checks if files of the type are always writable.
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is always writable
+     */
+    public static boolean isAlwaysWritable(String fileType) {
+        return getModifiers(fileType).indexOf('w') >= 0;
+    }
+
+    /**
+     * Checks if files of the type keep the modification time of the revision.
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if has modtime
+     */
+    public static boolean hasModtime(String fileType) {
+        return getModifiers(fileType).indexOf('m') >= 0;
+    }
+
+    /**
+     * Checks if a client translates the line endings of text files.
+     *
+     * @param lineEnd
+     *            the line end option of the client
+     * @return true, if it translates line endings
+     */
+    public static boolean translatesLineEnds(ClientLineEnd lineEnd) {
+        if (lineEnd == ClientLineEnd.UNIX || lineEnd == ClientLineEnd.SHARE) {
+            return false;
+        }
+        if (lineEnd == null || lineEnd == ClientLineEnd.LOCAL) {
+            return java.io.File.separatorChar == '\\';
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the local content of a file of the type is the depot content,
+     * so its digest matches the depot digest and it may be copied between
+     * workspaces.
+     *
+     * @param fileType
+     *            the file type
+     * @param lineEnd
+     *            the line end option of the client
+     * @return true, if the local content is the depot content
+     */
+    public static boolean isContentUntranslated(String fileType,
+            ClientLineEnd lineEnd) {
+        if (fileType == null || isKeywordExpanded(fileType)) {
+            return false;
+        }
+        if (isBinary(fileType)) {
+            return true;
+        }
+        return isText(fileType) && !translatesLineEnds(lineEnd);
+    }
+}
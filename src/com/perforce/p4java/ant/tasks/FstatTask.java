@@ -3,9 +3,13 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
 import com.perforce.p4java.core.IChangelist;
 import com.perforce.p4java.core.file.FileSpecBuilder;
@@ -15,6 +19,7 @@ import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.option.server.GetExtendedFilesOptions;
+import com.perforce.p4java.server.callback.IStreamingCallback;
 
 /**
  * Dumps information about each file, with each item of information on a
@@ -124,6 +129,36 @@ public class FstatTask extends ClientTask {
      */
     protected List<IExtendedFileSpec> retExtendedFileSpecs;
 
+    /**
+     * If true, the fstat records are streamed one at a time to a record sink
+     * instead of being collected into extended file specs.
+     */
+    protected boolean streaming = false;
+
+    /**
+     * Output file of the file record sink used in streaming mode, if no sink
+     * reference is set.
+     */
+    protected java.io.File output = null;
+
+    /** If true, the file record sink appends to the output file. */
+    protected boolean append = false;
+
+    /**
+     * Id of an Ant reference to a RecordSink used in streaming mode. It takes
+     * precedence over the output file.
+     */
+    protected String sinkRef = null;
+
+    /** The property to be set with the number of records in streaming mode. */
+    protected String countProperty = "p4.fstat.count";
+
+    /** Number of records streamed by the Perforce command. */
+    protected long retRecordCount = 0;
+
+    /** Number of error records streamed by the Perforce command. */
+    protected long retErrorCount = 0;
+
     /**
      * Default constructor.
      */
@@ -380,6 +415,65 @@ public class FstatTask extends ClientTask {
                 .setExcludeLocalPath(excludeLocalPath);
     }
 
+    /**
+     * Sets the streaming.
+     *
+     * @param streaming
+     *            the new streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets the output.
+     *
+     * @param output
+     *            the new output
+     */
+    public void setOutput(java.io.File output) {
+        this.output = output;
+    }
+
+    /**
+     * Sets the append.
+     *
+     * @param append
+     *            the new append
+     */
+    public void setAppend(boolean append) {
+        this.append = append;
+    }
+
+    /**
+     * Sets the sink ref.
+     *
+     * @param sinkRef
+     *            the new sink ref
+     */
+    public void setSinkRef(String sinkRef) {
+        this.sinkRef = sinkRef;
+    }
+
+    /**
+     * Sets the count property.
+     *
+     * @param countProperty
+     *            the new count property
+     */
+    public void setCountProperty(String countProperty) {
+        this.countProperty = countProperty;
+    }
+
+    /**
+     * Gets the ret record count.
+     *
+     * @return the ret record count
+     */
+    public long getRetRecordCount() {
+        return retRecordCount;
+    }
+
     /**
      * Gets the ret extended file specs.
      *
@@ -402,6 +496,9 @@ public class FstatTask extends ClientTask {
      * This method can be a real server and bandwidth resource hog, and should
      * be used as sparingly as possible; alternatively, try to use it with as
      * narrow a set of file specs as possible.
+     * <p>
+     * If "streaming" is true, the records are passed one at a time to the
+     * record sink instead; see {@link #execStreaming()}.
      *
      * @throws BuildException
      *             the build exception
@@ -409,6 +506,10 @@ public class FstatTask extends ClientTask {
      */
     protected void execP4Command() throws BuildException {
         try {
+            if (streaming) {
+                execStreaming();
+                return;
+            }
             fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
             retExtendedFileSpecs = getP4Server().getExtendedFiles(fileSpecs,
                     ((GetExtendedFilesOptions) commandOptions));
@@ -421,4 +522,107 @@ public class FstatTask extends ClientTask {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
+
+    /**
+     * Execute the Perforce fstat command with the streaming command interface.
+     * Each record is passed to the record sink as it arrives, without keeping
+     * the result set in memory. Error records are logged and counted; warning
+     * and info records, and records without a depot file, are logged and
+     * skipped. The number of records is set to the "countProperty" property.
+     * <p>
+     * The record sink is the Ant reference named by "sinkRef", a file record
+     * sink writing to "output", or a counting sink, respectively.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    protected void execStreaming() throws Exception {
+        List<String> args = new ArrayList<String>(
+                ((GetExtendedFilesOptions) commandOptions)
+                        .processOptions(getP4Server()));
+        args.addAll(Arrays.asList(getFiles()));
+        final RecordSink sink = getRecordSink();
+        retRecordCount = 0;
+        retErrorCount = 0;
+        sink.open(this);
+        try {
+            getP4Server().execStreamingMapCommand("fstat",
+                    args.toArray(new String[args.size()]), null,
+                    new IStreamingCallback() {
+                        public boolean startResults(int key) {
+                            return true;
+                        }
+
+                        public boolean endResults(int key) {
+                            return true;
+                        }
+
+                        public boolean handleResult(
+                                Map<String, Object> record, int key)
+                                throws P4JavaException {
+                            String errorStr = getErrorStr(getP4Server(),
+                                    record);
+                            if (errorStr != null) {
+                                retErrorCount++;
+                                log(errorStr, Project.MSG_ERR);
+                                return true;
+                            }
+                            // Warnings such as "no such file(s)" are no data.
+                            if (record.get("code0") != null
+                                    || record.get("depotFile") == null) {
+                                String message = getErrorOrInfoStr(
+                                        getP4Server(), record);
+                                if (message != null) {
+                                    log(message, Project.MSG_WARN);
+                                }
+                                return true;
+                            }
+                            retRecordCount++;
+                            try {
+                                return sink.handleRecord(record);
+                            } catch (P4JavaException e) {
+                                throw e;
+                            } catch (Exception e) {
+                                throw new P4JavaException(e);
+                            }
+                        }
+                    }, 0);
+        } finally {
+            sink.close();
+        }
+        if (!isEmpty(countProperty)) {
+            getProject().setProperty(countProperty,
+                    String.valueOf(retRecordCount));
+        }
+        // Log the record counts.
+        int messagePriority = Project.MSG_INFO;
+        StringBuilder message = new StringBuilder();
+        message.append("fstatSummary {" + LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("records").append("=")
+                .append(retRecordCount).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("errors").append("=")
+                .append(retErrorCount).append(LINE_SEPARATOR);
+        message.append("}" + LINE_SEPARATOR);
+        log(message.toString(), messagePriority);
+    }
+
+    /**
+     * Gets the record sink used in streaming mode.
+     *
+     * @return the record sink
+     */
+    protected RecordSink getRecordSink() {
+        if (!isEmpty(sinkRef)) {
+            Object sink = getProject().getReference(sinkRef);
+            if (!(sink instanceof RecordSink)) {
+                throw new BuildException("Reference " + sinkRef //$NON-NLS-1$
+                        + " is not a RecordSink."); //$NON-NLS-1$
+            }
+            return (RecordSink) sink;
+        }
+        if (output != null) {
+            return new FileRecordSink(output, append);
+        }
+        return new CountRecordSink();
+    }
 }
@@ -3,15 +3,23 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
 import com.perforce.p4java.core.IFileLineMatch;
 import com.perforce.p4java.core.file.FileSpecBuilder;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.option.server.MatchingLinesOptions;
+import com.perforce.p4java.server.IOptionsServer;
 
 /**
  * Grep searches files for lines matching a given regular expression, the
@@ -25,11 +33,35 @@ import com.perforce.p4java.option.server.MatchingLinesOptions;
  * used for each file. Normally, the head revision is searched. See 'p4 help
  * revisions' for help specifying revisions.</p>
  *
+ * If "threads" is greater than one, the search is sharded by depot subtree.
+ * Each file spec ending with "/..." is split into the files directly in its
+ * directory and one shard per subdirectory (listed with "p4 dirs"), and the
+ * shards are searched concurrently over several connections. A shard that
+ * exceeds a server limit (such as MaxScanRows or MaxResults) is split again
+ * into finer shards. The matches of all shards are merged in depot path
+ * order. </p>
+ *
+ * If "maxMatches" is positive, only the first matches in depot path order are
+ * returned, and shards that can't contain any of them are not searched.
+ * </p>
+ *
+ * If "index" is set to a trigram index built by the index task, the files
+ * that may match are looked up in the index, and only these candidates are
+ * searched by the server, at the indexed revisions. The file specs then only
+ * restrict the candidates by path. Searches the index can't narrow down (all
+ * revisions, non-matching lines, binaries, patterns without a required
+ * literal of three characters, or file specs without exactly the indexed
+ * revision specifier, such as "@1234") are run on the server as usual. </p>
+ *
  * @see PerforceTask
  * @see ServerTask
+ * @see IndexTask
  */
 public class GrepTask extends ClientTask {
 
+    /** Default number of index candidates searched by a single command. */
+    public static final int DEFAULT_VERIFY_BATCH_SIZE = 500;
+
     /**
      * The patterns used by p4 grep are regular expressions comparable to those
      * used in UNIX. Corresponds to the p4 grep -e pattern option.
@@ -91,6 +123,18 @@ public class GrepTask extends ClientTask {
      */
     protected boolean fixedPattern = false;
 
+    /**
+     * Number of threads and connections searching shards concurrently. If not
+     * greater than one, all file specs are searched by a single command.
+     */
+    protected int threads = 1;
+
+    /** If positive, the maximum number of matches returned. */
+    protected int maxMatches = 0;
+
+    /** The trigram index directory. */
+    protected java.io.File index = null;
+
     /**
      * Collection of file line matches returned from the Perforce command.
      */
@@ -213,6 +257,36 @@ public class GrepTask extends ClientTask {
         ((MatchingLinesOptions) commandOptions).setFixedPattern(fixedPattern);
     }
 
+    /**
+     * Sets the threads.
+     *
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the max matches.
+     *
+     * @param maxMatches
+     *            the new max matches
+     */
+    public void setMaxMatches(int maxMatches) {
+        this.maxMatches = maxMatches;
+    }
+
+    /**
+     * Sets the index.
+     *
+     * @param index
+     *            the new index
+     */
+    public void setIndex(java.io.File index) {
+        this.index = index;
+    }
+
     /**
      * Gets the file line matches.
      *
@@ -239,16 +313,388 @@ public class GrepTask extends ClientTask {
             throw new BuildException("No pattern specified."); //$NON-NLS-1$
         }
         try {
-            fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
-            fileLineMatches = getP4Server().getMatchingLines(fileSpecs,
-                    pattern, ((MatchingLinesOptions) commandOptions));
+            fileLineMatches = (index != null) ? getMatchingLinesFromIndex()
+                    : null;
+            if (fileLineMatches == null && threads > 1) {
+                fileLineMatches = getMatchingLinesInParallel();
+            } else if (fileLineMatches == null) {
+                fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
+                fileLineMatches = getP4Server().getMatchingLines(fileSpecs,
+                        pattern, ((MatchingLinesOptions) commandOptions));
+                if (maxMatches > 0 && fileLineMatches != null
+                        && fileLineMatches.size() > maxMatches) {
+                    fileLineMatches = new ArrayList<IFileLineMatch>(
+                            fileLineMatches.subList(0, maxMatches));
+                }
+            }
             logFileLineMatches(fileLineMatches);
         } catch (P4JavaException e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
         } catch (P4JavaError e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
         } catch (Throwable t) {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
+
+    /**
+     * A depot subtree searched by a single grep command.
+     */
+    private static class Shard {
+
+        /** The file spec searched. */
+        private String spec;
+
+        /** The directory of a subtree shard; null if it can't be split. */
+        private String dir;
+
+        /** The revision specifier appended to the paths. */
+        private String revision;
+
+        /** The lowest depot path the shard may contain. */
+        private String bound;
+
+        /** The matches; null if the shard exceeded a limit or was skipped. */
+        private List<IFileLineMatch> matches;
+
+        /** If true, the shard exceeded a server limit. */
+        private boolean limited;
+    }
+
+    /**
+     * Search the file specs in shards concurrently. Shards exceeding a server
+     * limit are split and searched again, until none is left. The matches are
+     * merged in depot path order.
+     *
+     * @return the matches
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected List<IFileLineMatch> getMatchingLinesInParallel()
+            throws P4JavaException {
+        final MatchingLinesOptions options = (MatchingLinesOptions) commandOptions;
+        final List<IFileLineMatch> collected = Collections
+                .synchronizedList(new ArrayList<IFileLineMatch>());
+        List<Shard> pending = new ArrayList<Shard>();
+        for (String path : getFiles()) {
+            int index = path.indexOf("/...");
+            String rest = (index >= 0) ? path.substring(index + 4) : null;
+            if (rest != null
+                    && (rest.length() == 0 || rest.startsWith("@") || rest
+                            .startsWith("#"))) {
+                pending.addAll(split(path.substring(0, index), rest));
+            } else {
+                Shard shard = new Shard();
+                shard.spec = path;
+                shard.bound = "";
+                pending.add(shard);
+            }
+        }
+        int waves = 0;
+        int searched = 0;
+        while (!pending.isEmpty()) {
+            waves++;
+            searched += pending.size();
+            List<ServerJob<Shard>> jobs = new ArrayList<ServerJob<Shard>>();
+            for (final Shard shard : pending) {
+                jobs.add(new ServerJob<Shard>() {
+                    public Shard run(IOptionsServer server) throws Exception {
+                        if (isBeyondMaxMatches(collected, shard.bound)) {
+                            return shard;
+                        }
+                        try {
+                            shard.matches = server.getMatchingLines(
+                                    FileSpecBuilder
+                                            .makeFileSpecList(shard.spec),
+                                    pattern, options);
+                        } catch (P4JavaException e) {
+                            if (shard.dir == null || !isLimitError(e)) {
+                                throw e;
+                            }
+                            shard.limited = true;
+                            return shard;
+                        }
+                        if (shard.matches != null) {
+                            collected.addAll(shard.matches);
+                        }
+                        return shard;
+                    }
+                });
+            }
+            List<Shard> next = new ArrayList<Shard>();
+            for (Shard shard : execParallel(jobs, threads)) {
+                if (shard.limited) {
+                    log("Splitting " + shard.spec, Project.MSG_VERBOSE); //$NON-NLS-1$
+                    next.addAll(split(shard.dir, shard.revision));
+                }
+            }
+            pending = next;
+        }
+        List<IFileLineMatch> merged = new ArrayList<IFileLineMatch>(collected);
+        // A stable sort keeps the order of the lines within each file.
+        Collections.sort(merged, new Comparator<IFileLineMatch>() {
+            public int compare(IFileLineMatch a, IFileLineMatch b) {
+                return a.getDepotFile().compareTo(b.getDepotFile());
+            }
+        });
+        if (maxMatches > 0 && merged.size() > maxMatches) {
+            merged = new ArrayList<IFileLineMatch>(merged.subList(0,
+                    maxMatches));
+        }
+        log("Searched " + searched + " shard(s) in " + waves + " wave(s)", //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+        return merged;
+    }
+
+    /**
+     * Split a directory into a shard of the files directly in it and one
+     * subtree shard per subdirectory. When all revisions are searched, the
+     * subdirectories holding only files deleted at head are included.
+     *
+     * @param dir
+     *            the directory, or "/" for the whole server
+     * @param revision
+     *            the revision specifier
+     * @return the shards in depot path order
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<Shard> split(String dir, String revision)
+            throws P4JavaException {
+        List<Shard> shards = new ArrayList<Shard>();
+        boolean root = dir.equals("/");
+        if (!root) {
+            Shard files = new Shard();
+            files.spec = dir + "/*" + revision;
+            files.bound = dir + "/";
+            shards.add(files);
+        }
+        IOptionsServer server = getP4Server();
+        String spec = (root ? "//*" : dir + "/*") + revision;
+        String[] args = ((MatchingLinesOptions) commandOptions)
+                .isAllRevisions() ? new String[] { "-D", spec }
+                : new String[] { spec };
+        Map<String, Object>[] results = server.execMapCmd("dirs", args, null);
+        if (results != null) {
+            for (Map<String, Object> result : results) {
+                checkError(server, result);
+                Object subdir = result.get("dir");
+                if (subdir != null) {
+                    Shard shard = new Shard();
+                    shard.dir = subdir.toString();
+                    shard.revision = revision;
+                    shard.spec = shard.dir + "/..." + revision;
+                    shard.bound = shard.dir + "/";
+                    shards.add(shard);
+                }
+            }
+        }
+        Collections.sort(shards, new Comparator<Shard>() {
+            public int compare(Shard a, Shard b) {
+                return a.bound.compareTo(b.bound);
+            }
+        });
+        return shards;
+    }
+
+    /**
+     * Checks if enough matches sorting before a shard were collected, so the
+     * shard can't contain any of the first "maxMatches" matches.
+     *
+     * @param collected
+     *            the matches collected so far
+     * @param bound
+     *            the lowest depot path of the shard
+     * @return true, if the shard needs no search
+     */
+    private boolean isBeyondMaxMatches(List<IFileLineMatch> collected,
+            String bound) {
+        if (maxMatches <= 0) {
+            return false;
+        }
+        int before = 0;
+        synchronized (collected) {
+            for (IFileLineMatch match : collected) {
+                if (match.getDepotFile().compareTo(bound) < 0
+                        && ++before >= maxMatches) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if an exception reports a server limit, such as MaxScanRows,
+     * MaxResults or the grep revision limit.
+     *
+     * @param e
+     *            the exception
+     * @return true, if a limit was exceeded
+     */
+    private static boolean isLimitError(P4JavaException e) {
+        String message = e.getLocalizedMessage();
+        if (message == null) {
+            return false;
+        }
+        message = message.toLowerCase();
+        return message.contains("maxscanrows")
+                || message.contains("maxresults")
+                || message.contains("too many rows")
+                || message.contains("request too large")
+                || message.contains("limit exceeded");
+    }
+
+    /**
+     * Search the candidate files of the trigram index. The candidates are
+     * searched in batches, concurrently if "threads" is greater than one.
+     *
+     * @return the matches, or null if the index can't narrow down the search
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected List<IFileLineMatch> getMatchingLinesFromIndex()
+            throws IOException {
+        final MatchingLinesOptions options = (MatchingLinesOptions) commandOptions;
+        if (options.isAllRevisions() || options.isNonMatchingLines()
+                || options.isSearchBinaries()) {
+            log("The index can't be used with these options", //$NON-NLS-1$
+                    Project.MSG_VERBOSE);
+            return null;
+        }
+        int[] trigrams = TrigramIndex.getRequiredTrigrams(pattern,
+                options.isFixedPattern(), options.isCaseInsensitive());
+        if (trigrams.length == 0) {
+            log("The index can't be used with pattern " + pattern, //$NON-NLS-1$
+                    Project.MSG_VERBOSE);
+            return null;
+        }
+        TrigramIndex trigramIndex = TrigramIndex.open(index);
+        if (trigramIndex == null) {
+            throw new BuildException("No trigram index in " + index); //$NON-NLS-1$
+        }
+        if (!IndexTask.isFixedRevision(trigramIndex.getRevision())) {
+            log("The index at " + trigramIndex.getRevision() //$NON-NLS-1$
+                    + " is out of date", Project.MSG_VERBOSE); //$NON-NLS-1$
+            return null;
+        }
+        List<Pattern> filters = new ArrayList<Pattern>();
+        for (String path : getFiles()) {
+            String revision = getRevisionSpecifier(path);
+            // The head revision may have moved on since the index was built.
+            if (revision == null
+                    || !revision.equals(trigramIndex.getRevision())) {
+                log("The index at " + trigramIndex.getRevision() //$NON-NLS-1$
+                        + " can't be used with " + path, //$NON-NLS-1$
+                        Project.MSG_VERBOSE);
+                return null;
+            }
+            filters.add(toPathPattern(path));
+        }
+        List<String> candidates = new ArrayList<String>();
+        for (String candidate : trigramIndex.getCandidates(trigrams)) {
+            String depotPath = candidate.substring(0,
+                    candidate.lastIndexOf('#'));
+            boolean matched = filters.isEmpty();
+            for (int i = 0; !matched && i < filters.size(); i++) {
+                matched = filters.get(i).matcher(depotPath).matches();
+            }
+            if (matched) {
+                candidates.add(candidate);
+            }
+        }
+        log("Searching " + candidates.size() + " candidate(s) of index " //$NON-NLS-1$
+                + index + " at " + trigramIndex.getRevision(), //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+        final List<IFileLineMatch> collected = Collections
+                .synchronizedList(new ArrayList<IFileLineMatch>());
+        int size = (batchSize > 0) ? batchSize : DEFAULT_VERIFY_BATCH_SIZE;
+        List<ServerJob<List<IFileLineMatch>>> jobs = new ArrayList<ServerJob<List<IFileLineMatch>>>();
+        for (int start = 0; start < candidates.size(); start += size) {
+            final List<String> batch = candidates.subList(start,
+                    Math.min(start + size, candidates.size()));
+            final String bound = batch.get(0).substring(0,
+                    batch.get(0).lastIndexOf('#'));
+            jobs.add(new ServerJob<List<IFileLineMatch>>() {
+                public List<IFileLineMatch> run(IOptionsServer server)
+                        throws Exception {
+                    // Earlier batches already hold the first matches.
+                    if (isBeyondMaxMatches(collected, bound)) {
+                        return null;
+                    }
+                    List<IFileLineMatch> matches = server.getMatchingLines(
+                            FileSpecBuilder.makeFileSpecList(batch), pattern,
+                            options);
+                    if (matches != null) {
+                        collected.addAll(matches);
+                    }
+                    return matches;
+                }
+            });
+        }
+        execParallel(jobs, Math.max(1, threads));
+        List<IFileLineMatch> merged = new ArrayList<IFileLineMatch>(collected);
+        // A stable sort keeps the order of the lines within each file.
+        Collections.sort(merged, new Comparator<IFileLineMatch>() {
+            public int compare(IFileLineMatch a, IFileLineMatch b) {
+                return a.getDepotFile().compareTo(b.getDepotFile());
+            }
+        });
+        if (maxMatches > 0 && merged.size() > maxMatches) {
+            merged = new ArrayList<IFileLineMatch>(merged.subList(0,
+                    maxMatches));
+        }
+        return merged;
+    }
+
+    /**
+     * Gets the revision specifier of a file spec.
+     *
+     * @param path
+     *            the file spec
+     * @return the revision specifier starting with '@' or '#', or null
+     */
+    private static String getRevisionSpecifier(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '@' || path.charAt(i) == '#') {
+                return path.substring(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Convert a depot path with wild cards, without its revision specifier,
+     * to a regular expression.
+     *
+     * @param path
+     *            the depot path
+     * @return the pattern
+     */
+    private static Pattern toPathPattern(String path) {
+        int end = path.length();
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '@' || path.charAt(i) == '#') {
+                end = i;
+                break;
+            }
+        }
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < end; i++) {
+            char c = path.charAt(i);
+            if (path.startsWith("...", i)) {
+                regex.append(".*");
+                i += 2;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (Character.isLetterOrDigit(c)) {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
 }
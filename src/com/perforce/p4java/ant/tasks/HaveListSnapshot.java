@@ -0,0 +1,623 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+/**
+ * Compact binary snapshot of a client workspace's have list. </p>
+ *
+ * The snapshot stores the depot path, have revision and MD5 digest of each
+ * file, sorted by the UTF-8 bytes of the depot path, along with the client
+ * name, the update time of the client spec and the changelist the client was
+ * synced to (or -1 if unknown). It is read into memory through a file channel
+ * and entries are only decoded when looked up, so lookups of a few paths don't
+ * parse the whole snapshot. The file is not memory-mapped: a mapped file can't
+ * be deleted on Windows and can't be unmapped explicitly, so the snapshot
+ * could not be replaced while the previous one is merged into it. </p>
+ *
+ * The snapshot only reflects the have list at the time it was written; it is
+ * not updated by syncs outside of the tasks maintaining it. </p>
+ *
+ * @see SyncTask
+ * @see HaveTask
+ */
+public class HaveListSnapshot {
+
+    /** Magic number of a snapshot file ("P4HS"). */
+    public static final int MAGIC = 0x50344853;
+
+    /** Version of the snapshot file format. */
+    public static final int VERSION = 1;
+
+    /** Length of an MD5 digest in bytes. */
+    private static final int DIGEST_LENGTH = 16;
+
+    /** Fields requested from fstat for a have list. */
+    private static final String HAVE_FIELDS = "depotFile,haveRev,digest";
+
+    /** UTF-8 charset of the depot paths. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A have list entry.
+     */
+    public static class Entry implements Comparable<Entry> {
+
+        /** The depot path in UTF-8. */
+        private byte[] path;
+
+        /** The have revision. */
+        private int revision;
+
+        /** The MD5 digest; all zero if unknown. */
+        private byte[] digest;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param depotPath
+         *            the depot path
+         * @param revision
+         *            the have revision
+         * @param digest
+         *            the MD5 digest as hex string, or null
+         */
+        public Entry(String depotPath, int revision, String digest) {
+            this(depotPath.getBytes(UTF8), revision, parseDigest(digest));
+        }
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param path
+         *            the depot path in UTF-8
+         * @param revision
+         *            the have revision
+         * @param digest
+         *            the MD5 digest
+         */
+        Entry(byte[] path, int revision, byte[] digest) {
+            this.path = path;
+            this.revision = revision;
+            this.digest = digest;
+        }
+
+        /**
+         * Gets the depot path.
+         *
+         * @return the depot path
+         */
+        public String getDepotPath() {
+            return new String(path, UTF8);
+        }
+
+        /**
+         * Gets the have revision.
+         *
+         * @return the revision
+         */
+        public int getRevision() {
+            return revision;
+        }
+
+        /**
+         * Gets the MD5 digest as upper case hex string, as reported by fstat.
+         *
+         * @return the digest, or null if unknown
+         */
+        public String getDigest() {
+            boolean known = false;
+            StringBuilder sb = new StringBuilder(DIGEST_LENGTH * 2);
+            for (byte b : digest) {
+                known |= (b != 0);
+                sb.append(Character.toUpperCase(Character.forDigit(
+                        (b >> 4) & 0xF, 16)));
+                sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+            return known ? sb.toString() : null;
+        }
+
+        /**
+         * Compare by the UTF-8 bytes of the depot path.
+         *
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        public int compareTo(Entry other) {
+            return compare(path, other.path);
+        }
+    }
+
+    /** The snapshot file. */
+    private File file;
+
+    /** The contents of the snapshot file. */
+    private ByteBuffer buffer;
+
+    /** The client name. */
+    private String clientName;
+
+    /** The update time of the client spec. */
+    private long clientUpdated;
+
+    /** The changelist the client was synced to; -1 if unknown. */
+    private int change;
+
+    /** Offsets of the entries in the buffer. */
+    private int[] offsets;
+
+    /**
+     * Instantiates a new snapshot.
+     *
+     * @param file
+     *            the snapshot file
+     */
+    private HaveListSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open a snapshot file. Read it into memory and index its entries. The
+     * file is closed when this method returns.
+     *
+     * @param file
+     *            the snapshot file
+     * @return the snapshot
+     * @throws IOException
+     *             if the file can't be read or is not a snapshot
+     */
+    public static HaveListSnapshot open(File file) throws IOException {
+        HaveListSnapshot snapshot = new HaveListSnapshot(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Have list snapshot too large: " + file); //$NON-NLS-1$
+            }
+            ByteBuffer contents = ByteBuffer.allocate((int) size);
+            while (contents.hasRemaining()) {
+                if (channel.read(contents) < 0) {
+                    throw new IOException("Truncated have list snapshot: " //$NON-NLS-1$
+                            + file);
+                }
+            }
+            contents.clear();
+            snapshot.buffer = contents;
+        } finally {
+            raf.close();
+        }
+        snapshot.readHeader();
+        return snapshot;
+    }
+
+    /**
+     * Read the header and index the entries.
+     *
+     * @throws IOException
+     *             if the file is not a snapshot
+     */
+    private void readHeader() throws IOException {
+        try {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a have list snapshot: " + file); //$NON-NLS-1$
+            }
+            buffer.position(8);
+            clientName = readString();
+            clientUpdated = buffer.getLong();
+            change = buffer.getInt();
+            int count = buffer.getInt();
+            offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = buffer.position();
+                int pathLength = buffer.getInt();
+                buffer.position(buffer.position() + pathLength + 4
+                        + DIGEST_LENGTH);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt have list snapshot: " + file, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string at the current position.
+     *
+     * @return the string
+     */
+    private String readString() {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Gets the client name.
+     *
+     * @return the client name
+     */
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * Gets the update time of the client spec.
+     *
+     * @return the client updated time
+     */
+    public long getClientUpdated() {
+        return clientUpdated;
+    }
+
+    /**
+     * Gets the changelist the client was synced to.
+     *
+     * @return the change, or -1 if unknown
+     */
+    public int getChange() {
+        return change;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the size
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Gets an entry.
+     *
+     * @param index
+     *            the index
+     * @return the entry
+     */
+    public Entry getEntry(int index) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offsets[index]);
+        byte[] path = new byte[view.getInt()];
+        view.get(path);
+        int revision = view.getInt();
+        byte[] digest = new byte[DIGEST_LENGTH];
+        view.get(digest);
+        return new Entry(path, revision, digest);
+    }
+
+    /**
+     * Find the entry of a depot path.
+     *
+     * @param depotPath
+     *            the depot path
+     * @return the entry, or null
+     */
+    public Entry getEntry(String depotPath) {
+        byte[] path = depotPath.getBytes(UTF8);
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparePathAt(offsets[mid], path);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return getEntry(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compare the depot path of the entry at an offset with a depot path,
+     * without copying the entry.
+     *
+     * @param offset
+     *            the entry offset
+     * @param path
+     *            the depot path in UTF-8
+     * @return the comparison result
+     */
+    private int comparePathAt(int offset, byte[] path) {
+        int length = buffer.getInt(offset);
+        int n = Math.min(length, path.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(offset + 4 + i) & 0xFF) - (path[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - path.length;
+    }
+
+    /**
+     * Iterate over the entries in depot path order.
+     *
+     * @return the iterator
+     */
+    public Iterator<Entry> iterator() {
+        return new Iterator<Entry>() {
+            private int index = 0;
+
+            public boolean hasNext() {
+                return index < offsets.length;
+            }
+
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getEntry(index++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Write a snapshot file. The entries are sorted first. The file is written
+     * to a temporary file and renamed, so readers never see a partial
+     * snapshot.
+     *
+     * @param file
+     *            the snapshot file
+     * @param clientName
+     *            the client name
+     * @param clientUpdated
+     *            the update time of the client spec
+     * @param change
+     *            the changelist the client was synced to, or -1
+     * @param entries
+     *            the entries
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static void write(File file, String clientName, long clientUpdated,
+            int change, List<Entry> entries) throws IOException {
+        Collections.sort(entries);
+        write(file, clientName, clientUpdated, change, entries.iterator());
+    }
+
+    /**
+     * Write a snapshot file from entries already sorted by depot path.
+     *
+     * @param file
+     *            the snapshot file
+     * @param clientName
+     *            the client name
+     * @param clientUpdated
+     *            the update time of the client spec
+     * @param change
+     *            the changelist the client was synced to, or -1
+     * @param sortedEntries
+     *            the sorted entries
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static void write(File file, String clientName, long clientUpdated,
+            int change, Iterator<Entry> sortedEntries) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir); //$NON-NLS-1$
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        long countOffset;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            byte[] name = clientName.getBytes(UTF8);
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeLong(clientUpdated);
+            out.writeInt(change);
+            countOffset = out.size();
+            out.writeInt(0);
+            while (sortedEntries.hasNext()) {
+                Entry entry = sortedEntries.next();
+                out.writeInt(entry.path.length);
+                out.write(entry.path);
+                out.writeInt(entry.revision);
+                out.write(entry.digest);
+                count++;
+            }
+        } finally {
+            out.close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.seek(countOffset);
+            raf.writeInt(count);
+        } finally {
+            raf.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file); //$NON-NLS-1$
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Merge entries into a snapshot in depot path order. An update entry
+     * replaces the snapshot entry with the same depot path; an update entry
+     * with revision zero removes it.
+     *
+     * @param snapshot
+     *            the snapshot, or null
+     * @param updates
+     *            the updated entries
+     * @return the merged entries, sorted by depot path
+     */
+    public static Iterator<Entry> merge(final HaveListSnapshot snapshot,
+            List<Entry> updates) {
+        Collections.sort(updates);
+        final Iterator<Entry> left = (snapshot != null) ? snapshot.iterator()
+                : Collections.<Entry> emptyList().iterator();
+        final Iterator<Entry> right = updates.iterator();
+        return new Iterator<Entry>() {
+            private Entry nextLeft = advance(left);
+            private Entry nextRight = advance(right);
+            private Entry next = findNext();
+
+            private Entry advance(Iterator<Entry> it) {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            private Entry findNext() {
+                while (nextLeft != null || nextRight != null) {
+                    Entry entry;
+                    if (nextRight == null
+                            || (nextLeft != null && nextLeft
+                                    .compareTo(nextRight) < 0)) {
+                        entry = nextLeft;
+                        nextLeft = advance(left);
+                    } else {
+                        if (nextLeft != null
+                                && nextLeft.compareTo(nextRight) == 0) {
+                            nextLeft = advance(left);
+                        }
+                        entry = nextRight;
+                        nextRight = advance(right);
+                    }
+                    if (entry.revision > 0) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Entry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry entry = next;
+                next = findNext();
+                return entry;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Fetch the have list entries of the client files matching the paths,
+     * including digests, using a streamed "p4 fstat -Ol". Files not on the
+     * have list are skipped.
+     *
+     * @param server
+     *            the server, with the client set as current client
+     * @param paths
+     *            the file paths
+     * @return the entries, unsorted
+     * @throws P4JavaException
+     *             if the fstat command fails
+     */
+    public static List<Entry> fetchHaveList(final IOptionsServer server,
+            List<String> paths) throws P4JavaException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        List<String> args = new ArrayList<String>();
+        args.add("-Ol");
+        args.add("-T");
+        args.add(HAVE_FIELDS);
+        args.addAll(paths);
+        server.execStreamingMapCommand("fstat",
+                args.toArray(new String[args.size()]), null,
+                new IStreamingCallback() {
+                    public boolean startResults(int key) {
+                        return true;
+                    }
+
+                    public boolean endResults(int key) {
+                        return true;
+                    }
+
+                    public boolean handleResult(Map<String, Object> record,
+                            int key) throws P4JavaException {
+                        ServerTask.checkError(server, record);
+                        Object depotFile = record.get("depotFile");
+                        Object haveRev = record.get("haveRev");
+                        if (depotFile != null && haveRev != null) {
+                            entries.add(new Entry(depotFile.toString(),
+                                    Integer.parseInt(haveRev.toString()),
+                                    (String) record.get("digest")));
+                        }
+                        return true;
+                    }
+                }, 0);
+        return entries;
+    }
+
+    /**
+     * Parse a hex MD5 digest.
+     *
+     * @param digest
+     *            the digest, or null
+     * @return the digest bytes; all zero if unknown
+     */
+    private static byte[] parseDigest(String digest) {
+        byte[] bytes = new byte[DIGEST_LENGTH];
+        if (digest != null && digest.length() == DIGEST_LENGTH * 2) {
+            for (int i = 0; i < DIGEST_LENGTH; i++) {
+                int hi = Character.digit(digest.charAt(2 * i), 16);
+                int lo = Character.digit(digest.charAt(2 * i + 1), 16);
+                if (hi < 0 || lo < 0) {
+                    return new byte[DIGEST_LENGTH];
+                }
+                bytes[i] = (byte) ((hi << 4) | lo);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Compare byte arrays as unsigned bytes.
+     *
+     * @param a
+     *            the first array
+     * @param b
+     *            the second array
+     * @return the comparison result
+     */
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+}
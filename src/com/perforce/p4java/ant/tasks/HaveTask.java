@@ -3,7 +3,12 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
 import com.perforce.p4java.core.file.FileSpecBuilder;
 import com.perforce.p4java.exception.P4JavaError;
@@ -14,11 +19,17 @@ import com.perforce.p4java.exception.P4JavaException;
  * revisions of named files that were last synced from the depot. If no file
  * name is given list all files synced on this client. </p>
  * 
+ * If a "snapshot" file is specified, the have list (with digests) is written
+ * to a have list snapshot instead of being logged. </p>
+ * 
  * @see PerforceTask
  * @see ClientTask
  */
 public class HaveTask extends ClientTask {
 
+    /** Have list snapshot file written instead of logging the have list. */
+    protected java.io.File snapshot = null;
+
     /**
      * Default constructor.
      */
@@ -26,6 +37,16 @@ public class HaveTask extends ClientTask {
         super();
     }
 
+    /**
+     * Sets the snapshot.
+     * 
+     * @param snapshot
+     *            the new snapshot
+     */
+    public void setSnapshot(java.io.File snapshot) {
+        this.snapshot = snapshot;
+    }
+
     /**
      * Execute the Perforce have command with file specs. Log the returned file
      * specs.
@@ -42,6 +63,10 @@ public class HaveTask extends ClientTask {
      */
     protected void execP4Command() throws BuildException {
         try {
+            if (snapshot != null) {
+                writeSnapshot();
+                return;
+            }
             fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
             retFileSpecs = getP4Client().haveList(fileSpecs);
             logFileSpecs(retFileSpecs);
@@ -53,4 +78,45 @@ public class HaveTask extends ClientTask {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
+
+    /**
+     * Write the have list of the files (or of the whole client) to the
+     * snapshot file. The files are given without revision specifiers; the
+     * digests are those of their have revisions. The changelist of the have
+     * list is unknown, so the snapshot can't be used to plan an incremental
+     * sync.
+     * 
+     * @throws Exception
+     *             the exception
+     */
+    protected void writeSnapshot() throws Exception {
+        String clientName = getP4Client().getName();
+        List<String> paths = new ArrayList<String>();
+        for (String path : getFiles()) {
+            if (path.indexOf('@') >= 0 || path.indexOf('#') >= 0) {
+                throw new BuildException(
+                        "Revision specifiers are not allowed with a snapshot: " //$NON-NLS-1$
+                                + path);
+            }
+            paths.add(path + "#have");
+        }
+        if (paths.isEmpty()) {
+            paths.add("//" + clientName + "/...#have");
+        }
+        List<HaveListSnapshot.Entry> entries = HaveListSnapshot.fetchHaveList(
+                getP4Server(), paths);
+        Date updated = getP4Client().getUpdated();
+        HaveListSnapshot.write(snapshot, clientName,
+                (updated != null) ? updated.getTime() : 0, -1, entries);
+        if (isLoggable(Project.MSG_INFO)) {
+            StringBuilder message = new StringBuilder();
+            message.append("haveSnapshot {" + LINE_SEPARATOR);
+            message.append(LINE_PADDING).append("file").append("=")
+                    .append(snapshot).append(LINE_SEPARATOR);
+            message.append(LINE_PADDING).append("entries").append("=")
+                    .append(entries.size()).append(LINE_SEPARATOR);
+            message.append("}" + LINE_SEPARATOR);
+            log(message.toString(), Project.MSG_INFO);
+        }
+    }
 }
@@ -0,0 +1,389 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import com.perforce.p4java.core.IChangelist.Type;
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.server.GetChangelistsOptions;
+import com.perforce.p4java.option.server.GetFileContentsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+/**
+ * Build or update a local trigram index of the text files of depot paths at a
+ * revision, such as a label or a changelist. </p>
+ *
+ * The files at the revision are listed with a streamed "p4 files" and
+ * compared with the files of an existing index of the same paths: only the
+ * files added or changed since the indexed revision are printed and indexed,
+ * over "threads" concurrent connections, and the files changed or removed are
+ * marked as deleted. The content is streamed from "p4 print" and never held
+ * in memory. The index is rebuilt if the paths differ, if updates have added
+ * too many segments, or if "rebuild" is true. The segments written by the
+ * build itself don't count, however large the depot. </p>
+ *
+ * The head revision is resolved to the highest submitted changelist, which
+ * is stored as the revision of the index and set to "revisionProperty", so
+ * the index never stands for content submitted after it was built. </p>
+ *
+ * Grep tasks with the "index" attribute answer searches of file specs at the
+ * indexed revision from the index, searching only the candidate files on the
+ * server. </p>
+ *
+ * @see PerforceTask
+ * @see ServerTask
+ * @see GrepTask
+ * @see TrigramIndex
+ */
+public class IndexTask extends ServerTask {
+
+    /** Number of segments added by updates above which the index is rebuilt. */
+    public static final int MAX_SEGMENTS = 16;
+
+    /** Default number of files printed concurrently per batch. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** The index directory. */
+    protected java.io.File index = null;
+
+    /** The revision specifier of the indexed files. */
+    protected String revision = "#head";
+
+    /** Number of threads and connections printing files. */
+    protected int threads = 4;
+
+    /** If true, the index is rebuilt from scratch. */
+    protected boolean rebuild = false;
+
+    /** Name of property to set to the revision specifier indexed. */
+    protected String revisionProperty = null;
+
+    /** Number of files indexed by this execution. */
+    protected int indexedFiles = 0;
+
+    /** Number of files unchanged since the indexed revision. */
+    protected int unchangedFiles = 0;
+
+    /** Number of files removed since the indexed revision. */
+    protected int removedFiles = 0;
+
+    /** The trigram collector of each thread. */
+    private ThreadLocal<TrigramIndex.TrigramCollector> collectors = new ThreadLocal<TrigramIndex.TrigramCollector>() {
+        protected TrigramIndex.TrigramCollector initialValue() {
+            return new TrigramIndex.TrigramCollector();
+        }
+    };
+
+    /**
+     * A file at the revision.
+     */
+    private static class IndexFile {
+
+        /** The depot path. */
+        private String depotPath;
+
+        /** The revision. */
+        private int revision;
+    }
+
+    /**
+     * Sets the index.
+     *
+     * @param index
+     *            the new index
+     */
+    public void setIndex(java.io.File index) {
+        this.index = index;
+    }
+
+    /**
+     * Sets the revision.
+     *
+     * @param revision
+     *            the new revision
+     */
+    public void setRevision(String revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * Sets the threads.
+     *
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the rebuild.
+     *
+     * @param rebuild
+     *            the new rebuild
+     */
+    public void setRebuild(boolean rebuild) {
+        this.rebuild = rebuild;
+    }
+
+    /**
+     * Sets the revision property.
+     *
+     * @param revisionProperty
+     *            the new revision property
+     */
+    public void setRevisionProperty(String revisionProperty) {
+        this.revisionProperty = revisionProperty;
+    }
+
+    /**
+     * Checks if a revision specifier names a fixed set of revisions. The
+     * head and have revisions, and "@now", change with later submits or syncs.
+     *
+     * @param rev
+     *            the revision specifier
+     * @return true, if the revision is fixed
+     */
+    public static boolean isFixedRevision(String rev) {
+        String lower = rev.toLowerCase();
+        return !(lower.equals("#head") || lower.equals("#have") //$NON-NLS-1$ //$NON-NLS-2$
+                || lower.equals("@now")); //$NON-NLS-1$
+    }
+
+    /**
+     * Build or update the index.
+     *
+     * @see PerforceTask#execP4Command()
+     */
+    protected void execP4Command() throws BuildException {
+        if (index == null) {
+            throw new BuildException("No index directory specified."); //$NON-NLS-1$
+        }
+        try {
+            indexedFiles = 0;
+            unchangedFiles = 0;
+            removedFiles = 0;
+            List<String> paths = Arrays.asList(getFiles());
+            if (paths.isEmpty()) {
+                throw new BuildException("No files specified."); //$NON-NLS-1$
+            }
+            for (String path : paths) {
+                if (path.indexOf('@') >= 0 || path.indexOf('#') >= 0) {
+                    throw new BuildException(
+                            "Use the revision attribute instead of revision specifiers: " //$NON-NLS-1$
+                                    + path);
+                }
+            }
+            String rev = (revision.startsWith("@") || revision
+                    .startsWith("#")) ? revision : "@" + revision;
+            if (!isFixedRevision(rev)) {
+                rev = resolveRevision(rev);
+            }
+            TrigramIndex trigramIndex = rebuild ? null : TrigramIndex
+                    .open(index);
+            if (trigramIndex == null || !trigramIndex.getPaths().equals(paths)
+                    || trigramIndex.getUpdateSegmentCount() >= MAX_SEGMENTS) {
+                log("Building index " + index, Project.MSG_VERBOSE); //$NON-NLS-1$
+                trigramIndex = TrigramIndex.create(index, paths);
+            }
+            Map<String, IndexFile> current = listFiles(paths, rev);
+            for (Map.Entry<String, Integer> entry : trigramIndex
+                    .getIndexedRevisions().entrySet()) {
+                IndexFile file = current.get(entry.getKey());
+                if (file != null && file.revision == entry.getValue()) {
+                    current.remove(entry.getKey());
+                    unchangedFiles++;
+                } else {
+                    trigramIndex.delete(entry.getKey());
+                    if (file == null) {
+                        removedFiles++;
+                    }
+                }
+            }
+            addFiles(trigramIndex, new ArrayList<IndexFile>(current.values()));
+            trigramIndex.commit(rev);
+            if (!isEmpty(revisionProperty)) {
+                getProject().setProperty(revisionProperty, rev);
+            }
+            logIndexSummary(trigramIndex);
+        } catch (P4JavaException e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (P4JavaError e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new BuildException(t.getLocalizedMessage(), t, getLocation());
+        }
+    }
+
+    /**
+     * Resolve a revision that changes with later submits to the highest
+     * submitted changelist, with "p4 changes -m1 -s submitted", so the index
+     * is stored at a fixed revision.
+     *
+     * @param rev
+     *            the revision specifier
+     * @return the changelist revision specifier
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private String resolveRevision(String rev) throws P4JavaException {
+        if (rev.equalsIgnoreCase("#have")) { //$NON-NLS-1$
+            throw new BuildException(
+                    "The have revision can't be indexed; use a label or changelist."); //$NON-NLS-1$
+        }
+        GetChangelistsOptions options = new GetChangelistsOptions();
+        options.setType(Type.SUBMITTED);
+        options.setMaxMostRecent(1);
+        List<IChangelistSummary> summaries = getP4Server().getChangelists(
+                null, options);
+        if (summaries == null || summaries.isEmpty()) {
+            throw new BuildException("No submitted changelist to index."); //$NON-NLS-1$
+        }
+        String resolved = "@" + summaries.get(0).getId();
+        log("Indexing " + rev + " at " + resolved, Project.MSG_VERBOSE); //$NON-NLS-1$ //$NON-NLS-2$
+        return resolved;
+    }
+
+    /**
+     * List the text files of the paths at the revision with a streamed "p4
+     * files".
+     *
+     * @param paths
+     *            the paths
+     * @param rev
+     *            the revision specifier
+     * @return the files by depot path
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private Map<String, IndexFile> listFiles(List<String> paths, String rev)
+            throws P4JavaException {
+        final IOptionsServer server = getP4Server();
+        final Map<String, IndexFile> files = new TreeMap<String, IndexFile>();
+        String[] specs = new String[paths.size()];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = paths.get(i) + rev;
+        }
+        server.execStreamingMapCommand("files", specs, null,
+                new IStreamingCallback() {
+                    public boolean startResults(int key) {
+                        return true;
+                    }
+
+                    public boolean endResults(int key) {
+                        return true;
+                    }
+
+                    public boolean handleResult(Map<String, Object> record,
+                            int key) throws P4JavaException {
+                        checkError(server, record);
+                        Object depotFile = record.get("depotFile");
+                        if (depotFile == null
+                                || ExportTask.isDeleted(record.get("action"))
+                                || !FileTypes.isTextual((String) record
+                                        .get("type"))) {
+                            return true;
+                        }
+                        IndexFile file = new IndexFile();
+                        file.depotPath = depotFile.toString();
+                        file.revision = Integer.parseInt(String.valueOf(record
+                                .get("rev")));
+                        files.put(file.depotPath, file);
+                        return true;
+                    }
+                }, 0);
+        return files;
+    }
+
+    /**
+     * Print and index files in batches; the files of a batch are printed
+     * concurrently.
+     *
+     * @param trigramIndex
+     *            the index
+     * @param files
+     *            the files
+     * @throws Exception
+     *             the exception
+     */
+    private void addFiles(TrigramIndex trigramIndex, List<IndexFile> files)
+            throws Exception {
+        TrigramIndex.SegmentWriter writer = trigramIndex
+                .newSegmentWriter(TrigramIndex.DEFAULT_SEGMENT_POSTINGS);
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        for (int start = 0; start < files.size(); start += size) {
+            List<IndexFile> batch = files.subList(start,
+                    Math.min(start + size, files.size()));
+            List<ServerJob<int[]>> jobs = new ArrayList<ServerJob<int[]>>();
+            for (final IndexFile file : batch) {
+                jobs.add(new ServerJob<int[]>() {
+                    public int[] run(IOptionsServer server) throws Exception {
+                        InputStream in = server.getFileContents(
+                                FileSpecBuilder.makeFileSpecList(file.depotPath
+                                        + "#" + file.revision),
+                                new GetFileContentsOptions(false, true));
+                        if (in == null) {
+                            throw new P4JavaException("Cannot print " //$NON-NLS-1$
+                                    + file.depotPath + "#" + file.revision);
+                        }
+                        try {
+                            return collectors.get().collect(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                });
+            }
+            List<int[]> trigrams = execParallel(jobs, threads);
+            for (int i = 0; i < batch.size(); i++) {
+                writer.add(batch.get(i).depotPath, batch.get(i).revision,
+                        trigrams.get(i));
+                indexedFiles++;
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Log the index summary.
+     *
+     * @param trigramIndex
+     *            the index
+     */
+    private void logIndexSummary(TrigramIndex trigramIndex) {
+        int messagePriority = Project.MSG_INFO;
+        if (!isLoggable(messagePriority)) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append("indexSummary {" + LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("revision").append("=")
+                .append(trigramIndex.getRevision()).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("indexed").append("=")
+                .append(indexedFiles).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("unchanged").append("=")
+                .append(unchangedFiles).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("removed").append("=")
+                .append(removedFiles).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("segments").append("=")
+                .append(trigramIndex.getSegmentCount()).append(LINE_SEPARATOR);
+        message.append("}" + LINE_SEPARATOR);
+        log(message.toString(), messagePriority);
+    }
+}
@@ -3,14 +3,35 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
+import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.core.IBranchMapping;
+import com.perforce.p4java.core.IBranchSpec;
 import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
 import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.impl.generic.core.file.FileSpec;
 import com.perforce.p4java.option.client.IntegrateFilesOptions;
+import com.perforce.p4java.server.IOptionsServer;
 
 /**
  * Open files for branching or merging. 'p4 integrate' stages change propagation
@@ -55,6 +76,23 @@ import com.perforce.p4java.option.client.IntegrateFilesOptions;
  * is attached to the toFile. See 'p4 help revisions' for help specifying
  * revisions. </p>
  * 
+ * Nested "target" elements integrate the source into several targets (each
+ * with its own "toFile" or "branch", and optionally "changelist") concurrently,
+ * over "threads" connections. If "chunked" is true, an integration from a
+ * "/..." source to a "/..." target is split by subdirectory into chunks of at
+ * most "maxFiles" source files (including deleted ones), which are
+ * integrated concurrently without the -m flag; the files directly inside a
+ * directory always form one chunk. The returned file specs are logged in the
+ * order of the targets and chunks. </p>
+ * 
+ * If "previewCache" is set and "showActionsOnly" is true, the preview of each
+ * integration is cached in that directory, keyed by the client, the source,
+ * target and branch, the options, and the head changelists of both sides (and
+ * the branch view, if any), as reported by one "p4 changes -m1" per side. When
+ * nothing was submitted to either side since, the cached file specs are
+ * returned without asking the server to compute the integration. Files opened
+ * in the workspace are not part of the key. </p>
+ * 
  * @see PerforceTask
  * @see ClientTask
  */
@@ -171,12 +209,129 @@ public class IntegrateTask extends ClientTask {
      */
     protected int maxFiles = 0;
 
+    /** Number of threads and connections integrating targets and chunks. */
+    protected int threads = 4;
+
+    /**
+     * If true, integrations are split by subdirectory into chunks of at most
+     * "maxFiles" source files.
+     */
+    protected boolean chunked = false;
+
+    /** The directory of the integration preview cache. */
+    protected java.io.File previewCache = null;
+
+    /** Collection of nested "target" elements. */
+    protected List<IntegrationTarget> targets = new ArrayList<IntegrationTarget>();
+
     /** Source file and revision specifier for the Perforce command. */
     protected IFileSpec fromFileSpec;
 
     /** Target file and revision specifier for the Perforce command. */
     protected IFileSpec toFileSpec;
 
+    /**
+     * Regular expression pattern matching a path ending with the "/..."
+     * wildcard and an optional revision specifier.
+     */
+    private static final Pattern RECURSIVE_PATH_PATTERN = Pattern
+            .compile("^(.*/)\\.\\.\\.([#@].*)?$"); //$NON-NLS-1$
+
+    /**
+     * This inner class is used for handling nested "target" elements.
+     */
+    public class IntegrationTarget {
+        /**
+         * Constructor to create a new instance of "target".
+         */
+        public IntegrationTarget() {
+        }
+
+        /** The "toFile" attribute inside the nested "target" element. */
+        private String toFile;
+
+        /** The "branch" attribute inside the nested "target" element. */
+        private String branch;
+
+        /** The "changelist" attribute inside the nested "target" element. */
+        private String changelist;
+
+        /**
+         * Sets the to file.
+         * 
+         * @param toFile
+         *            the new to file
+         */
+        public void setToFile(String toFile) {
+            this.toFile = toFile;
+        }
+
+        /**
+         * Gets the to file.
+         * 
+         * @return the to file
+         */
+        public String getToFile() {
+            return toFile;
+        }
+
+        /**
+         * Sets the branch.
+         * 
+         * @param branch
+         *            the new branch
+         */
+        public void setBranch(String branch) {
+            this.branch = branch;
+        }
+
+        /**
+         * Gets the branch.
+         * 
+         * @return the branch
+         */
+        public String getBranch() {
+            return branch;
+        }
+
+        /**
+         * Sets the changelist.
+         * 
+         * @param changelist
+         *            the new changelist
+         */
+        public void setChangelist(String changelist) {
+            this.changelist = changelist;
+        }
+
+        /**
+         * Gets the changelist.
+         * 
+         * @return the changelist
+         */
+        public String getChangelist() {
+            return changelist;
+        }
+    }
+
+    /**
+     * A single integrate command of a target.
+     */
+    private static class Chunk {
+
+        /** The source file and revision specifier. */
+        private String fromFile;
+
+        /** The target file and revision specifier. */
+        private String toFile;
+
+        /** The branch view. */
+        private String branch;
+
+        /** The options. */
+        private IntegrateFilesOptions options;
+    }
+
     /**
      * Default constructor.
      */
@@ -383,6 +538,49 @@ public class IntegrateTask extends ClientTask {
         ((IntegrateFilesOptions) commandOptions).setMaxFiles(maxFiles);
     }
 
+    /**
+     * Sets the threads.
+     * 
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the chunked.
+     * 
+     * @param chunked
+     *            the new chunked
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Sets the preview cache.
+     * 
+     * @param previewCache
+     *            the new preview cache
+     */
+    public void setPreviewCache(java.io.File previewCache) {
+        this.previewCache = previewCache;
+    }
+
+    /**
+     * This method is called by an Ant factory method to instantiates a
+     * collection of "target" nested elements. It saves the reference to the
+     * collection and returns it to Ant Core.
+     * 
+     * @return the target
+     */
+    public IntegrationTarget createTarget() {
+        IntegrationTarget target = new IntegrationTarget();
+        targets.add(target);
+        return target;
+    }
+
     /**
      * Gets the from file spec.
      * 
@@ -417,18 +615,564 @@ public class IntegrateTask extends ClientTask {
      */
     protected void execP4Command() throws BuildException {
         try {
+            if (!targets.isEmpty() || chunked) {
+                retFileSpecs = integrateParallel();
+                logFileSpecs(retFileSpecs);
+                return;
+            }
             fromFileSpec = new FileSpec(fromFile);
             toFileSpec = new FileSpec(toFile);
-            retFileSpecs = getP4Client().integrateFiles(fromFileSpec,
-                    toFileSpec, branch,
-                    ((IntegrateFilesOptions) commandOptions));
+            retFileSpecs = integrate(getP4Server(), getP4Client(), fromFile,
+                    toFile, branch, ((IntegrateFilesOptions) commandOptions));
             logFileSpecs(retFileSpecs);
         } catch (P4JavaException e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
         } catch (P4JavaError e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
         } catch (Throwable t) {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
+
+    /**
+     * Integrate the source into the targets concurrently. The chunks of all
+     * targets are planned first, one target per job, and then integrated.
+     * 
+     * @return the file specs, in the order of the targets and chunks
+     * @throws BuildException
+     *             the build exception
+     */
+    protected List<IFileSpec> integrateParallel() throws BuildException {
+        List<IntegrationTarget> all = new ArrayList<IntegrationTarget>();
+        if (toFile != null || branch != null) {
+            IntegrationTarget target = new IntegrationTarget();
+            target.setToFile(toFile);
+            target.setBranch(branch);
+            all.add(target);
+        }
+        all.addAll(targets);
+        List<ServerJob<List<Chunk>>> planJobs = new ArrayList<ServerJob<List<Chunk>>>();
+        for (final IntegrationTarget target : all) {
+            planJobs.add(new ServerJob<List<Chunk>>() {
+                public List<Chunk> run(IOptionsServer server) throws Exception {
+                    return planChunks(server, target);
+                }
+            });
+        }
+        List<ServerJob<List<IFileSpec>>> jobs = new ArrayList<ServerJob<List<IFileSpec>>>();
+        for (List<Chunk> chunks : execParallel(planJobs, threads)) {
+            for (final Chunk chunk : chunks) {
+                jobs.add(new ServerJob<List<IFileSpec>>() {
+                    public List<IFileSpec> run(IOptionsServer server)
+                            throws Exception {
+                        return integrate(server, server.getCurrentClient(),
+                                chunk.fromFile, chunk.toFile, chunk.branch,
+                                chunk.options);
+                    }
+                });
+            }
+        }
+        log("Integrating " + jobs.size() + " chunk(s) into " + all.size() //$NON-NLS-1$
+                + " target(s) with " + threads + " thread(s).", //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+        List<IFileSpec> merged = new ArrayList<IFileSpec>();
+        for (List<IFileSpec> result : execParallel(jobs, threads)) {
+            if (result != null) {
+                merged.addAll(result);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Plan the chunks of a target. Only an integration from a "/..." source to
+     * a "/..." target is chunked; any other is a single chunk.
+     * 
+     * @param server
+     *            the server
+     * @param target
+     *            the target
+     * @return the chunks
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<Chunk> planChunks(IOptionsServer server,
+            IntegrationTarget target) throws P4JavaException {
+        IntegrateFilesOptions base = (IntegrateFilesOptions) commandOptions;
+        int changelistId = (target.changelist != null) ? parseChangelist(target.changelist)
+                : base.getChangelistId();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        Matcher from = (fromFile != null) ? RECURSIVE_PATH_PATTERN
+                .matcher(fromFile) : null;
+        Matcher to = (target.toFile != null) ? RECURSIVE_PATH_PATTERN
+                .matcher(target.toFile) : null;
+        if (!chunked || base.getMaxFiles() <= 0 || from == null
+                || !from.matches() || to == null || !to.matches()) {
+            Chunk chunk = new Chunk();
+            chunk.fromFile = fromFile;
+            chunk.toFile = target.toFile;
+            chunk.branch = target.branch;
+            chunk.options = copyOptions(changelistId, base.getMaxFiles());
+            chunks.add(chunk);
+            return chunks;
+        }
+        IntegrateFilesOptions options = copyOptions(changelistId, 0);
+        String fromRev = (from.group(2) != null) ? from.group(2) : "";
+        String toRev = (to.group(2) != null) ? to.group(2) : "";
+        // The revision concerns the source, but may be attached to the target.
+        String sourceRev = (fromRev.length() > 0) ? fromRev : toRev;
+        chunkDirectory(server, from.group(1), fromRev, to.group(1), toRev,
+                sourceRev, target.branch, options, base.getMaxFiles(), chunks);
+        return chunks;
+    }
+
+    /**
+     * Split the integration of a directory into chunks of at most "maxFiles"
+     * source files: the directory itself if it is small enough, otherwise the
+     * files directly inside it and the chunks of its subdirectories.
+     * 
+     * @param server
+     *            the server
+     * @param fromDir
+     *            the source directory, ending with "/"
+     * @param fromRev
+     *            the revision specifier of the source, or ""
+     * @param toDir
+     *            the target directory, ending with "/"
+     * @param toRev
+     *            the revision specifier of the target, or ""
+     * @param sourceRev
+     *            the revision specifier of the source files, or ""
+     * @param branch
+     *            the branch view, or null
+     * @param options
+     *            the options of the chunks
+     * @param maxFiles
+     *            the maximum number of source files of a chunk
+     * @param chunks
+     *            the chunks
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private void chunkDirectory(IOptionsServer server, String fromDir,
+            String fromRev, String toDir, String toRev, String sourceRev,
+            String branch, IntegrateFilesOptions options, int maxFiles,
+            List<Chunk> chunks) throws P4JavaException {
+        if (countFiles(server, fromDir + "..." + sourceRev,
+                maxFiles + 1) <= maxFiles) {
+            chunks.add(newChunk(fromDir + "..." + fromRev, toDir + "..."
+                    + toRev, branch, options));
+            return;
+        }
+        chunks.add(newChunk(fromDir + "*" + fromRev, toDir + "*" + toRev,
+                branch, options));
+        // Directories with only deleted files are chunks too, so that their
+        // deletes are integrated.
+        Map<String, Object>[] results = server.execMapCmd("dirs",
+                new String[] { "-D", fromDir + "*" + sourceRev }, null);
+        if (results == null) {
+            return;
+        }
+        for (Map<String, Object> result : results) {
+            checkError(server, result);
+            Object subdir = result.get("dir");
+            if (subdir != null && subdir.toString().startsWith(fromDir)) {
+                String name = subdir.toString().substring(fromDir.length());
+                chunkDirectory(server, fromDir + name + "/", fromRev, toDir
+                        + name + "/", toRev, sourceRev, branch, options,
+                        maxFiles, chunks);
+            }
+        }
+    }
+
+    /**
+     * Count the files of a file spec with "p4 files -m", including the files
+     * deleted at the revision, up to a limit.
+     * 
+     * @param server
+     *            the server
+     * @param spec
+     *            the file spec
+     * @param limit
+     *            the maximum number of files counted
+     * @return the number of files, at most the limit
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private static int countFiles(IOptionsServer server, String spec,
+            int limit) throws P4JavaException {
+        Map<String, Object>[] results = server.execMapCmd("files",
+                new String[] { "-m", String.valueOf(limit), spec }, null);
+        int count = 0;
+        if (results != null) {
+            for (Map<String, Object> result : results) {
+                checkError(server, result);
+                if (result.get("depotFile") != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Create a chunk.
+     * 
+     * @param fromFile
+     *            the source file and revision specifier
+     * @param toFile
+     *            the target file and revision specifier
+     * @param branch
+     *            the branch view, or null
+     * @param options
+     *            the options
+     * @return the chunk
+     */
+    private static Chunk newChunk(String fromFile, String toFile,
+            String branch, IntegrateFilesOptions options) {
+        Chunk chunk = new Chunk();
+        chunk.fromFile = fromFile;
+        chunk.toFile = toFile;
+        chunk.branch = branch;
+        chunk.options = options;
+        return chunk;
+    }
+
+    /**
+     * Copy the integrate options with another changelist and file limit.
+     * 
+     * @param changelistId
+     *            the changelist id
+     * @param maxFiles
+     *            the max files
+     * @return the options
+     */
+    private IntegrateFilesOptions copyOptions(int changelistId, int maxFiles) {
+        IntegrateFilesOptions o = (IntegrateFilesOptions) commandOptions;
+        return new IntegrateFilesOptions(changelistId,
+                o.isBidirectionalInteg(), o.isIntegrateAroundDeletedRevs(),
+                o.isRebranchSourceAfterDelete(), o.isDeleteTargetAfterDelete(),
+                o.isIntegrateAllAfterReAdd(), o.isForceIntegration(),
+                o.isUseHaveRev(), o.isDoBaselessMerge(),
+                o.isDisplayBaseDetails(), o.isShowActionsOnly(),
+                o.isReverseMapping(), o.isPropagateType(),
+                o.isDontCopyToClient(), maxFiles);
+    }
+
+    /**
+     * Integrate, or return the cached preview if the integration only shows
+     * the actions and neither side moved since it was cached.
+     * 
+     * @param server
+     *            the server
+     * @param client
+     *            the client
+     * @param from
+     *            the source file and revision specifier, or null
+     * @param to
+     *            the target file and revision specifier, or null
+     * @param branchName
+     *            the branch view, or null
+     * @param options
+     *            the options
+     * @return the file specs
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private List<IFileSpec> integrate(IOptionsServer server, IClient client,
+            String from, String to, String branchName,
+            IntegrateFilesOptions options) throws P4JavaException, IOException {
+        IFileSpec fromSpec = (from != null) ? new FileSpec(from) : null;
+        IFileSpec toSpec = (to != null) ? new FileSpec(to) : null;
+        if (previewCache == null || !options.isShowActionsOnly()) {
+            return client.integrateFiles(fromSpec, toSpec, branchName, options);
+        }
+        StringBuilder spec = new StringBuilder();
+        spec.append("client=").append(client.getName()).append('\n');
+        spec.append("from=").append(from).append('\n');
+        spec.append("to=").append(to).append('\n');
+        spec.append("branch=").append(branchName).append('\n');
+        spec.append("options=").append(options.processOptions(server))
+                .append('\n');
+        java.io.File file = new java.io.File(previewCache, toHexDigest(spec
+                .toString()) + ".properties");
+        String key = spec.toString() + getHeads(server, from, to, branchName);
+        List<IFileSpec> cached = readPreview(file, key);
+        if (cached != null) {
+            log("Integration preview from cache " + file, Project.MSG_VERBOSE); //$NON-NLS-1$
+            return cached;
+        }
+        List<IFileSpec> fileSpecs = client.integrateFiles(fromSpec, toSpec,
+                branchName, options);
+        writePreview(file, key, fileSpecs);
+        return fileSpecs;
+    }
+
+    /**
+     * Gets the head changelists of the source and target sides of an
+     * integration, with one "p4 changes -m1" per side. The view of a branch
+     * is included, since its mappings define the sides.
+     * 
+     * @param server
+     *            the server
+     * @param from
+     *            the source file and revision specifier, or null
+     * @param to
+     *            the target file and revision specifier, or null
+     * @param branchName
+     *            the branch view, or null
+     * @return the heads, as a part of the cache key
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private String getHeads(IOptionsServer server, String from, String to,
+            String branchName) throws P4JavaException {
+        List<String> sources = new ArrayList<String>();
+        List<String> targets = new ArrayList<String>();
+        StringBuilder heads = new StringBuilder();
+        if (from != null) {
+            sources.add(from);
+        }
+        if (to != null) {
+            // The revision of the target concerns the source.
+            targets.add(to.replaceFirst("[#@].*$", ""));
+        }
+        if (branchName != null) {
+            IBranchSpec branchSpec = server.getBranchSpec(branchName);
+            if (branchSpec != null && branchSpec.getBranchView() != null) {
+                for (IBranchMapping mapping : branchSpec.getBranchView()
+                        .getEntryList()) {
+                    heads.append("view=").append(mapping.toString(" ", true))
+                            .append('\n');
+                    if (mapping.getType() != IMapEntry.EntryType.EXCLUDE) {
+                        sources.add(mapping.getLeft());
+                        targets.add(mapping.getRight());
+                    }
+                }
+            }
+        }
+        heads.append("fromHead=").append(getHead(server, sources)).append('\n');
+        heads.append("toHead=").append(getHead(server, targets)).append('\n');
+        return heads.toString();
+    }
+
+    /**
+     * Gets the most recent submitted changelist of file specs.
+     * 
+     * @param server
+     *            the server
+     * @param specs
+     *            the file specs
+     * @return the changelist, or "0" if none
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private static String getHead(IOptionsServer server, List<String> specs)
+            throws P4JavaException {
+        if (specs.isEmpty()) {
+            return "0";
+        }
+        List<String> args = new ArrayList<String>();
+        args.add("-m1");
+        args.add("-s");
+        args.add("submitted");
+        args.addAll(specs);
+        Map<String, Object>[] results = server.execMapCmd("changes",
+                args.toArray(new String[args.size()]), null);
+        if (results != null) {
+            for (Map<String, Object> result : results) {
+                checkError(server, result);
+                if (result.get("change") != null) {
+                    return result.get("change").toString();
+                }
+            }
+        }
+        return "0";
+    }
+
+    /**
+     * Read a cached preview.
+     * 
+     * @param file
+     *            the cache file
+     * @param key
+     *            the cache key
+     * @return the file specs, or null if not cached with the key
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static List<IFileSpec> readPreview(java.io.File file, String key)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        if (!key.equals(properties.getProperty("key"))) {
+            return null;
+        }
+        int count = Integer.parseInt(properties.getProperty("count", "0"));
+        List<IFileSpec> fileSpecs = new ArrayList<IFileSpec>(count);
+        for (int i = 0; i < count; i++) {
+            String prefix = i + ".";
+            FileSpec fileSpec = new FileSpec();
+            fileSpec.setOpStatus(FileSpecOpStatus.valueOf(properties
+                    .getProperty(prefix + "opStatus")));
+            fileSpec.setStatusMessage(properties.getProperty(prefix
+                    + "statusMessage"));
+            fileSpec.setDepotPath(properties.getProperty(prefix + "depotPath"));
+            fileSpec.setClientPath(properties
+                    .getProperty(prefix + "clientPath"));
+            fileSpec.setFromFile(properties.getProperty(prefix + "fromFile"));
+            fileSpec.setToFile(properties.getProperty(prefix + "toFile"));
+            fileSpec.setFileType(properties.getProperty(prefix + "fileType"));
+            String action = properties.getProperty(prefix + "action");
+            if (action != null) {
+                fileSpec.setAction(FileAction.valueOf(action));
+            }
+            fileSpec.setStartRevision(getInt(properties, prefix
+                    + "startRevision"));
+            fileSpec.setEndRevision(getInt(properties, prefix + "endRevision"));
+            fileSpec.setStartFromRev(getInt(properties, prefix
+                    + "startFromRev"));
+            fileSpec.setEndFromRev(getInt(properties, prefix + "endFromRev"));
+            fileSpec.setChangelistId(getInt(properties, prefix
+                    + "changelistId"));
+            fileSpecs.add(fileSpec);
+        }
+        return fileSpecs;
+    }
+
+    /**
+     * Write a preview to the cache, replacing the file atomically.
+     * 
+     * @param file
+     *            the cache file
+     * @param key
+     *            the cache key
+     * @param fileSpecs
+     *            the file specs
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static void writePreview(java.io.File file, String key,
+            List<IFileSpec> fileSpecs) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("key", key);
+        int count = 0;
+        if (fileSpecs != null) {
+            for (IFileSpec fileSpec : fileSpecs) {
+                if (fileSpec == null) {
+                    continue;
+                }
+                String prefix = count++ + ".";
+                FileSpecOpStatus opStatus = (fileSpec.getOpStatus() != null) ? fileSpec
+                        .getOpStatus() : FileSpecOpStatus.UNKNOWN;
+                properties.setProperty(prefix + "opStatus", opStatus.name());
+                setString(properties, prefix + "statusMessage",
+                        fileSpec.getStatusMessage());
+                setString(properties, prefix + "depotPath",
+                        fileSpec.getDepotPathString());
+                setString(properties, prefix + "clientPath",
+                        fileSpec.getClientPathString());
+                setString(properties, prefix + "fromFile",
+                        fileSpec.getFromFile());
+                setString(properties, prefix + "toFile", fileSpec.getToFile());
+                setString(properties, prefix + "fileType",
+                        fileSpec.getFileType());
+                if (fileSpec.getAction() != null) {
+                    properties.setProperty(prefix + "action", fileSpec
+                            .getAction().name());
+                }
+                properties.setProperty(prefix + "startRevision",
+                        String.valueOf(fileSpec.getStartRevision()));
+                properties.setProperty(prefix + "endRevision",
+                        String.valueOf(fileSpec.getEndRevision()));
+                properties.setProperty(prefix + "startFromRev",
+                        String.valueOf(fileSpec.getStartFromRev()));
+                properties.setProperty(prefix + "endFromRev",
+                        String.valueOf(fileSpec.getEndFromRev()));
+                properties.setProperty(prefix + "changelistId",
+                        String.valueOf(fileSpec.getChangelistId()));
+            }
+        }
+        properties.setProperty("count", String.valueOf(count));
+        java.io.File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+        }
+        java.io.File tmp = java.io.File.createTempFile(file.getName(), ".tmp",
+                parent);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, "Integration preview"); //$NON-NLS-1$
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file); //$NON-NLS-1$
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Set a property, if the value is not null.
+     * 
+     * @param properties
+     *            the properties
+     * @param name
+     *            the name
+     * @param value
+     *            the value, or null
+     */
+    private static void setString(Properties properties, String name,
+            String value) {
+        if (value != null) {
+            properties.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Gets an integer property.
+     * 
+     * @param properties
+     *            the properties
+     * @param name
+     *            the name
+     * @return the value, or -1 if not set
+     */
+    private static int getInt(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        return (value != null) ? Integer.parseInt(value) : -1;
+    }
+
+    /**
+     * Gets the hex MD5 digest of a string, naming its cache file.
+     * 
+     * @param value
+     *            the string
+     * @return the hex digest
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static String toHexDigest(String value) throws IOException {
+        try {
+            return FileDigester.toHex(MessageDigest.getInstance("MD5").digest(
+                    value.getBytes("UTF-8")));
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
 }
@@ -0,0 +1,721 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line-based diff of two texts in the JVM, in the output formats of "p4
+ * diff2". </p>
+ *
+ * The changes are computed with Myers' O(ND) algorithm, in linear space by
+ * recursively splitting the texts at the middle snake, after trimming their
+ * common prefix and suffix. Lines are compared after the whitespace and line
+ * end normalization of the "-db", "-dw" and "-dl" options; the output shows
+ * the original lines. </p>
+ *
+ * Texts are read as ISO-8859-1, so any byte content is written back
+ * unchanged. </p>
+ *
+ * @see Diff2Task
+ */
+public class LocalDiff {
+
+    /** Default number of context lines. */
+    public static final int DEFAULT_CONTEXT = 3;
+
+    /** The line separator of the output. */
+    private static final String NL = "\n";
+
+    /** If true, changes in the amount of whitespace are ignored. */
+    private boolean ignoreWhitespaceChanges;
+
+    /** If true, all whitespace is ignored. */
+    private boolean ignoreWhitespace;
+
+    /** If true, line ends are ignored. */
+    private boolean ignoreLineEndings;
+
+    /** Line ids of the first text. */
+    private int[] a;
+
+    /** Line ids of the second text. */
+    private int[] b;
+
+    /** Changed lines of the first text. */
+    private boolean[] changedA;
+
+    /** Changed lines of the second text. */
+    private boolean[] changedB;
+
+    /**
+     * A change: lines of the first text replaced by lines of the second text.
+     * Either side may be empty.
+     */
+    public static class Change {
+
+        /** The first changed line of the first text (0-based). */
+        private int start1;
+
+        /** The number of changed lines of the first text. */
+        private int length1;
+
+        /** The first changed line of the second text (0-based). */
+        private int start2;
+
+        /** The number of changed lines of the second text. */
+        private int length2;
+
+        /**
+         * Instantiates a new change.
+         *
+         * @param start1
+         *            the start in the first text
+         * @param length1
+         *            the length in the first text
+         * @param start2
+         *            the start in the second text
+         * @param length2
+         *            the length in the second text
+         */
+        public Change(int start1, int length1, int start2, int length2) {
+            this.start1 = start1;
+            this.length1 = length1;
+            this.start2 = start2;
+            this.length2 = length2;
+        }
+
+        /**
+         * Gets the start in the first text.
+         *
+         * @return the start1
+         */
+        public int getStart1() {
+            return start1;
+        }
+
+        /**
+         * Gets the length in the first text.
+         *
+         * @return the length1
+         */
+        public int getLength1() {
+            return length1;
+        }
+
+        /**
+         * Gets the start in the second text.
+         *
+         * @return the start2
+         */
+        public int getStart2() {
+            return start2;
+        }
+
+        /**
+         * Gets the length in the second text.
+         *
+         * @return the length2
+         */
+        public int getLength2() {
+            return length2;
+        }
+    }
+
+    /**
+     * Instantiates a new local diff.
+     *
+     * @param ignoreWhitespaceChanges
+     *            if true, changes in the amount of whitespace are ignored
+     *            (-db)
+     * @param ignoreWhitespace
+     *            if true, all whitespace is ignored (-dw)
+     * @param ignoreLineEndings
+     *            if true, line ends are ignored (-dl)
+     */
+    public LocalDiff(boolean ignoreWhitespaceChanges, boolean ignoreWhitespace,
+            boolean ignoreLineEndings) {
+        this.ignoreWhitespaceChanges = ignoreWhitespaceChanges;
+        this.ignoreWhitespace = ignoreWhitespace;
+        this.ignoreLineEndings = ignoreLineEndings;
+    }
+
+    /**
+     * Read the lines of a file, without the LF line ends.
+     *
+     * @param file
+     *            the file
+     * @return the lines
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            StringBuilder line = new StringBuilder();
+            boolean pending = false;
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    lines.add(line.toString());
+                    line.setLength(0);
+                    pending = false;
+                } else {
+                    line.append((char) c);
+                    pending = true;
+                }
+            }
+            if (pending) {
+                lines.add(line.toString());
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Compute the changes between two texts.
+     *
+     * @param lines1
+     *            the lines of the first text
+     * @param lines2
+     *            the lines of the second text
+     * @return the changes, in order
+     */
+    public List<Change> diff(List<String> lines1, List<String> lines2) {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        a = toIds(lines1, ids);
+        b = toIds(lines2, ids);
+        changedA = new boolean[a.length];
+        changedB = new boolean[b.length];
+        compare(0, a.length, 0, b.length);
+        List<Change> changes = new ArrayList<Change>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !changedA[i] && !changedB[j]) {
+                i++;
+                j++;
+                continue;
+            }
+            int i0 = i;
+            int j0 = j;
+            while (i < a.length && changedA[i]) {
+                i++;
+            }
+            while (j < b.length && changedB[j]) {
+                j++;
+            }
+            changes.add(new Change(i0, i - i0, j0, j - j0));
+        }
+        a = null;
+        b = null;
+        changedA = null;
+        changedB = null;
+        return changes;
+    }
+
+    /**
+     * Map normalized lines to ids.
+     *
+     * @param lines
+     *            the lines
+     * @param ids
+     *            the ids of the normalized lines seen so far
+     * @return the line ids
+     */
+    private int[] toIds(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            String key = normalize(lines.get(i));
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Normalize a line for comparison.
+     *
+     * @param line
+     *            the line
+     * @return the normalized line
+     */
+    private String normalize(String line) {
+        String key = line;
+        if (ignoreLineEndings && key.endsWith("\r")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        if (!ignoreWhitespace && !ignoreWhitespaceChanges) {
+            return key;
+        }
+        StringBuilder normalized = new StringBuilder(key.length());
+        boolean space = false;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == ' ' || c == '\t' || (c == '\r' && i == key.length() - 1)) {
+                space = true;
+                continue;
+            }
+            if (space && ignoreWhitespaceChanges && !ignoreWhitespace) {
+                normalized.append(' ');
+            }
+            space = false;
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Mark the changed lines of a range of both texts.
+     *
+     * @param xoff
+     *            the start in the first text
+     * @param xlim
+     *            the end in the first text
+     * @param yoff
+     *            the start in the second text
+     * @param ylim
+     *            the end in the second text
+     */
+    private void compare(int xoff, int xlim, int yoff, int ylim) {
+        while (xoff < xlim && yoff < ylim && a[xoff] == b[yoff]) {
+            xoff++;
+            yoff++;
+        }
+        while (xlim > xoff && ylim > yoff && a[xlim - 1] == b[ylim - 1]) {
+            xlim--;
+            ylim--;
+        }
+        if (xoff == xlim) {
+            for (int y = yoff; y < ylim; y++) {
+                changedB[y] = true;
+            }
+        } else if (yoff == ylim) {
+            for (int x = xoff; x < xlim; x++) {
+                changedA[x] = true;
+            }
+        } else {
+            int[] split = middleSnake(xoff, xlim, yoff, ylim);
+            if (split == null) {
+                for (int x = xoff; x < xlim; x++) {
+                    changedA[x] = true;
+                }
+                for (int y = yoff; y < ylim; y++) {
+                    changedB[y] = true;
+                }
+            } else {
+                compare(xoff, split[0], yoff, split[1]);
+                compare(split[0], xlim, split[1], ylim);
+            }
+        }
+    }
+
+    /**
+     * Find a point on an optimal edit path through the middle of a range by
+     * searching forward and backward at once.
+     *
+     * @param xoff
+     *            the start in the first text
+     * @param xlim
+     *            the end in the first text
+     * @param yoff
+     *            the start in the second text
+     * @param ylim
+     *            the end in the second text
+     * @return the split point {x, y}, or null if the ranges have nothing in
+     *         common
+     */
+    private int[] middleSnake(int xoff, int xlim, int yoff, int ylim) {
+        int n = xlim - xoff;
+        int m = ylim - yoff;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        int[] v1 = new int[length];
+        int[] v2 = new int[length];
+        for (int i = 0; i < length; i++) {
+            v1[i] = -1;
+            v2[i] = -1;
+        }
+        v1[offset + 1] = 0;
+        v2[offset + 1] = 0;
+        int delta = n - m;
+        boolean front = (delta % 2 != 0);
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < maxD; d++) {
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1offset = offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1offset - 1] < v1[k1offset + 1])) {
+                    x1 = v1[k1offset + 1];
+                } else {
+                    x1 = v1[k1offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[xoff + x1] == b[yoff + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1offset] = x1;
+                if (x1 > n) {
+                    k1end += 2;
+                } else if (y1 > m) {
+                    k1start += 2;
+                } else if (front) {
+                    int k2offset = offset + delta - k1;
+                    if (k2offset >= 0 && k2offset < length
+                            && v2[k2offset] != -1 && x1 >= n - v2[k2offset]) {
+                        return new int[] { xoff + x1, yoff + y1 };
+                    }
+                }
+            }
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2offset = offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2offset - 1] < v2[k2offset + 1])) {
+                    x2 = v2[k2offset + 1];
+                } else {
+                    x2 = v2[k2offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m
+                        && a[xoff + n - x2 - 1] == b[yoff + m - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1offset = offset + delta - k2;
+                    if (k1offset >= 0 && k1offset < length
+                            && v1[k1offset] != -1) {
+                        int x1 = v1[k1offset];
+                        int y1 = offset + x1 - k1offset;
+                        if (x1 >= n - x2) {
+                            return new int[] { xoff + x1, yoff + y1 };
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Format changes in the default "p4 diff2" format.
+     *
+     * @param lines1
+     *            the lines of the first text
+     * @param lines2
+     *            the lines of the second text
+     * @param changes
+     *            the changes
+     * @param out
+     *            the output
+     */
+    public static void formatNormal(List<String> lines1, List<String> lines2,
+            List<Change> changes, StringBuilder out) {
+        for (Change change : changes) {
+            if (change.length1 == 0) {
+                out.append(change.start1).append('a')
+                        .append(range(change.start2, change.length2));
+            } else if (change.length2 == 0) {
+                out.append(range(change.start1, change.length1))
+                        .append('d').append(change.start2);
+            } else {
+                out.append(range(change.start1, change.length1))
+                        .append('c')
+                        .append(range(change.start2, change.length2));
+            }
+            out.append(NL);
+            appendLines(out, "< ", lines1, change.start1, change.length1);
+            if (change.length1 > 0 && change.length2 > 0) {
+                out.append("---").append(NL);
+            }
+            appendLines(out, "> ", lines2, change.start2, change.length2);
+        }
+    }
+
+    /**
+     * Format changes in the RCS format (-dn).
+     *
+     * @param lines2
+     *            the lines of the second text
+     * @param changes
+     *            the changes
+     * @param out
+     *            the output
+     */
+    public static void formatRcs(List<String> lines2, List<Change> changes,
+            StringBuilder out) {
+        for (Change change : changes) {
+            if (change.length1 > 0) {
+                out.append('d').append(change.start1 + 1).append(' ')
+                        .append(change.length1).append(NL);
+            }
+            if (change.length2 > 0) {
+                out.append('a').append(change.start1 + change.length1)
+                        .append(' ').append(change.length2).append(NL);
+                appendLines(out, "", lines2, change.start2, change.length2);
+            }
+        }
+    }
+
+    /**
+     * Format the summary of changes (-ds).
+     *
+     * @param changes
+     *            the changes
+     * @param out
+     *            the output
+     */
+    public static void formatSummary(List<Change> changes, StringBuilder out) {
+        int addChunks = 0;
+        int addLines = 0;
+        int deleteChunks = 0;
+        int deleteLines = 0;
+        int changeChunks = 0;
+        int changeLines1 = 0;
+        int changeLines2 = 0;
+        for (Change change : changes) {
+            if (change.length1 == 0) {
+                addChunks++;
+                addLines += change.length2;
+            } else if (change.length2 == 0) {
+                deleteChunks++;
+                deleteLines += change.length1;
+            } else {
+                changeChunks++;
+                changeLines1 += change.length1;
+                changeLines2 += change.length2;
+            }
+        }
+        out.append("add ").append(addChunks).append(" chunks ")
+                .append(addLines).append(" lines").append(NL);
+        out.append("deleted ").append(deleteChunks).append(" chunks ")
+                .append(deleteLines).append(" lines").append(NL);
+        out.append("changed ").append(changeChunks).append(" chunks ")
+                .append(changeLines1).append(" / ").append(changeLines2)
+                .append(" lines").append(NL);
+    }
+
+    /**
+     * Format changes in the unified format (-du).
+     *
+     * @param lines1
+     *            the lines of the first text
+     * @param lines2
+     *            the lines of the second text
+     * @param changes
+     *            the changes
+     * @param context
+     *            the number of context lines
+     * @param out
+     *            the output
+     */
+    public static void formatUnified(List<String> lines1, List<String> lines2,
+            List<Change> changes, int context, StringBuilder out) {
+        for (List<Change> hunk : groupHunks(changes, context)) {
+            Change first = hunk.get(0);
+            Change last = hunk.get(hunk.size() - 1);
+            int start1 = Math.max(0, first.start1 - context);
+            int end1 = Math.min(lines1.size(), last.start1 + last.length1
+                    + context);
+            int start2 = Math.max(0, first.start2 - context);
+            int end2 = Math.min(lines2.size(), last.start2 + last.length2
+                    + context);
+            out.append("@@ -").append(unifiedRange(start1, end1 - start1))
+                    .append(" +").append(unifiedRange(start2, end2 - start2))
+                    .append(" @@").append(NL);
+            int line1 = start1;
+            for (Change change : hunk) {
+                appendLines(out, " ", lines1, line1, change.start1 - line1);
+                appendLines(out, "-", lines1, change.start1, change.length1);
+                appendLines(out, "+", lines2, change.start2, change.length2);
+                line1 = change.start1 + change.length1;
+            }
+            appendLines(out, " ", lines1, line1, end1 - line1);
+        }
+    }
+
+    /**
+     * Format changes in the context format (-dc).
+     *
+     * @param lines1
+     *            the lines of the first text
+     * @param lines2
+     *            the lines of the second text
+     * @param changes
+     *            the changes
+     * @param context
+     *            the number of context lines
+     * @param out
+     *            the output
+     */
+    public static void formatContext(List<String> lines1, List<String> lines2,
+            List<Change> changes, int context, StringBuilder out) {
+        for (List<Change> hunk : groupHunks(changes, context)) {
+            Change first = hunk.get(0);
+            Change last = hunk.get(hunk.size() - 1);
+            int start1 = Math.max(0, first.start1 - context);
+            int end1 = Math.min(lines1.size(), last.start1 + last.length1
+                    + context);
+            int start2 = Math.max(0, first.start2 - context);
+            int end2 = Math.min(lines2.size(), last.start2 + last.length2
+                    + context);
+            boolean deletes = false;
+            boolean adds = false;
+            for (Change change : hunk) {
+                deletes |= change.length1 > 0;
+                adds |= change.length2 > 0;
+            }
+            out.append("***************").append(NL);
+            out.append("*** ").append(contextRange(start1, end1))
+                    .append(" ****").append(NL);
+            if (deletes) {
+                int line1 = start1;
+                for (Change change : hunk) {
+                    appendLines(out, "  ", lines1, line1, change.start1
+                            - line1);
+                    appendLines(out, (change.length2 > 0) ? "! " : "- ",
+                            lines1, change.start1, change.length1);
+                    line1 = change.start1 + change.length1;
+                }
+                appendLines(out, "  ", lines1, line1, end1 - line1);
+            }
+            out.append("--- ").append(contextRange(start2, end2))
+                    .append(" ----").append(NL);
+            if (adds) {
+                int line2 = start2;
+                for (Change change : hunk) {
+                    appendLines(out, "  ", lines2, line2, change.start2
+                            - line2);
+                    appendLines(out, (change.length1 > 0) ? "! " : "+ ",
+                            lines2, change.start2, change.length2);
+                    line2 = change.start2 + change.length2;
+                }
+                appendLines(out, "  ", lines2, line2, end2 - line2);
+            }
+        }
+    }
+
+    /**
+     * Group changes into hunks whose context lines overlap.
+     *
+     * @param changes
+     *            the changes
+     * @param context
+     *            the number of context lines
+     * @return the hunks
+     */
+    private static List<List<Change>> groupHunks(List<Change> changes,
+            int context) {
+        List<List<Change>> hunks = new ArrayList<List<Change>>();
+        List<Change> hunk = null;
+        int end = 0;
+        for (Change change : changes) {
+            if (hunk == null || change.start1 - end > 2 * context) {
+                hunk = new ArrayList<Change>();
+                hunks.add(hunk);
+            }
+            hunk.add(change);
+            end = change.start1 + change.length1;
+        }
+        return hunks;
+    }
+
+    /**
+     * Format a 1-based line range of the normal format.
+     *
+     * @param start
+     *            the 0-based start
+     * @param length
+     *            the length
+     * @return the range
+     */
+    private static String range(int start, int length) {
+        if (length == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (start + 1) + "," + (start + length);
+    }
+
+    /**
+     * Format a line range of the unified format: the 1-based start and the
+     * length, or the line before an empty range.
+     *
+     * @param start
+     *            the 0-based start
+     * @param length
+     *            the length
+     * @return the range
+     */
+    private static String unifiedRange(int start, int length) {
+        if (length == 1) {
+            return String.valueOf(start + 1);
+        }
+        if (length == 0) {
+            return start + ",0";
+        }
+        return (start + 1) + "," + length;
+    }
+
+    /**
+     * Format a 1-based line range of the context format.
+     *
+     * @param start
+     *            the 0-based start
+     * @param end
+     *            the 0-based end (exclusive)
+     * @return the range
+     */
+    private static String contextRange(int start, int end) {
+        if (end - start <= 1) {
+            return String.valueOf(end);
+        }
+        return (start + 1) + "," + end;
+    }
+
+    /**
+     * Append prefixed lines.
+     *
+     * @param out
+     *            the output
+     * @param prefix
+     *            the prefix
+     * @param lines
+     *            the lines
+     * @param start
+     *            the first line
+     * @param length
+     *            the number of lines
+     */
+    private static void appendLines(StringBuilder out, String prefix,
+            List<String> lines, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            out.append(prefix).append(lines.get(i)).append(NL);
+        }
+    }
+}
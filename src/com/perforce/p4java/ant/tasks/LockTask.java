@@ -3,10 +3,12 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.util.List;
+
 import org.apache.tools.ant.BuildException;
 
 import com.perforce.p4java.core.IChangelist;
-import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.option.client.LockFilesOptions;
@@ -66,10 +68,13 @@ public class LockTask extends ClientTask {
      */
     protected void execP4Command() throws BuildException {
         try {
-            fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
-            retFileSpecs = getP4Client().lockFiles(fileSpecs,
-                    ((LockFilesOptions) commandOptions));
-            logFileSpecs(retFileSpecs);
+            execFileSpecCommand(new FileSpecCommand() {
+                public List<IFileSpec> exec(List<IFileSpec> fileSpecs)
+                        throws P4JavaException {
+                    return getP4Client().lockFiles(fileSpecs,
+                            (LockFilesOptions) commandOptions);
+                }
+            });
         } catch (P4JavaException e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
         } catch (P4JavaError e) {
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+
+import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.impl.generic.client.ClientView;
+import com.perforce.p4java.impl.mapbased.client.Client;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Build-scoped cache of Perforce client workspace specs. </p>
+ *
+ * Client specs are keyed by server address and client name. Tasks get a copy
+ * of the cached spec bound to their own server connection, so the cached spec
+ * is never modified or tied to a connection that has been closed. The cache
+ * doesn't see changes made to a client spec during the build; they are only
+ * picked up if cached specs are validated against the update time reported
+ * by the server. </p>
+ *
+ * @see ClientTask
+ */
+public class PerforceClientCache {
+
+    /** Project reference id of the build-scoped client cache. */
+    public static final String REFERENCE_ID = "p4.client.cache";
+
+    /** Lock used for creating the cache of a project. */
+    private static final Object CACHE_LOCK = new Object();
+
+    /** Cached client specs by server address and client name. */
+    private Map<String, IClient> clients = new HashMap<String, IClient>();
+
+    /**
+     * Instantiates a new client cache.
+     */
+    protected PerforceClientCache() {
+    }
+
+    /**
+     * Gets the client cache of the project. Creates the cache and saves it as
+     * a project reference if it doesn't exist yet.
+     *
+     * @param project
+     *            the project
+     * @return the client cache
+     */
+    public static PerforceClientCache getInstance(Project project) {
+        synchronized (CACHE_LOCK) {
+            Object ref = project.getReference(REFERENCE_ID);
+            if (ref instanceof PerforceClientCache) {
+                return (PerforceClientCache) ref;
+            }
+            PerforceClientCache cache = new PerforceClientCache();
+            project.addReference(REFERENCE_ID, cache);
+            return cache;
+        }
+    }
+
+    /**
+     * Make the cache key of a client spec.
+     *
+     * @param serverAddress
+     *            the server address
+     * @param clientName
+     *            the client name
+     * @return the key
+     */
+    public static String makeKey(String serverAddress, String clientName) {
+        return serverAddress + "|" + clientName;
+    }
+
+    /**
+     * Gets a copy of a cached client spec bound to the server. Returns null if
+     * the client spec is not cached.
+     *
+     * @param key
+     *            the key
+     * @param server
+     *            the server
+     * @return the client, or null
+     */
+    public synchronized IClient getClient(String key, IOptionsServer server) {
+        IClient cached = clients.get(key);
+        return (cached != null) ? copy(cached, server) : null;
+    }
+
+    /**
+     * Gets the update time of a cached client spec.
+     *
+     * @param key
+     *            the key
+     * @return the update time, or null
+     */
+    public synchronized Date getUpdated(String key) {
+        IClient cached = clients.get(key);
+        return (cached != null) ? cached.getUpdated() : null;
+    }
+
+    /**
+     * Cache a copy of a client spec retrieved from the server.
+     *
+     * @param key
+     *            the key
+     * @param client
+     *            the client
+     */
+    public synchronized void putClient(String key, IClient client) {
+        if (client != null) {
+            clients.put(key, copy(client, null));
+        }
+    }
+
+    /**
+     * Invalidate a cached client spec.
+     *
+     * @param key
+     *            the key
+     */
+    public synchronized void invalidate(String key) {
+        clients.remove(key);
+    }
+
+    /**
+     * Copy a client spec and bind it to a server.
+     *
+     * @param client
+     *            the client
+     * @param server
+     *            the server, or null
+     * @return the copy
+     */
+    private static IClient copy(IClient client, IOptionsServer server) {
+        Client copy = new Client(client.getName(), client.getAccessed(),
+                client.getUpdated(), client.getDescription(),
+                client.getHostName(), client.getOwnerName(), client.getRoot(),
+                client.getLineEnd(), client.getOptions(),
+                client.getSubmitOptions(), client.getAlternateRoots(), server,
+                null, client.getStream());
+        copy.setServerId(client.getServerId());
+        copy.setStreamAtChange(client.getStreamAtChange());
+        if (client.getClientView() != null) {
+            copy.setClientView(new ClientView(copy, client.getClientView()
+                    .getEntryList()));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+/**
+ * Build-scoped registry of Perforce command latencies. </p>
+ *
+ * The registry records the time taken by each Perforce server command, as
+ * reported to the command callback of the server tasks. It keeps the count,
+ * total, maximum and percentiles of the latency by command name. At the end of
+ * the build, it logs a table of the metrics and writes them as JSON to the
+ * file named by the "p4.metrics.file" property (if set). </p>
+ *
+ * Metrics are collected if the "p4.metrics" property is true or the
+ * "p4.metrics.file" property is set. </p>
+ *
+ * @see ServerTask
+ */
+public class PerforceCommandMetrics implements BuildListener {
+
+    /** Project reference id of the build-scoped command metrics. */
+    public static final String REFERENCE_ID = "p4.command.metrics";
+
+    /** Property enabling the command metrics. */
+    public static final String METRICS_PROPERTY = "p4.metrics";
+
+    /** Property naming the JSON file the metrics are written to. */
+    public static final String METRICS_FILE_PROPERTY = "p4.metrics.file";
+
+    /** Line separator for this system. */
+    private static final String LINE_SEPARATOR = System
+            .getProperty("line.separator");
+
+    /** Lock used for creating the metrics of a project. */
+    private static final Object METRICS_LOCK = new Object();
+
+    /**
+     * Latencies of a command.
+     */
+    public static class Stats {
+
+        /** Number of executions. */
+        private int count = 0;
+
+        /** Total time in milliseconds. */
+        private long total = 0;
+
+        /** Maximum time in milliseconds. */
+        private long max = 0;
+
+        /** Latency samples in milliseconds. */
+        private long[] samples = new long[16];
+
+        /**
+         * Record an execution.
+         *
+         * @param millis
+         *            the time taken in milliseconds
+         */
+        void record(long millis) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = millis;
+            total += millis;
+            max = Math.max(max, millis);
+        }
+
+        /**
+         * Gets the number of executions.
+         *
+         * @return the count
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the total time in milliseconds.
+         *
+         * @return the total
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Gets the maximum time in milliseconds.
+         *
+         * @return the max
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Gets a percentile of the time in milliseconds (nearest rank).
+         *
+         * @param percentile
+         *            the percentile, between 0 and 100
+         * @return the time
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100.0 * count);
+            return sorted[Math.min(Math.max(rank, 1), count) - 1];
+        }
+    }
+
+    /** The project owning the metrics. */
+    private Project project;
+
+    /** Latencies by command name. */
+    private Map<String, Stats> stats = new TreeMap<String, Stats>();
+
+    /**
+     * Instantiates new command metrics for the project.
+     *
+     * @param project
+     *            the project
+     */
+    protected PerforceCommandMetrics(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Checks if the command metrics are enabled for the project.
+     *
+     * @param project
+     *            the project
+     * @return true, if is enabled
+     */
+    public static boolean isEnabled(Project project) {
+        return Project.toBoolean(project.getProperty(METRICS_PROPERTY))
+                || project.getProperty(METRICS_FILE_PROPERTY) != null;
+    }
+
+    /**
+     * Gets the command metrics of the project. Creates the metrics, saves them
+     * as a project reference and registers them as a build listener if they
+     * don't exist yet. Returns null if the metrics are not enabled.
+     *
+     * @param project
+     *            the project
+     * @return the command metrics, or null
+     */
+    public static PerforceCommandMetrics getInstance(Project project) {
+        if (!isEnabled(project)) {
+            return null;
+        }
+        synchronized (METRICS_LOCK) {
+            Object ref = project.getReference(REFERENCE_ID);
+            if (ref instanceof PerforceCommandMetrics) {
+                return (PerforceCommandMetrics) ref;
+            }
+            PerforceCommandMetrics metrics = new PerforceCommandMetrics(project);
+            project.addReference(REFERENCE_ID, metrics);
+            project.addBuildListener(metrics);
+            return metrics;
+        }
+    }
+
+    /**
+     * Record the time taken by a command.
+     *
+     * @param command
+     *            the command line as reported to the command callback; the
+     *            first word is used as the command name
+     * @param millis
+     *            the time taken in milliseconds
+     */
+    public synchronized void record(String command, long millis) {
+        String name = (command != null) ? command.trim() : "";
+        int space = name.indexOf(' ');
+        if (space > 0) {
+            name = name.substring(0, space);
+        }
+        Stats commandStats = stats.get(name);
+        if (commandStats == null) {
+            commandStats = new Stats();
+            stats.put(name, commandStats);
+        }
+        commandStats.record(millis);
+    }
+
+    /**
+     * Gets the latencies by command name.
+     *
+     * @return the stats
+     */
+    public synchronized Map<String, Stats> getStats() {
+        return new TreeMap<String, Stats>(stats);
+    }
+
+    /**
+     * Format the metrics as a table.
+     *
+     * @return the table
+     */
+    public synchronized String formatTable() {
+        StringBuilder table = new StringBuilder();
+        table.append(String.format("%-20s %8s %12s %8s %8s %8s %8s",
+                "command", "count", "total(ms)", "p50", "p95", "p99", "max"));
+        table.append(LINE_SEPARATOR);
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            table.append(String.format("%-20s %8d %12d %8d %8d %8d %8d",
+                    entry.getKey(), s.getCount(), s.getTotal(),
+                    s.getPercentile(50), s.getPercentile(95),
+                    s.getPercentile(99), s.getMax()));
+            table.append(LINE_SEPARATOR);
+        }
+        return table.toString();
+    }
+
+    /**
+     * Write the metrics as JSON to a file.
+     *
+     * @param file
+     *            the file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public synchronized void writeJson(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8");
+        try {
+            writer.write("{\n  \"commands\": [");
+            boolean first = true;
+            for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+                Stats s = entry.getValue();
+                writer.write(first ? "\n" : ",\n");
+                first = false;
+                writer.write("    {\"command\": \"" + escape(entry.getKey())
+                        + "\", \"count\": " + s.getCount() + ", \"totalMs\": "
+                        + s.getTotal() + ", \"p50Ms\": " + s.getPercentile(50)
+                        + ", \"p95Ms\": " + s.getPercentile(95)
+                        + ", \"p99Ms\": " + s.getPercentile(99)
+                        + ", \"maxMs\": " + s.getMax() + "}");
+            }
+            writer.write("\n  ]\n}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Escape a string for JSON.
+     *
+     * @param value
+     *            the value
+     * @return the escaped value
+     */
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Log the metrics table and write the JSON file at the end of the build.
+     *
+     * @see org.apache.tools.ant.BuildListener#buildFinished(org.apache.tools.ant.BuildEvent)
+     */
+    public void buildFinished(BuildEvent event) {
+        project.log("Perforce command metrics:" + LINE_SEPARATOR
+                + formatTable(), Project.MSG_INFO);
+        String fileName = project.getProperty(METRICS_FILE_PROPERTY);
+        if (fileName != null) {
+            try {
+                writeJson(project.resolveFile(fileName));
+            } catch (IOException e) {
+                project.log(e.getLocalizedMessage(), Project.MSG_WARN);
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#buildStarted(org.apache.tools.ant.BuildEvent)
+     */
+    public void buildStarted(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#targetStarted(org.apache.tools.ant.BuildEvent)
+     */
+    public void targetStarted(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#targetFinished(org.apache.tools.ant.BuildEvent)
+     */
+    public void targetFinished(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#taskStarted(org.apache.tools.ant.BuildEvent)
+     */
+    public void taskStarted(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#taskFinished(org.apache.tools.ant.BuildEvent)
+     */
+    public void taskFinished(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#messageLogged(org.apache.tools.ant.BuildEvent)
+     */
+    public void messageLogged(BuildEvent event) {
+    }
+}
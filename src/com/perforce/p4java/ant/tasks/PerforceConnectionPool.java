@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Build-scoped pool of connected and logged-in Perforce servers. </p>
+ *
+ * The pool is created on demand and stored as a project reference, so it lives
+ * for the whole Ant build. Connections are keyed by protocol, port, user,
+ * client and charset. A task checks out a warm connection, runs its command
+ * and checks it back in instead of disconnecting. The pool also keeps the
+ * ticket expiration of each connection, so a checked out connection is only
+ * checked with the server when its ticket is about to expire or was rejected.
+ * All connections are closed when the build finishes. </p>
+ *
+ * @see ServerTask
+ */
+public class PerforceConnectionPool implements BuildListener {
+
+    /** Project reference id of the build-scoped connection pool. */
+    public static final String REFERENCE_ID = "p4.connection.pool";
+
+    /** Lock used for creating the pool of a project. */
+    private static final Object POOL_LOCK = new Object();
+
+    /** The project owning this pool. */
+    private Project project;
+
+    /** Idle connections by key. */
+    private Map<String, LinkedList<IOptionsServer>> idle = new HashMap<String, LinkedList<IOptionsServer>>();
+
+    /** Connections currently checked out by tasks. */
+    private Map<IOptionsServer, String> active = new IdentityHashMap<IOptionsServer, String>();
+
+    /**
+     * Ticket expiration times of connections in milliseconds; zero if
+     * unlimited. Connections without an entry have an unknown ticket.
+     */
+    private Map<IOptionsServer, Long> ticketExpirations = new IdentityHashMap<IOptionsServer, Long>();
+
+    /** If true, the pool has been closed and no longer keeps connections. */
+    private boolean closed = false;
+
+    /**
+     * Instantiates a new connection pool for the project.
+     *
+     * @param project
+     *            the project
+     */
+    protected PerforceConnectionPool(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Gets the connection pool of the project. Creates the pool, saves it as a
+     * project reference and registers it as a build listener if it doesn't
+     * exist yet.
+     *
+     * @param project
+     *            the project
+     * @return the connection pool
+     */
+    public static PerforceConnectionPool getInstance(Project project) {
+        synchronized (POOL_LOCK) {
+            Object ref = project.getReference(REFERENCE_ID);
+            if (ref instanceof PerforceConnectionPool) {
+                return (PerforceConnectionPool) ref;
+            }
+            PerforceConnectionPool pool = new PerforceConnectionPool(project);
+            project.addReference(REFERENCE_ID, pool);
+            project.addBuildListener(pool);
+            return pool;
+        }
+    }
+
+    /**
+     * Make the pool key of a connection.
+     *
+     * @param protocol
+     *            the protocol
+     * @param port
+     *            the port
+     * @param user
+     *            the user
+     * @param client
+     *            the client
+     * @param charset
+     *            the charset
+     * @return the key
+     */
+    public static String makeKey(String protocol, String port, String user,
+            String client, String charset) {
+        StringBuilder key = new StringBuilder();
+        key.append(protocol).append("://").append(port).append("|")
+                .append(user).append("|").append(client).append("|")
+                .append(charset);
+        return key.toString();
+    }
+
+    /**
+     * Check out an idle connection with the specified key. Stale connections
+     * are discarded. Returns null if there is no idle connection; the caller is
+     * expected to create a new one and check it in after use.
+     *
+     * @param key
+     *            the key
+     * @return the connected server, or null
+     */
+    public synchronized IOptionsServer checkout(String key) {
+        LinkedList<IOptionsServer> servers = idle.get(key);
+        while (servers != null && !servers.isEmpty()) {
+            IOptionsServer server = servers.removeFirst();
+            if (server.isConnected()) {
+                active.put(server, key);
+                project.log("Reusing pooled Perforce connection " + key,
+                        Project.MSG_DEBUG);
+                return server;
+            }
+            disconnect(server);
+        }
+        return null;
+    }
+
+    /**
+     * Register a newly created connection as checked out.
+     *
+     * @param key
+     *            the key
+     * @param server
+     *            the server
+     */
+    public synchronized void register(String key, IOptionsServer server) {
+        if (server != null) {
+            active.put(server, key);
+        }
+    }
+
+    /**
+     * Check in a connection. If the pool is closed or the connection is no
+     * longer connected, it is disconnected instead.
+     *
+     * @param key
+     *            the key
+     * @param server
+     *            the server
+     */
+    public synchronized void checkin(String key, IOptionsServer server) {
+        if (server == null) {
+            return;
+        }
+        active.remove(server);
+        if (closed || !server.isConnected()) {
+            disconnect(server);
+            return;
+        }
+        LinkedList<IOptionsServer> servers = idle.get(key);
+        if (servers == null) {
+            servers = new LinkedList<IOptionsServer>();
+            idle.put(key, servers);
+        }
+        servers.addFirst(server);
+    }
+
+    /**
+     * Discard a connection; disconnect it and do not return it to the pool.
+     *
+     * @param server
+     *            the server
+     */
+    public synchronized void discard(IOptionsServer server) {
+        if (server != null) {
+            active.remove(server);
+            disconnect(server);
+        }
+    }
+
+    /**
+     * Record the remaining lifetime of the ticket of a connection, as reported
+     * by the server.
+     *
+     * @param server
+     *            the server
+     * @param remaining
+     *            the remaining lifetime in seconds; zero or negative if
+     *            unlimited
+     */
+    public synchronized void setTicketExpiration(IOptionsServer server,
+            long remaining) {
+        if (server != null) {
+            ticketExpirations.put(server, (remaining > 0) ? System
+                    .currentTimeMillis() + remaining * 1000 : 0L);
+        }
+    }
+
+    /**
+     * Checks if the ticket of a connection is known to be valid and not about
+     * to expire, so it needs no check with the server.
+     *
+     * @param server
+     *            the server
+     * @return true, if the ticket is valid
+     */
+    public synchronized boolean isTicketValid(IOptionsServer server) {
+        Long expires = ticketExpirations.get(server);
+        return expires != null
+                && (expires == 0 || System.currentTimeMillis() < expires
+                        - PerforceTicketCache.EXPIRY_MARGIN);
+    }
+
+    /**
+     * Forget the ticket expiration of a connection, after the server rejected
+     * its ticket, so it is checked with the server on its next checkout.
+     *
+     * @param server
+     *            the server
+     */
+    public synchronized void invalidateTicket(IOptionsServer server) {
+        ticketExpirations.remove(server);
+    }
+
+    /**
+     * Close the pool. Disconnect all idle and checked out connections.
+     *
+     * @return the number of closed connections
+     */
+    public synchronized int close() {
+        int count = 0;
+        for (LinkedList<IOptionsServer> servers : idle.values()) {
+            for (IOptionsServer server : servers) {
+                disconnect(server);
+                count++;
+            }
+        }
+        idle.clear();
+        for (IOptionsServer server : active.keySet()) {
+            disconnect(server);
+            count++;
+        }
+        active.clear();
+        closed = true;
+        return count;
+    }
+
+    /**
+     * Disconnect from the server, ignoring errors.
+     *
+     * @param server
+     *            the server
+     */
+    private void disconnect(IOptionsServer server) {
+        ticketExpirations.remove(server);
+        try {
+            if (server.isConnected()) {
+                server.disconnect();
+            }
+        } catch (Throwable t) {
+            project.log(t.getLocalizedMessage(), Project.MSG_VERBOSE);
+        }
+    }
+
+    /**
+     * Close all pooled connections at the end of the build.
+     *
+     * @see org.apache.tools.ant.BuildListener#buildFinished(org.apache.tools.ant.BuildEvent)
+     */
+    public void buildFinished(BuildEvent event) {
+        int count = close();
+        project.log("Closed " + count + " pooled Perforce connection(s).",
+                Project.MSG_VERBOSE);
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#buildStarted(org.apache.tools.ant.BuildEvent)
+     */
+    public void buildStarted(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#targetStarted(org.apache.tools.ant.BuildEvent)
+     */
+    public void targetStarted(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#targetFinished(org.apache.tools.ant.BuildEvent)
+     */
+    public void targetFinished(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#taskStarted(org.apache.tools.ant.BuildEvent)
+     */
+    public void taskStarted(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#taskFinished(org.apache.tools.ant.BuildEvent)
+     */
+    public void taskFinished(BuildEvent event) {
+    }
+
+    /**
+     * @see org.apache.tools.ant.BuildListener#messageLogged(org.apache.tools.ant.BuildEvent)
+     */
+    public void messageLogged(BuildEvent event) {
+    }
+}
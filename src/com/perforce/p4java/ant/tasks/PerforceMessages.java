@@ -4,7 +4,9 @@
 package com.perforce.p4java.ant.tasks;
 
 import java.text.MessageFormat;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
 
 /**
@@ -13,13 +15,19 @@ import java.util.ResourceBundle;
  * JVM based on the host environment. </p>
  * 
  * Additionally, this class provides a convenient way to format messages with
- * parameters.
+ * parameters. </p>
+ * 
+ * The message bundles are resolved once per locale and shared by all
+ * instances.
  */
 public class PerforceMessages {
 
     /** Name of the Perforce message bundle properties file. */
     public static final String P4_MESSAGE_BUNDLE = "com.perforce.p4java.ant.tasks.P4MessageBundle";
 
+    /** Resolved message bundles by locale. */
+    private static final Map<Locale, ResourceBundle> BUNDLES = new HashMap<Locale, ResourceBundle>();
+
     /** The locale. */
     private Locale locale;
 
@@ -30,7 +38,7 @@ public class PerforceMessages {
      * Instantiates a new perforce messages.
      */
     public PerforceMessages() {
-        this.messages = ResourceBundle.getBundle(P4_MESSAGE_BUNDLE);
+        this.messages = getBundle(Locale.getDefault());
     }
 
     /**
@@ -41,7 +49,25 @@ public class PerforceMessages {
      */
     public PerforceMessages(Locale locale) {
         this.locale = locale;
-        this.messages = ResourceBundle.getBundle(P4_MESSAGE_BUNDLE, locale);
+        this.messages = getBundle(locale);
+    }
+
+    /**
+     * Gets the Perforce message bundle for the locale. Resolve it only once.
+     * 
+     * @param locale
+     *            the locale
+     * @return the message bundle
+     */
+    private static ResourceBundle getBundle(Locale locale) {
+        synchronized (BUNDLES) {
+            ResourceBundle bundle = BUNDLES.get(locale);
+            if (bundle == null) {
+                bundle = ResourceBundle.getBundle(P4_MESSAGE_BUNDLE, locale);
+                BUNDLES.put(locale, bundle);
+            }
+            return bundle;
+        }
     }
 
     /**
@@ -3,24 +3,98 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.Properties;
 import java.util.ResourceBundle;
 
 /**
- * Helper class for loading a properties file.
+ * Helper class for loading a properties file. </p>
+ *
+ * Properties loaded through {@link #load(String)} are cached for the life of
+ * the class loader, keyed by properties file name. Properties loaded from a
+ * file are reloaded when the file's modification time or size changes;
+ * properties loaded from the classpath are reloaded only if a file with the
+ * same name appears. Callers get a copy of the cached properties, which they
+ * are free to modify.
  */
 public class PerforceProperties {
 
     /** Properties file suffix. */
     private static final String PROPERTIES_FILE_SUFFIX = ".properties";
 
+    /**
+     * Source of cached properties.
+     */
+    private enum Source {
+        FILE, RESOURCE, RESOURCE_BUNDLE, NONE
+    }
+
+    /**
+     * Cached properties with their source and, for a file, its modification
+     * time and size when loaded.
+     */
+    private static class Entry {
+
+        /** The properties; null if not found. */
+        private Properties properties;
+
+        /** The source of the properties. */
+        private Source source;
+
+        /** The file modification time. */
+        private long lastModified;
+
+        /** The file size. */
+        private long length;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param properties
+         *            the properties
+         * @param source
+         *            the source
+         * @param file
+         *            the properties file
+         */
+        Entry(Properties properties, Source source, File file) {
+            this.properties = properties;
+            this.source = source;
+            if (source == Source.FILE) {
+                this.lastModified = file.lastModified();
+                this.length = file.length();
+            }
+        }
+
+        /**
+         * Checks if the entry is still current.
+         *
+         * @param file
+         *            the properties file
+         * @return true, if is current
+         */
+        boolean isCurrent(File file) {
+            if (source == Source.FILE) {
+                return file.isFile() && file.lastModified() == lastModified
+                        && file.length() == length;
+            }
+            // A file takes precedence over the classpath.
+            return !file.isFile();
+        }
+    }
+
+    /** Cached properties by properties file name. */
+    private static final Map<String, Entry> CACHE = new HashMap<String, Entry>();
+
     /**
      * Private constructor.
      */
@@ -139,20 +213,58 @@ public class PerforceProperties {
     }
 
     /**
-     * Load a properties file.
+     * Load a properties file. Use the cached properties if they are still
+     * current.
      * 
      * @param propertiesFileName
      *            the properties file name
      * @return Properties
      */
     public static Properties load(String propertiesFileName) {
-        Properties properties = loadAsFile(propertiesFileName);
-        if (properties == null) {
-            properties = loadAsResource(propertiesFileName);
+        if (propertiesFileName == null) {
+            return null;
+        }
+        File file = new File(propertiesFileName);
+        Entry entry;
+        synchronized (CACHE) {
+            entry = CACHE.get(propertiesFileName);
         }
-        if (properties == null) {
-            properties = loadAsResourceBundle(propertiesFileName);
+        if (entry == null || !entry.isCurrent(file)) {
+            entry = loadEntry(propertiesFileName, file);
+            synchronized (CACHE) {
+                CACHE.put(propertiesFileName, entry);
+            }
+        }
+        if (entry.properties == null) {
+            return null;
         }
+        Properties properties = new Properties();
+        properties.putAll(entry.properties);
         return properties;
     }
+
+    /**
+     * Load a properties file as file, resource stream or resource bundle.
+     *
+     * @param propertiesFileName
+     *            the properties file name
+     * @param file
+     *            the properties file
+     * @return the cache entry
+     */
+    private static Entry loadEntry(String propertiesFileName, File file) {
+        Properties properties = loadAsFile(propertiesFileName);
+        if (properties != null) {
+            return new Entry(properties, Source.FILE, file);
+        }
+        properties = loadAsResource(propertiesFileName);
+        if (properties != null) {
+            return new Entry(properties, Source.RESOURCE, file);
+        }
+        properties = loadAsResourceBundle(propertiesFileName);
+        if (properties != null) {
+            return new Entry(properties, Source.RESOURCE_BUNDLE, file);
+        }
+        return new Entry(null, Source.NONE, file);
+    }
 }
@@ -3,15 +3,19 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
@@ -23,8 +27,12 @@ import com.perforce.p4java.core.IFileDiff;
 import com.perforce.p4java.core.IFileLineMatch;
 import com.perforce.p4java.core.IFix;
 import com.perforce.p4java.core.IJob;
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
 import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.server.ServerFactory;
 
 /**
@@ -45,11 +53,13 @@ import com.perforce.p4java.server.ServerFactory;
  * @see DeleteTask
  * @see Diff2Task
  * @see EditTask
+ * @see ExportTask
  * @see FilesTask
  * @see FixTask
  * @see FstatTask
  * @see GrepTask
  * @see HaveTask
+ * @see IndexTask
  * @see IntegrateTask
  * @see JobTask
  * @see JobsTask
@@ -57,15 +67,18 @@ import com.perforce.p4java.server.ServerFactory;
  * @see LabelsyncTask
  * @see LockTask
  * @see MoveTask
+ * @see ReconcileTask
  * @see ReopenTask
  * @see ResolveTask
  * @see RevertTask
+ * @see SessionTask
  * @see ShelveTask
  * @see SubmitTask
  * @see SyncTask
  * @see TagTask
  * @see UnlockTask
  * @see UnshelveTask
+ * @see WatchTask
  */
 public abstract class PerforceTask extends Task {
 
@@ -197,6 +210,23 @@ public abstract class PerforceTask extends Task {
         return file;
     }
 
+    /**
+     * Perforce command executed on a list of file specs by
+     * {@link PerforceTask#execFileSpecCommand(FileSpecCommand)}.
+     */
+    protected interface FileSpecCommand {
+        /**
+         * Execute the command.
+         *
+         * @param fileSpecs
+         *            the file specs
+         * @return the returned file specs
+         * @throws P4JavaException
+         *             the p4 java exception
+         */
+        List<IFileSpec> exec(List<IFileSpec> fileSpecs) throws P4JavaException;
+    }
+
     /** Collection of files contained in Ant's FileSet objects. */
     private List<FileSet> fileSets = Collections
             .synchronizedList(new LinkedList<FileSet>());
@@ -294,6 +324,69 @@ public abstract class PerforceTask extends Task {
      */
     protected String retStatusMessage;
 
+    /**
+     * Maximum number of file specs sent to the Perforce server in one call by
+     * file-oriented tasks. If zero or negative, all file specs are sent in a
+     * single call.
+     */
+    protected int batchSize = 0;
+
+    /**
+     * Aggregated counts of the file specs returned from a command executed in
+     * batches.
+     */
+    protected FileSpecSummary fileSpecSummary;
+
+    /**
+     * If true, the returned file specs are aggregated into a summary instead
+     * of being logged one by one. Only the summary and the first errors are
+     * logged, and the counts are set to project properties.
+     */
+    protected boolean summary = false;
+
+    /** Maximum number of errors logged in summary mode. */
+    protected int summaryErrors = 10;
+
+    /**
+     * Prefix of the project properties set with the summary counts. Defaults to
+     * "p4." followed by the command name (i.e. "p4.sync").
+     */
+    protected String summaryPrefix = null;
+
+    /** Number of errors logged in summary mode. */
+    private int summaryErrorsLogged = 0;
+
+    /** Log results as multi-line blocks. */
+    public static final String LOG_FORMAT_BLOCK = "block";
+
+    /** Log results as one line per result. */
+    public static final String LOG_FORMAT_COMPACT = "compact";
+
+    /**
+     * Format of the logged results: "block" (default) or "compact" for one line
+     * per result.
+     */
+    protected String logFormat = LOG_FORMAT_BLOCK;
+
+    /**
+     * Reusable buffer for formatting log messages, per thread, since parallel
+     * jobs log from their worker threads.
+     */
+    private final ThreadLocal<StringBuilder> logBuffer = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Highest message output level of the build listeners; negative if not
+     * computed yet.
+     */
+    private volatile int messageOutputLevel = -1;
+
+    /** DefaultLogger's message output level field. */
+    private static java.lang.reflect.Field msgOutputLevelField;
+
     /**
      * Default constructor.
      */
@@ -381,6 +474,65 @@ public abstract class PerforceTask extends Task {
         this.failOnError = failOnError;
     }
 
+    /**
+     * Sets the batch size.
+     *
+     * @param batchSize
+     *            the new batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the summary.
+     *
+     * @param summary
+     *            the new summary
+     */
+    public void setSummary(boolean summary) {
+        this.summary = summary;
+    }
+
+    /**
+     * Sets the summary errors.
+     *
+     * @param summaryErrors
+     *            the new summary errors
+     */
+    public void setSummaryErrors(int summaryErrors) {
+        this.summaryErrors = summaryErrors;
+    }
+
+    /**
+     * Sets the summary prefix.
+     *
+     * @param summaryPrefix
+     *            the new summary prefix
+     */
+    public void setSummaryPrefix(String summaryPrefix) {
+        this.summaryPrefix = summaryPrefix;
+    }
+
+    /**
+     * Sets the log format.
+     *
+     * @param logFormat
+     *            the new log format
+     */
+    public void setLogFormat(String logFormat) {
+        this.logFormat = logFormat;
+    }
+
+    /**
+     * Gets the file spec summary.
+     *
+     * @return the file spec summary
+     */
+    public FileSpecSummary getFileSpecSummary() {
+        return fileSpecSummary;
+    }
+
     /**
      * Gets the file specs.
      *
@@ -462,6 +614,10 @@ public abstract class PerforceTask extends Task {
      * @see org.apache.tools.ant.Task#execute()
      */
     public void execute() throws BuildException {
+        // Find out which message priorities are logged for this execution.
+        messageOutputLevel = -1;
+        fileSpecSummary = null;
+        summaryErrorsLogged = 0;
         // Load Perforce message bundle.
         p4Messages = new PerforceMessages();
         // Make sure the required attributes are set.
@@ -482,7 +638,13 @@ public abstract class PerforceTask extends Task {
             initP4();
             // Execute specific Perforce command.
             execP4Command();
+            if (summary) {
+                // Log and publish the aggregated results.
+                logFileSpecSummary(getOrCreateFileSpecSummary());
+                setFileSpecSummaryProperties(getOrCreateFileSpecSummary());
+            }
         } catch (Exception e) {
+            handleFailure(e);
             String failMsg = p4Messages.getMessage("project.task.failed",
                     new Object[] { e.getLocalizedMessage() }); //$NON-NLS-1$
             // If true, stop the task and throw an exception.
@@ -527,6 +689,18 @@ public abstract class PerforceTask extends Task {
      */
     protected abstract void cleanupP4() throws BuildException;
 
+    /**
+     * Handle the failure of the task before it is reported, for example to
+     * drop state the failure has shown to be stale. The failed command is not
+     * retried. This can be overridden by the Perforce server and client
+     * subclasses.
+     *
+     * @param e
+     *            the failure
+     */
+    protected void handleFailure(Exception e) {
+    }
+
     /**
      * Execute the Perforce command. This should be implemented by the task
      * subclasses handling specific Perforce commands. Please refer to
@@ -538,7 +712,221 @@ public abstract class PerforceTask extends Task {
     protected abstract void execP4Command() throws BuildException;
     
     /**
-     * Log the attributes of a list of file specs.
+     * Execute a Perforce command on the file specs from {@link #getFiles()}.
+     * Log the returned file specs.
+     * <p>
+     * If "batchSize" is positive, the paths are streamed to the command in
+     * batches of at most "batchSize" file specs. The returned file specs of
+     * each batch are logged and released, and their counts are aggregated in
+     * the file spec summary; the file specs and returned file specs are not
+     * kept. Otherwise, all file specs are sent in a single call.
+     *
+     * @param command
+     *            the command
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected void execFileSpecCommand(FileSpecCommand command)
+            throws P4JavaException {
+        if (batchSize <= 0) {
+            fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
+            retFileSpecs = command.exec(fileSpecs);
+            logFileSpecs(retFileSpecs);
+            return;
+        }
+        fileSpecs = null;
+        retFileSpecs = null;
+        fileSpecSummary = new FileSpecSummary();
+        summaryErrorsLogged = 0;
+        if (!execFileSpecBatches(command, iterateFiles(), batchSize)) {
+            execFileSpecBatch(command, new ArrayList<String>());
+        }
+        if (!summary) {
+            logFileSpecSummary(fileSpecSummary);
+        }
+    }
+
+    /**
+     * Execute a Perforce command on paths in batches of at most "size" file
+     * specs. The returned file specs of each batch are logged and added to
+     * the file spec summary of this execution.
+     *
+     * @param command
+     *            the command
+     * @param paths
+     *            the paths
+     * @param size
+     *            the batch size
+     * @return true, if at least one batch was executed
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected boolean execFileSpecBatches(FileSpecCommand command,
+            Iterator<String> paths, int size) throws P4JavaException {
+        getOrCreateFileSpecSummary();
+        List<String> batch = new ArrayList<String>(size);
+        boolean executed = false;
+        while (paths.hasNext()) {
+            batch.add(paths.next());
+            if (batch.size() >= size || !paths.hasNext()) {
+                execFileSpecBatch(command, batch);
+                batch.clear();
+                executed = true;
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Execute a Perforce command on a batch of paths. Log the returned file
+     * specs and add them to the file spec summary.
+     *
+     * @param command
+     *            the command
+     * @param batch
+     *            the batch
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private void execFileSpecBatch(FileSpecCommand command, List<String> batch)
+            throws P4JavaException {
+        List<IFileSpec> results = command.exec(FileSpecBuilder
+                .makeFileSpecList(batch));
+        if (summary) {
+            // Logging the file specs adds them to the summary.
+            fileSpecSummary.addBatch();
+            logFileSpecs(results);
+        } else {
+            logFileSpecs(results);
+            fileSpecSummary.addAll(results);
+        }
+    }
+
+    /**
+     * Gets the file spec summary of this execution, creating it if necessary.
+     *
+     * @return the file spec summary
+     */
+    protected FileSpecSummary getOrCreateFileSpecSummary() {
+        if (fileSpecSummary == null) {
+            fileSpecSummary = new FileSpecSummary();
+        }
+        return fileSpecSummary;
+    }
+
+    /**
+     * Add a file spec to the summary. Log it if it is one of the first
+     * "summaryErrors" errors.
+     *
+     * @param fileSpec
+     *            the file spec
+     */
+    protected void addToFileSpecSummary(IFileSpec fileSpec) {
+        if (fileSpec == null) {
+            return;
+        }
+        getOrCreateFileSpecSummary().add(fileSpec);
+        FileSpecOpStatus status = fileSpec.getOpStatus();
+        boolean error = (status == FileSpecOpStatus.ERROR)
+                || (status == FileSpecOpStatus.CLIENT_ERROR);
+        if (error && summaryErrorsLogged < summaryErrors) {
+            summaryErrorsLogged++;
+            logFileSpec(fileSpec);
+        }
+    }
+
+    /**
+     * Set the counts of a file spec summary to project properties named after
+     * the summary prefix: "[prefix].count.total", "[prefix].count.[status]",
+     * "[prefix].action.[action]", "[prefix].type.[type]", "[prefix].errors"
+     * and "[prefix].bytes".
+     *
+     * @param summary
+     *            the summary
+     */
+    protected void setFileSpecSummaryProperties(FileSpecSummary summary) {
+        String prefix = summaryPrefix;
+        if (isEmpty(prefix)) {
+            String name = getClass().getSimpleName();
+            if (name.endsWith("Task")) {
+                name = name.substring(0, name.length() - "Task".length());
+            }
+            prefix = "p4." + name.toLowerCase();
+        }
+        Project project = getProject();
+        project.setProperty(prefix + ".count.total",
+                String.valueOf(summary.getTotal()));
+        for (FileSpecOpStatus status : FileSpecOpStatus.values()) {
+            project.setProperty(prefix + ".count." + status,
+                    String.valueOf(summary.getCount(status)));
+        }
+        for (Map.Entry<FileAction, Long> entry : summary.getActionCounts()
+                .entrySet()) {
+            project.setProperty(prefix + ".action." + entry.getKey(),
+                    String.valueOf(entry.getValue()));
+        }
+        for (Map.Entry<String, Long> entry : summary.getFileTypeCounts()
+                .entrySet()) {
+            project.setProperty(prefix + ".type." + entry.getKey(),
+                    String.valueOf(entry.getValue()));
+        }
+        project.setProperty(prefix + ".errors",
+                String.valueOf(summary.getErrors()));
+        project.setProperty(prefix + ".bytes",
+                String.valueOf(summary.getTotalBytes()));
+    }
+
+    /**
+     * Log the aggregated counts of a file spec summary.
+     *
+     * @param summary
+     *            the summary
+     */
+    protected void logFileSpecSummary(FileSpecSummary summary) {
+        if (summary != null) {
+            int messagePriority = Project.MSG_INFO;
+            StringBuilder message = new StringBuilder();
+            message.append("fileSpecSummary {" + LINE_SEPARATOR);
+            message.append(LINE_PADDING).append("batches").append("=")
+                    .append(summary.getBatches()).append(LINE_SEPARATOR);
+            message.append(LINE_PADDING).append("total").append("=")
+                    .append(summary.getTotal()).append(LINE_SEPARATOR);
+            for (Map.Entry<FileSpecOpStatus, Long> entry : summary
+                    .getStatusCounts().entrySet()) {
+                message.append(LINE_PADDING).append(entry.getKey())
+                        .append("=").append(entry.getValue())
+                        .append(LINE_SEPARATOR);
+            }
+            for (Map.Entry<FileAction, Long> entry : summary.getActionCounts()
+                    .entrySet()) {
+                message.append(LINE_PADDING).append("action.")
+                        .append(entry.getKey()).append("=")
+                        .append(entry.getValue()).append(LINE_SEPARATOR);
+            }
+            for (Map.Entry<String, Long> entry : summary.getFileTypeCounts()
+                    .entrySet()) {
+                message.append(LINE_PADDING).append("type.")
+                        .append(entry.getKey()).append("=")
+                        .append(entry.getValue()).append(LINE_SEPARATOR);
+            }
+            if (summary.getSizedFiles() > 0) {
+                message.append(LINE_PADDING).append("bytes").append("=")
+                        .append(summary.getTotalBytes()).append(LINE_SEPARATOR);
+            }
+            if (this.summary && summary.getErrors() > summaryErrorsLogged) {
+                message.append(LINE_PADDING).append("suppressedErrors")
+                        .append("=")
+                        .append(summary.getErrors() - summaryErrorsLogged)
+                        .append(LINE_SEPARATOR);
+            }
+            message.append("}" + LINE_SEPARATOR);
+            log(message.toString(), messagePriority);
+        }
+    }
+
+    /**
+     * Log the attributes of a list of file specs. In summary mode, add them to
+     * the file spec summary instead.
      *
      * @param fileSpecs
      *            the file specs
@@ -546,22 +934,56 @@ public abstract class PerforceTask extends Task {
     protected void logFileSpecs(List<IFileSpec> fileSpecs) {
         if (fileSpecs != null) {
             for (IFileSpec fileSpec : fileSpecs) {
-                logFileSpec(fileSpec);
+                if (summary) {
+                    addToFileSpecSummary(fileSpec);
+                } else {
+                    logFileSpec(fileSpec);
+                }
             }
         }
     }
 
     /**
-     * Log the attributes of a file spec.
+     * Log the attributes of a file spec. Nothing is formatted if the message
+     * priority is discarded by the build loggers.
      *
      * @param fileSpec
      *            the file spec
      */
     protected void logFileSpec(IFileSpec fileSpec) {
         if (fileSpec != null) {
-            int messagePriority = Project.MSG_INFO;
-            StringBuilder message = new StringBuilder();
-            message.append("fileSpec {" + LINE_SEPARATOR);
+            int messagePriority = getMessagePriority(fileSpec.getOpStatus());
+            if (!isLoggable(messagePriority)) {
+                return;
+            }
+            StringBuilder message = getLogBuffer();
+            if (isCompactLogFormat()) {
+                message.append(fileSpec.getOpStatus());
+                if (fileSpec.getDepotPath() != null) {
+                    message.append(" ").append(fileSpec.getDepotPath());
+                } else if (fileSpec.toString() != null) {
+                    message.append(" ").append(fileSpec.toString());
+                }
+                if (fileSpec.getEndRevision() >= 0) {
+                    message.append("#").append(fileSpec.getEndRevision());
+                }
+                if (fileSpec.getChangelistId() >= 0) {
+                    message.append(" change=").append(
+                            fileSpec.getChangelistId());
+                }
+                if (fileSpec.getAction() != null) {
+                    message.append(" action=").append(fileSpec.getAction());
+                }
+                if (fileSpec.getFileType() != null) {
+                    message.append(" type=").append(fileSpec.getFileType());
+                }
+                if (fileSpec.getStatusMessage() != null) {
+                    message.append(" ").append(fileSpec.getStatusMessage());
+                }
+                log(message.toString(), messagePriority);
+                return;
+            }
+            message.append("fileSpec {").append(LINE_SEPARATOR);
             if (fileSpec.toString() != null) {
                 message.append(LINE_PADDING).append("fileSpec").append("=")
                         .append(fileSpec.toString()).append(LINE_SEPARATOR);
@@ -601,33 +1023,41 @@ public abstract class PerforceTask extends Task {
                 message.append(LINE_PADDING).append("date").append("=")
                         .append(fileSpec.getDate()).append(LINE_SEPARATOR);
             }
-            message.append("}" + LINE_SEPARATOR);
-            switch (fileSpec.getOpStatus()) {
-            case UNKNOWN:
-                messagePriority = Project.MSG_WARN;
-                break;
-            case VALID:
-                messagePriority = Project.MSG_INFO;
-                break;
-            case INFO:
-                messagePriority = Project.MSG_INFO;
-                break;
-            case CLIENT_ERROR:
-                messagePriority = Project.MSG_ERR;
-                break;
-            case ERROR:
-                messagePriority = Project.MSG_ERR;
-                break;
-            default:
-                messagePriority = Project.MSG_INFO;
-                break;
-            }
+            message.append("}").append(LINE_SEPARATOR);
             log(message.toString(), messagePriority);
         }
     }
 
     /**
-     * Log the attributes of a list of extended file specs.
+     * Gets the message priority of a file spec operation status.
+     *
+     * @param opStatus
+     *            the operation status
+     * @return the message priority
+     */
+    protected int getMessagePriority(FileSpecOpStatus opStatus) {
+        if (opStatus == null) {
+            return Project.MSG_INFO;
+        }
+        switch (opStatus) {
+        case UNKNOWN:
+            return Project.MSG_WARN;
+        case VALID:
+            return Project.MSG_INFO;
+        case INFO:
+            return Project.MSG_INFO;
+        case CLIENT_ERROR:
+            return Project.MSG_ERR;
+        case ERROR:
+            return Project.MSG_ERR;
+        default:
+            return Project.MSG_INFO;
+        }
+    }
+
+    /**
+     * Log the attributes of a list of extended file specs. In summary mode, add
+     * them to the file spec summary instead.
      *
      * @param extendedFileSpecs
      *            the extended file specs
@@ -636,7 +1066,11 @@ public abstract class PerforceTask extends Task {
             List<IExtendedFileSpec> extendedFileSpecs) {
         if (extendedFileSpecs != null) {
             for (IExtendedFileSpec extendedFileSpec : extendedFileSpecs) {
-                logExtendedFileSpec(extendedFileSpec);
+                if (summary) {
+                    addToFileSpecSummary(extendedFileSpec);
+                } else {
+                    logExtendedFileSpec(extendedFileSpec);
+                }
             }
         }
     }
@@ -666,7 +1100,8 @@ public abstract class PerforceTask extends Task {
     }
 
     /**
-     * Log the attributes of a file diff.
+     * Log the attributes of a file diff. Nothing is formatted if the message
+     * priority is discarded by the build loggers.
      *
      * @param fileDiff
      *            the file diff
@@ -674,8 +1109,20 @@ public abstract class PerforceTask extends Task {
     protected void logFileDiff(IFileDiff fileDiff) {
         if (fileDiff != null) {
             int messagePriority = Project.MSG_INFO;
-            StringBuilder message = new StringBuilder();
-            message.append("fileDiff {" + LINE_SEPARATOR);
+            if (!isLoggable(messagePriority)) {
+                return;
+            }
+            StringBuilder message = getLogBuffer();
+            if (isCompactLogFormat()) {
+                message.append(fileDiff.getStatus()).append(" ")
+                        .append(fileDiff.getDepotFile1()).append("#")
+                        .append(fileDiff.getRevision1()).append(" ")
+                        .append(fileDiff.getDepotFile2()).append("#")
+                        .append(fileDiff.getRevision2());
+                log(message.toString(), messagePriority);
+                return;
+            }
+            message.append("fileDiff {").append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("status").append("=")
                     .append(fileDiff.getStatus()).append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("fileType1").append("=")
@@ -690,24 +1137,7 @@ public abstract class PerforceTask extends Task {
                     .append(fileDiff.getDepotFile2()).append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("revision2").append("=")
                     .append(fileDiff.getRevision2()).append(LINE_SEPARATOR);
-            message.append("}" + LINE_SEPARATOR);
-            switch (fileDiff.getStatus()) {
-            case LEFT_ONLY:
-                messagePriority = Project.MSG_INFO;
-                break;
-            case RIGHT_ONLY:
-                messagePriority = Project.MSG_INFO;
-                break;
-            case CONTENT:
-                messagePriority = Project.MSG_INFO;
-                break;
-            case IDENTICAL:
-                messagePriority = Project.MSG_INFO;
-                break;
-            default:
-                messagePriority = Project.MSG_INFO;
-                break;
-            }
+            message.append("}").append(LINE_SEPARATOR);
             log(message.toString(), messagePriority);
         }
     }
@@ -728,7 +1158,8 @@ public abstract class PerforceTask extends Task {
     }
 
     /**
-     * Log the attributes of a changelist summary.
+     * Log the attributes of a changelist summary. Nothing is formatted if the
+     * message priority is discarded by the build loggers.
      *
      * @param changelistSummary
      *            the changelist summary
@@ -736,8 +1167,20 @@ public abstract class PerforceTask extends Task {
     protected void logChangelistSummary(IChangelistSummary changelistSummary) {
         if (changelistSummary != null) {
             int messagePriority = Project.MSG_INFO;
-            StringBuilder message = new StringBuilder();
-            message.append("changelistSummary {" + LINE_SEPARATOR);
+            if (!isLoggable(messagePriority)) {
+                return;
+            }
+            StringBuilder message = getLogBuffer();
+            if (isCompactLogFormat()) {
+                message.append(changelistSummary.getId()).append(" ")
+                        .append(changelistSummary.getStatus()).append(" ")
+                        .append(changelistSummary.getUsername()).append(" ")
+                        .append(changelistSummary.getDate()).append(" ");
+                appendFirstLine(message, changelistSummary.getDescription());
+                log(message.toString(), messagePriority);
+                return;
+            }
+            message.append("changelistSummary {").append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("status").append("=")
                     .append(changelistSummary.getStatus())
                     .append(LINE_SEPARATOR);
@@ -751,7 +1194,7 @@ public abstract class PerforceTask extends Task {
                     .append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("date").append("=")
                     .append(changelistSummary.getDate()).append(LINE_SEPARATOR);
-            message.append("}" + LINE_SEPARATOR);
+            message.append("}").append(LINE_SEPARATOR);
             log(message.toString(), messagePriority);
         }
     }
@@ -771,7 +1214,8 @@ public abstract class PerforceTask extends Task {
     }
 
     /**
-     * Log the attributes of a fix.
+     * Log the attributes of a fix. Nothing is formatted if the message priority
+     * is discarded by the build loggers.
      *
      * @param fix
      *            the fix
@@ -779,8 +1223,22 @@ public abstract class PerforceTask extends Task {
     protected void logFix(IFix fix) {
         if (fix != null) {
             int messagePriority = Project.MSG_INFO;
-            StringBuilder message = new StringBuilder();
-            message.append("fix {" + LINE_SEPARATOR);
+            if (!isLoggable(messagePriority)) {
+                return;
+            }
+            StringBuilder message = getLogBuffer();
+            if (isCompactLogFormat()) {
+                message.append(fix.getJobId()).append(" ")
+                        .append(fix.getChangelistId()).append(" ")
+                        .append(fix.getAction()).append(" ")
+                        .append(fix.getStatus()).append(" ")
+                        .append(fix.getUserName()).append("@")
+                        .append(fix.getClientName()).append(" ")
+                        .append(fix.getDate());
+                log(message.toString(), messagePriority);
+                return;
+            }
+            message.append("fix {").append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("status").append("=")
                     .append(fix.getStatus()).append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("action").append("=")
@@ -795,7 +1253,7 @@ public abstract class PerforceTask extends Task {
                     .append(fix.getClientName()).append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("userName").append("=")
                     .append(fix.getUserName()).append(LINE_SEPARATOR);
-            message.append("}" + LINE_SEPARATOR);
+            message.append("}").append(LINE_SEPARATOR);
             log(message.toString(), messagePriority);
         }
     }
@@ -815,7 +1273,8 @@ public abstract class PerforceTask extends Task {
     }
 
     /**
-     * Log the attributes of a file line match.
+     * Log the attributes of a file line match. Nothing is formatted if the
+     * message priority is discarded by the build loggers.
      *
      * @param fileLineMatch
      *            the file line match
@@ -823,8 +1282,22 @@ public abstract class PerforceTask extends Task {
     protected void logFileLineMatch(IFileLineMatch fileLineMatch) {
         if (fileLineMatch != null) {
             int messagePriority = Project.MSG_INFO;
-            StringBuilder message = new StringBuilder();
-            message.append("fileLineMatch {" + LINE_SEPARATOR);
+            if (!isLoggable(messagePriority)) {
+                return;
+            }
+            StringBuilder message = getLogBuffer();
+            if (isCompactLogFormat()) {
+                message.append(fileLineMatch.getDepotFile()).append("#")
+                        .append(fileLineMatch.getRevision());
+                // Suppress line number if -n flag is not set
+                if (fileLineMatch.getLineNumber() > 0) {
+                    message.append(":").append(fileLineMatch.getLineNumber());
+                }
+                message.append(":").append(fileLineMatch.getLine());
+                log(message.toString(), messagePriority);
+                return;
+            }
+            message.append("fileLineMatch {").append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("type").append("=")
                     .append(fileLineMatch.getType()).append(LINE_SEPARATOR);
             message.append(LINE_PADDING).append("depotFile").append("=")
@@ -840,7 +1313,7 @@ public abstract class PerforceTask extends Task {
             }
             message.append(LINE_PADDING).append("line").append("=")
                     .append(fileLineMatch.getLine()).append(LINE_SEPARATOR);
-            message.append("}" + LINE_SEPARATOR);
+            message.append("}").append(LINE_SEPARATOR);
             log(message.toString(), messagePriority);
         }
     }
@@ -860,7 +1333,8 @@ public abstract class PerforceTask extends Task {
     }
 
     /**
-     * Log the attributes of a job.
+     * Log the attributes of a job. Nothing is formatted if the message priority
+     * is discarded by the build loggers.
      *
      * @param job
      *            the job
@@ -868,23 +1342,153 @@ public abstract class PerforceTask extends Task {
     protected void logJob(IJob job) {
         if (job != null) {
             int messagePriority = Project.MSG_INFO;
-            StringBuilder message = new StringBuilder();
-            message.append("job {" + LINE_SEPARATOR);
+            if (!isLoggable(messagePriority)) {
+                return;
+            }
+            boolean compact = isCompactLogFormat();
+            StringBuilder message = getLogBuffer();
+            if (!compact) {
+                message.append("job {").append(LINE_SEPARATOR);
+            }
             Map<String, Object> rawFields = job.getRawFields();
             if (rawFields != null) {
                 for (Map.Entry<String, Object> entry : rawFields.entrySet()) {
                     String key = entry.getKey();
                     Object value = entry.getValue();
-                    message.append(LINE_PADDING).append(key).append("=")
-                            .append((value != null) ? value : "")
-                            .append(LINE_SEPARATOR);
+                    if (compact) {
+                        if (message.length() > 0) {
+                            message.append(" ");
+                        }
+                        message.append(key).append("=");
+                        appendFirstLine(message, (value != null) ? value
+                                .toString() : "");
+                    } else {
+                        message.append(LINE_PADDING).append(key).append("=")
+                                .append((value != null) ? value : "")
+                                .append(LINE_SEPARATOR);
+                    }
                 }
             }
-            message.append("}" + LINE_SEPARATOR);
+            if (!compact) {
+                message.append("}").append(LINE_SEPARATOR);
+            }
             log(message.toString(), messagePriority);
         }
     }
 
+    /**
+     * Checks if a message with the priority is logged by any of the build
+     * listeners. The result is used to skip formatting messages that would be
+     * discarded.
+     *
+     * @param priority
+     *            the message priority
+     * @return true, if is loggable
+     */
+    protected boolean isLoggable(int priority) {
+        if (messageOutputLevel < 0) {
+            messageOutputLevel = computeMessageOutputLevel();
+        }
+        return priority <= messageOutputLevel;
+    }
+
+    /**
+     * Compute the highest message output level of the build listeners. The
+     * level of DefaultLogger (and its subclasses) is known; any other listener
+     * may record messages of all levels. So with other listeners, such as
+     * those of IDEs or CI servers, or an XmlLogger, all messages are formatted
+     * as before.
+     *
+     * @return the message output level
+     */
+    private int computeMessageOutputLevel() {
+        if (getProject() == null) {
+            return Project.MSG_DEBUG;
+        }
+        int level = Project.MSG_ERR;
+        for (Object listener : getProject().getBuildListeners()) {
+            if (listener instanceof PerforceConnectionPool
+                    || listener instanceof PerforceCommandMetrics) {
+                continue;
+            }
+            Integer loggerLevel = null;
+            if (listener instanceof DefaultLogger) {
+                loggerLevel = getMessageOutputLevel((DefaultLogger) listener);
+            }
+            if (loggerLevel == null) {
+                return Project.MSG_DEBUG;
+            }
+            level = Math.max(level, loggerLevel);
+        }
+        return level;
+    }
+
+    /**
+     * Gets the message output level of a DefaultLogger. Ant has no getter for
+     * it, so its protected field is read by reflection; if that fails (for
+     * example under a security manager), the level is unknown.
+     *
+     * @param logger
+     *            the logger
+     * @return the message output level, or null if it can't be read
+     */
+    private static Integer getMessageOutputLevel(DefaultLogger logger) {
+        try {
+            synchronized (PerforceTask.class) {
+                if (msgOutputLevelField == null) {
+                    msgOutputLevelField = DefaultLogger.class
+                            .getDeclaredField("msgOutputLevel");
+                    msgOutputLevelField.setAccessible(true);
+                }
+            }
+            return msgOutputLevelField.getInt(logger);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if results are logged in the compact one-line format.
+     *
+     * @return true, if is compact log format
+     */
+    protected boolean isCompactLogFormat() {
+        return LOG_FORMAT_COMPACT.equalsIgnoreCase(logFormat);
+    }
+
+    /**
+     * Gets the reusable buffer of the current thread for formatting log
+     * messages, cleared.
+     *
+     * @return the log buffer
+     */
+    protected StringBuilder getLogBuffer() {
+        StringBuilder buffer = logBuffer.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /**
+     * Append the first line of a text to a buffer.
+     *
+     * @param buffer
+     *            the buffer
+     * @param text
+     *            the text
+     */
+    private static void appendFirstLine(StringBuilder buffer, String text) {
+        if (text == null) {
+            buffer.append(text);
+            return;
+        }
+        int end = 0;
+        while (end < text.length() && text.charAt(end) != '\n'
+                && text.charAt(end) != '\r') {
+            end++;
+        }
+        buffer.append(text, 0, end);
+    }
+
     /**
      * Combine all of the fields specified by the "field" nested elements.
      *
@@ -909,48 +1513,115 @@ public abstract class PerforceTask extends Task {
      */
     protected String[] getFiles() {
         List<String> list = new LinkedList<String>();
+        for (Iterator<String> it = iterateFiles(); it.hasNext();) {
+            list.add(it.next());
+        }
+        return list.toArray(new String[list.size()]);
+    }
 
-        // Add files specified by the "file" attribute to collection.
-        // Note: It is tokenized by whitespace and content inside quotes.
-        if (files != null) {
-            // Split the string by whitespace and sequences of characters that
-            // begin and end with a quote.
-            Pattern pattern = Pattern.compile(FILE_TOKEN_REGEX_PATTERN);
-            Matcher regexMatcher = pattern.matcher(files);
-            while (regexMatcher.find()) {
+    /**
+     * Iterate over all of the files specified by the "file" attribute, the
+     * "file" nested element and Ant's FileSet, respectively. The files are
+     * produced lazily; each FileSet is scanned only when the iteration
+     * reaches it.
+     *
+     * @return the iterator
+     */
+    protected Iterator<String> iterateFiles() {
+        return new FilesIterator();
+    }
+
+    /**
+     * Lazy iterator over the files specified by the "file" attribute, the
+     * "file" nested element and Ant's FileSet.
+     */
+    private class FilesIterator implements Iterator<String> {
+
+        /**
+         * Matcher over the "file" attribute. It is tokenized by whitespace and
+         * content inside quotes.
+         */
+        private Matcher regexMatcher = (files != null) ? Pattern.compile(
+                FILE_TOKEN_REGEX_PATTERN).matcher(files) : null;
+
+        /** Iterator over the "file" nested elements. */
+        private Iterator<File> fileIterator = fileList.iterator();
+
+        /** Iterator over Ant's FileSet. */
+        private Iterator<FileSet> fileSetIterator = fileSets.iterator();
+
+        /** Base directory of the current FileSet. */
+        private java.io.File baseDir;
+
+        /** Included files of the current FileSet. */
+        private String[] srcFiles;
+
+        /** Index of the next included file of the current FileSet. */
+        private int srcIndex;
+
+        /** The next file, or null if not computed yet. */
+        private String next;
+
+        public boolean hasNext() {
+            if (next == null) {
+                next = computeNext();
+            }
+            return next != null;
+        }
+
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String file = next;
+            next = null;
+            return file;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Compute the next file.
+         *
+         * @return the next file, or null if there are no more files
+         */
+        private String computeNext() {
+            // Files specified by the "file" attribute.
+            while (regexMatcher != null && regexMatcher.find()) {
                 if (regexMatcher.groupCount() > 0) {
                     if (regexMatcher.group(1) != null) {
-                        // Add double-quoted string without the quotes.
-                        list.add(regexMatcher.group(1));
+                        // Double-quoted string without the quotes.
+                        return regexMatcher.group(1);
                     } else if (regexMatcher.group(2) != null) {
-                        // Add single-quoted string without the quotes.
-                        list.add(regexMatcher.group(2));
+                        // Single-quoted string without the quotes.
+                        return regexMatcher.group(2);
                     } else {
-                        // Add unquoted word
-                        list.add(regexMatcher.group());
+                        // Unquoted word
+                        return regexMatcher.group();
                     }
                 }
             }
-        }
-        // Add file paths specified by the "file" nested elements to the
-        // collection.
-        for (File file : fileList) {
-            list.add(file.getPath());
-        }
-        // Add files specified by the Ant's FileSet to collection.
-        for (FileSet fs : fileSets) {
-            DirectoryScanner ds = fs.getDirectoryScanner(getProject());
-            String[] srcFiles = ds.getIncludedFiles();
-            if (srcFiles != null) {
-                for (int j = 0; j < srcFiles.length; j++) {
-                    java.io.File f = new java.io.File(ds.getBasedir(),
-                            srcFiles[j]);
-                    list.add(f.getAbsolutePath());
+            regexMatcher = null;
+            // File paths specified by the "file" nested elements.
+            if (fileIterator.hasNext()) {
+                return fileIterator.next().getPath();
+            }
+            // Files specified by the Ant's FileSet.
+            while (srcFiles == null || srcIndex >= srcFiles.length) {
+                if (!fileSetIterator.hasNext()) {
+                    return null;
                 }
+                DirectoryScanner ds = fileSetIterator.next()
+                        .getDirectoryScanner(getProject());
+                baseDir = ds.getBasedir();
+                srcFiles = ds.getIncludedFiles();
+                srcIndex = 0;
             }
+            return new java.io.File(baseDir, srcFiles[srcIndex++])
+                    .getAbsolutePath();
         }
-
-        return list.toArray(new String[list.size()]);
     }
 
     /**
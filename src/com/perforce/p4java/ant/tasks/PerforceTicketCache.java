@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+
+import com.perforce.p4java.server.AuthTicketsHelper;
+
+/**
+ * Build-scoped cache of Perforce authentication tickets. </p>
+ *
+ * A ticket is looked up in memory first, then in a Perforce tickets file (if
+ * specified). Tickets obtained by a login are kept in memory for the rest of
+ * the build along with the expiration time reported by the server, and are
+ * written back to the tickets file. The expiration of a ticket read from the file is unknown until
+ * the caller verifies it with the server. A ticket is no longer handed out
+ * shortly before it expires, so it doesn't expire while a task runs. The cache
+ * never contacts the server; a ticket rejected by the server must be
+ * invalidated by the caller. </p>
+ *
+ * @see ServerTask
+ */
+public class PerforceTicketCache {
+
+    /** Project reference id of the build-scoped ticket cache. */
+    public static final String REFERENCE_ID = "p4.ticket.cache";
+
+    /** Default ticket timeout in seconds (the Perforce default of 12 hours). */
+    public static final long DEFAULT_TICKET_TIMEOUT = 43200;
+
+    /** Tickets expiring within this time in milliseconds are not used. */
+    public static final long EXPIRY_MARGIN = 10 * 60 * 1000;
+
+    /** Lock used for creating the cache of a project. */
+    private static final Object CACHE_LOCK = new Object();
+
+    /**
+     * A cached ticket with its local expiration time.
+     */
+    private static class Entry {
+
+        /** The ticket value. */
+        private String ticket;
+
+        /** The expiration time in milliseconds; zero if unlimited. */
+        private long expires;
+
+        /** If false, the ticket was read from a file and is unverified. */
+        private boolean verified;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param ticket
+         *            the ticket
+         * @param expires
+         *            the expiration time
+         * @param verified
+         *            the verified
+         */
+        Entry(String ticket, long expires, boolean verified) {
+            this.ticket = ticket;
+            this.expires = expires;
+            this.verified = verified;
+        }
+
+        /**
+         * Checks if is expired or about to expire.
+         *
+         * @param now
+         *            the current time
+         * @return true, if is expired
+         */
+        boolean isExpired(long now) {
+            return expires > 0 && now >= expires - EXPIRY_MARGIN;
+        }
+    }
+
+    /** The project owning this cache. */
+    private Project project;
+
+    /** Cached tickets by server address and user. */
+    private Map<String, Entry> tickets = new HashMap<String, Entry>();
+
+    /** Tickets known to be rejected or expired by server address and user. */
+    private Map<String, String> invalidTickets = new HashMap<String, String>();
+
+    /**
+     * Instantiates a new ticket cache for the project.
+     *
+     * @param project
+     *            the project
+     */
+    protected PerforceTicketCache(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Gets the ticket cache of the project. Creates the cache and saves it as
+     * a project reference if it doesn't exist yet.
+     *
+     * @param project
+     *            the project
+     * @return the ticket cache
+     */
+    public static PerforceTicketCache getInstance(Project project) {
+        synchronized (CACHE_LOCK) {
+            Object ref = project.getReference(REFERENCE_ID);
+            if (ref instanceof PerforceTicketCache) {
+                return (PerforceTicketCache) ref;
+            }
+            PerforceTicketCache cache = new PerforceTicketCache(project);
+            project.addReference(REFERENCE_ID, cache);
+            return cache;
+        }
+    }
+
+    /**
+     * Gets a ticket for the user on the server. Look up an unexpired ticket in
+     * memory, then in the tickets file. Returns null if no usable ticket is
+     * found.
+     *
+     * @param serverAddress
+     *            the server address
+     * @param user
+     *            the user
+     * @param ticketsFile
+     *            the tickets file, or null
+     * @return the ticket, or null
+     */
+    public synchronized String getTicket(String serverAddress, String user,
+            String ticketsFile) {
+        String key = makeKey(serverAddress, user);
+        Entry entry = tickets.get(key);
+        if (entry != null) {
+            if (!entry.isExpired(System.currentTimeMillis())) {
+                return entry.ticket;
+            }
+            tickets.remove(key);
+            invalidTickets.put(key, entry.ticket);
+        }
+        if (ticketsFile == null || !new File(ticketsFile).isFile()) {
+            return null;
+        }
+        try {
+            String ticket = AuthTicketsHelper.getTicketValue(user,
+                    serverAddress, ticketsFile);
+            if (ticket == null || ticket.equals(invalidTickets.get(key))) {
+                return null;
+            }
+            // The expiration of a ticket from the file is unknown until it
+            // is verified.
+            tickets.put(key, new Entry(ticket, 0, false));
+            return ticket;
+        } catch (IOException e) {
+            project.log(e.getLocalizedMessage(), Project.MSG_VERBOSE);
+        }
+        return null;
+    }
+
+    /**
+     * Save a ticket obtained by a login. Keep it in memory until it expires
+     * and write it to the tickets file (if specified).
+     *
+     * @param serverAddress
+     *            the server address
+     * @param user
+     *            the user
+     * @param ticket
+     *            the ticket
+     * @param timeout
+     *            the remaining lifetime of the ticket in seconds; zero or
+     *            negative if unlimited
+     * @param ticketsFile
+     *            the tickets file, or null
+     */
+    public synchronized void putTicket(String serverAddress, String user,
+            String ticket, long timeout, String ticketsFile) {
+        if (ticket == null) {
+            return;
+        }
+        String key = makeKey(serverAddress, user);
+        long expires = (timeout > 0) ? System.currentTimeMillis() + timeout
+                * 1000 : 0;
+        tickets.put(key, new Entry(ticket, expires, true));
+        invalidTickets.remove(key);
+        if (ticketsFile != null) {
+            try {
+                AuthTicketsHelper.saveTicket(user, serverAddress, ticket,
+                        ticketsFile);
+            } catch (IOException e) {
+                project.log(e.getLocalizedMessage(), Project.MSG_WARN);
+            }
+        }
+    }
+
+    /**
+     * Checks if the cached ticket of the user on the server was obtained by a
+     * login or verified with the server, so its expiration is known.
+     *
+     * @param serverAddress
+     *            the server address
+     * @param user
+     *            the user
+     * @param ticket
+     *            the ticket
+     * @return true, if verified
+     */
+    public synchronized boolean isVerified(String serverAddress, String user,
+            String ticket) {
+        Entry entry = tickets.get(makeKey(serverAddress, user));
+        return entry != null && entry.verified && entry.ticket.equals(ticket);
+    }
+
+    /**
+     * Mark the ticket of the user on the server as verified, after the server
+     * reported its remaining lifetime.
+     *
+     * @param serverAddress
+     *            the server address
+     * @param user
+     *            the user
+     * @param ticket
+     *            the ticket
+     * @param remaining
+     *            the remaining lifetime in seconds; zero or negative if
+     *            unlimited
+     * @return true, if the ticket can be used; false if it is about to expire
+     */
+    public synchronized boolean verify(String serverAddress, String user,
+            String ticket, long remaining) {
+        String key = makeKey(serverAddress, user);
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(ticket, (remaining > 0) ? now + remaining
+                * 1000 : 0, true);
+        if (entry.isExpired(now)) {
+            tickets.remove(key);
+            invalidTickets.put(key, ticket);
+            return false;
+        }
+        tickets.put(key, entry);
+        return true;
+    }
+
+    /**
+     * Invalidate the ticket of the user on the server, after the server
+     * rejected it. The same ticket won't be read from the tickets file again.
+     *
+     * @param serverAddress
+     *            the server address
+     * @param user
+     *            the user
+     * @param ticket
+     *            the rejected ticket
+     */
+    public synchronized void invalidate(String serverAddress, String user,
+            String ticket) {
+        String key = makeKey(serverAddress, user);
+        tickets.remove(key);
+        if (ticket != null) {
+            invalidTickets.put(key, ticket);
+        }
+    }
+
+    /**
+     * Make the cache key of a ticket.
+     *
+     * @param serverAddress
+     *            the server address
+     * @param user
+     *            the user
+     * @return the key
+     */
+    private String makeKey(String serverAddress, String user) {
+        return serverAddress + "|" + user;
+    }
+}
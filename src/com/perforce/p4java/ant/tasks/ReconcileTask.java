@@ -0,0 +1,1125 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import com.perforce.p4java.client.IClientSummary.ClientLineEnd;
+import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.client.AddFilesOptions;
+import com.perforce.p4java.option.client.DeleteFilesOptions;
+import com.perforce.p4java.option.client.EditFilesOptions;
+import com.perforce.p4java.option.client.GetDiffFilesOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+/**
+ * Open files for add, edit or delete to reconcile the client workspace with
+ * its have list. </p>
+ *
+ * The workspace (or the "root" directory within it) is walked by several
+ * threads. Each local file is compared with the have revision reported by a
+ * streamed "p4 fstat -Ol": files not on the have list are opened for add,
+ * files whose size or MD5 digest differs are opened for edit, and files on the
+ * have list that are missing locally are opened for delete. Digests are
+ * computed in parallel, reading large files through memory-mapped regions.
+ * Files already opened are left alone, and so are files excluded from the
+ * walk, or in excluded directories. A directory that can't be listed fails
+ * the task. Symbolic links are compared as files and never walked into. </p>
+ *
+ * As with "p4 reconcile", files matching the rules of the Perforce ignore
+ * files are not opened for add. The ignore file name is taken from the
+ * "ignoreFile" attribute, the "p4.ignore" project property or the P4IGNORE
+ * environment variable, and the ignore files with that name in the
+ * directories from the client root down are read. A rule applies to the
+ * directory of its ignore file and below: "#" starts a comment, "!" negates
+ * a rule, a trailing "/" matches directories only, and a rule containing "/"
+ * is matched against the path relative to that directory ("*" within a
+ * name, "..." or "**" across directories); otherwise it is matched against
+ * file and directory names. The last matching rule wins, and the files of an
+ * ignored directory are ignored. </p>
+ *
+ * The digest of a text file is computed with CRLF line endings normalized if
+ * the client writes CRLF line endings. Files whose local content can't be
+ * compared with the depot digest (unicode, utf16, keyword expanded or Mac
+ * line endings) are checked by the server with "p4 diff -se". </p>
+ *
+ * If a "statCache" file is specified, the size, modification time and digest
+ * of each hashed file are kept in it, and a file whose size and modification
+ * time are unchanged since the previous run is not hashed again. </p>
+ *
+ * The files are opened in batches of "batchSize" files. If "preview" is true,
+ * the files are only listed. </p>
+ *
+ * @see PerforceTask
+ * @see ClientTask
+ */
+public class ReconcileTask extends ClientTask {
+
+    /** Default maximum number of files opened by a single command. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Magic number of a stat cache file ("P4SC"). */
+    private static final int STAT_CACHE_MAGIC = 0x50345343;
+
+    /**
+     * Files modified within this many milliseconds before a stat cache was
+     * written are hashed again, since they may have changed within the
+     * resolution of the file system's modification time.
+     */
+    private static final long STAT_CACHE_RACE_WINDOW = 2000;
+
+    /** Fields requested from fstat for the have list baseline. */
+    private static final String BASELINE_FIELDS = "depotFile,clientFile,headType,digest,fileSize,action";
+
+    /** Fields requested from fstat for opened files. */
+    private static final String OPENED_FIELDS = "depotFile,clientFile,action";
+
+    /**
+     * The directory to reconcile. If not set, the client workspace root is
+     * reconciled.
+     */
+    protected java.io.File root = null;
+
+    /** Number of threads walking and hashing the workspace. */
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * If positive, the files are opened in the pending changelist identified
+     * by changelistId. If zero or negative, the files are opened in the
+     * 'default' changelist.
+     */
+    protected String changelist = String.valueOf(IChangelist.DEFAULT);
+
+    /** If true, the files are listed but not opened. */
+    protected boolean preview = false;
+
+    /** If true, Ant's default excludes are applied to the workspace walk. */
+    protected boolean defaultExcludes = true;
+
+    /** Stat cache file of the hashed files. */
+    protected java.io.File statCache = null;
+
+    /** Name of the Perforce ignore files (P4IGNORE). */
+    protected String ignoreFile = null;
+
+    /** Local paths of the files to add. */
+    protected List<String> addPaths = new ArrayList<String>();
+
+    /** Depot paths of the files to edit. */
+    protected List<String> editPaths = new ArrayList<String>();
+
+    /** Depot paths of the files to delete. */
+    protected List<String> deletePaths = new ArrayList<String>();
+
+    /**
+     * A have list file of the baseline.
+     */
+    private static class BaselineFile {
+
+        /** The depot path. */
+        private String depotPath;
+
+        /** The file type of the have revision. */
+        private String fileType;
+
+        /** The digest of the have revision; null if unknown. */
+        private String digest;
+
+        /** The size of the have revision; -1 if unknown. */
+        private long size;
+
+        /** If true, the file is opened. */
+        private boolean opened;
+
+        /** If true, the file was found in the workspace. */
+        private volatile boolean found;
+    }
+
+    /**
+     * A rule of a Perforce ignore file.
+     */
+    private static class IgnoreRule {
+
+        /** The directory of the ignore file, with a trailing separator. */
+        private String base;
+
+        /** The Ant pattern, with platform separators. */
+        private String pattern;
+
+        /**
+         * If true, the pattern is matched against the path relative to the
+         * base directory; otherwise, against the name.
+         */
+        private boolean anchored;
+
+        /** If true, the rule only matches directories. */
+        private boolean directoryOnly;
+
+        /** If true, a matching file is not ignored. */
+        private boolean negated;
+    }
+
+    /**
+     * A stat cache entry.
+     */
+    private static class StatEntry {
+
+        /** The file size. */
+        private long size;
+
+        /** The file modification time. */
+        private long lastModified;
+
+        /** The digest. */
+        private String digest;
+
+        /**
+         * Instantiates a new stat entry.
+         *
+         * @param size
+         *            the size
+         * @param lastModified
+         *            the last modified
+         * @param digest
+         *            the digest
+         */
+        StatEntry(long size, long lastModified, String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    /** Baseline files by absolute local path. */
+    private Map<String, BaselineFile> baseline;
+
+    /** Absolute local paths of the opened files. */
+    private Set<String> openedPaths;
+
+    /** Absolute paths of the directories walked. */
+    private Set<String> walkedDirs;
+
+    /** Stat cache entries read at the start of the execution. */
+    private Map<String, StatEntry> previousStats;
+
+    /** Time the previous stat cache was written. */
+    private long previousStatsTime;
+
+    /** Stat cache entries of this execution. */
+    private Map<String, StatEntry> stats;
+
+    /** If true, CRLF line endings of text files are normalized for digests. */
+    private boolean normalizeLineEnds;
+
+    /** If true, text files can't be compared locally (Mac line endings). */
+    private boolean verifyText;
+
+    /** File name patterns excluded from the walk. */
+    private List<String> excludedNames;
+
+    /** Directory name patterns excluded from the walk. */
+    private List<String> excludedDirNames;
+
+    /** Name of the ignore files; null if none. */
+    private String ignoreName;
+
+    /**
+     * Default constructor.
+     */
+    public ReconcileTask() {
+        super();
+    }
+
+    /**
+     * Sets the root.
+     *
+     * @param root
+     *            the new root
+     */
+    public void setRoot(java.io.File root) {
+        this.root = root;
+    }
+
+    /**
+     * Sets the threads.
+     *
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the changelist.
+     *
+     * @param changelist
+     *            the new changelist
+     */
+    public void setChangelist(String changelist) {
+        this.changelist = changelist;
+    }
+
+    /**
+     * Sets the preview.
+     *
+     * @param preview
+     *            the new preview
+     */
+    public void setPreview(boolean preview) {
+        this.preview = preview;
+    }
+
+    /**
+     * Sets the default excludes.
+     *
+     * @param defaultExcludes
+     *            the new default excludes
+     */
+    public void setDefaultExcludes(boolean defaultExcludes) {
+        this.defaultExcludes = defaultExcludes;
+    }
+
+    /**
+     * Sets the stat cache.
+     *
+     * @param statCache
+     *            the new stat cache
+     */
+    public void setStatCache(java.io.File statCache) {
+        this.statCache = statCache;
+    }
+
+    /**
+     * Sets the ignore file.
+     *
+     * @param ignoreFile
+     *            the new ignore file name
+     */
+    public void setIgnoreFile(String ignoreFile) {
+        this.ignoreFile = ignoreFile;
+    }
+
+    /**
+     * Reconcile the workspace: fetch the baseline, walk and compare the local
+     * files, and open the differences for add, edit and delete.
+     *
+     * @see PerforceTask#execP4Command()
+     */
+    protected void execP4Command() throws BuildException {
+        try {
+            addPaths.clear();
+            editPaths.clear();
+            deletePaths.clear();
+            java.io.File dir = (root != null) ? root : new java.io.File(
+                    getP4Client().getRoot());
+            dir = dir.getAbsoluteFile();
+            if (!dir.isDirectory()) {
+                throw new BuildException("Not a directory: " + dir); //$NON-NLS-1$
+            }
+            initLineEnds();
+            initExcludes();
+            ignoreName = getIgnoreFile();
+            readStatCache();
+            fetchBaseline(dir);
+            List<String> verifyPaths = walk(dir);
+            String statCachePath = (statCache != null) ? statCache
+                    .getAbsolutePath() : null;
+            for (Map.Entry<String, BaselineFile> entry : baseline.entrySet()) {
+                BaselineFile file = entry.getValue();
+                if (!file.found && !file.opened
+                        && !entry.getKey().equals(statCachePath)
+                        && isWalked(new java.io.File(entry.getKey()))) {
+                    deletePaths.add(file.depotPath);
+                }
+            }
+            if (!verifyPaths.isEmpty()) {
+                editPaths.addAll(verifyOnServer(verifyPaths));
+            }
+            Collections.sort(addPaths);
+            Collections.sort(editPaths);
+            Collections.sort(deletePaths);
+            writeStatCache();
+            baseline = null;
+            openedPaths = null;
+            walkedDirs = null;
+            previousStats = null;
+            stats = null;
+            logReconcileSummary(verifyPaths.size());
+            if (preview) {
+                logPaths("add", addPaths);
+                logPaths("edit", editPaths);
+                logPaths("delete", deletePaths);
+            } else {
+                openFiles();
+            }
+        } catch (P4JavaException e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (P4JavaError e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new BuildException(t.getLocalizedMessage(), t, getLocation());
+        }
+    }
+
+    /**
+     * Determine how text files are written by the client.
+     */
+    private void initLineEnds() {
+        ClientLineEnd lineEnd = getP4Client().getLineEnd();
+        // Files of a share client may have been written with CRLF.
+        normalizeLineEnds = lineEnd == ClientLineEnd.SHARE
+                || (FileTypes.translatesLineEnds(lineEnd)
+                        && lineEnd != ClientLineEnd.MAC);
+        verifyText = lineEnd == ClientLineEnd.MAC;
+    }
+
+    /**
+     * Split Ant's default excludes into file and directory name patterns.
+     */
+    private void initExcludes() {
+        excludedNames = new ArrayList<String>();
+        excludedDirNames = new ArrayList<String>();
+        if (!defaultExcludes) {
+            return;
+        }
+        for (String pattern : DirectoryScanner.getDefaultExcludes()) {
+            pattern = pattern.replace('\\', '/');
+            if (pattern.startsWith("**/")) {
+                pattern = pattern.substring(3);
+            }
+            if (pattern.endsWith("/**")) {
+                excludedDirNames.add(pattern.substring(0, pattern.length() - 3));
+            } else if (pattern.indexOf('/') < 0) {
+                excludedNames.add(pattern);
+            }
+        }
+    }
+
+    /**
+     * Gets the name of the Perforce ignore files from the "ignoreFile"
+     * attribute, the "p4.ignore" project property or the "P4IGNORE"
+     * environment variable, respectively.
+     *
+     * @return the ignore file name, or null
+     */
+    protected String getIgnoreFile() {
+        if (!isEmpty(ignoreFile)) {
+            return ignoreFile;
+        }
+        String name = getProject().getProperty("p4.ignore");
+        if (isEmpty(name)) {
+            name = System.getenv("P4IGNORE");
+        }
+        return isEmpty(name) ? null : name;
+    }
+
+    /**
+     * Read the ignore file of a directory, if any, and append its rules.
+     *
+     * @param dir
+     *            the directory
+     * @param rules
+     *            the rules of the enclosing directories
+     * @return the rules applying to the directory
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private List<IgnoreRule> readIgnoreRules(java.io.File dir,
+            List<IgnoreRule> rules) throws IOException {
+        if (ignoreName == null) {
+            return rules;
+        }
+        java.io.File file = new java.io.File(dir, ignoreName);
+        if (!file.isFile()) {
+            return rules;
+        }
+        List<IgnoreRule> result = new ArrayList<IgnoreRule>(rules);
+        String base = dir.getAbsolutePath() + java.io.File.separator;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                IgnoreRule rule = new IgnoreRule();
+                rule.base = base;
+                rule.negated = line.startsWith("!");
+                if (rule.negated) {
+                    line = line.substring(1);
+                }
+                rule.directoryOnly = line.endsWith("/");
+                if (rule.directoryOnly) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                rule.anchored = line.indexOf('/') >= 0;
+                if (line.startsWith("/")) {
+                    line = line.substring(1);
+                }
+                if (line.length() == 0) {
+                    continue;
+                }
+                rule.pattern = line.replace("...", "**").replace('/',
+                        java.io.File.separatorChar);
+                result.add(rule);
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a file or directory is ignored by the rules of the ignore
+     * files.
+     *
+     * @param rules
+     *            the rules applying to its directory
+     * @param file
+     *            the file or directory
+     * @param directory
+     *            true, if it is a directory
+     * @param ignored
+     *            true, if its directory is ignored
+     * @return true, if is ignored
+     */
+    private static boolean isIgnored(List<IgnoreRule> rules,
+            java.io.File file, boolean directory, boolean ignored) {
+        String path = file.getAbsolutePath();
+        for (IgnoreRule rule : rules) {
+            if ((rule.directoryOnly && !directory)
+                    || !path.startsWith(rule.base)) {
+                continue;
+            }
+            boolean matched = rule.anchored ? SelectorUtils.matchPath(
+                    rule.pattern, path.substring(rule.base.length()))
+                    : SelectorUtils.match(rule.pattern, file.getName());
+            if (matched) {
+                ignored = !rule.negated;
+            }
+        }
+        return ignored;
+    }
+
+    /**
+     * Fetch the have list baseline and the opened files under the directory
+     * with streamed "p4 fstat" commands.
+     *
+     * @param dir
+     *            the directory
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private void fetchBaseline(java.io.File dir) throws P4JavaException {
+        final IOptionsServer server = getP4Server();
+        final Map<String, BaselineFile> files = new HashMap<String, BaselineFile>();
+        final Set<String> opened = new HashSet<String>();
+        String path = new java.io.File(dir, "...").getPath();
+        server.execStreamingMapCommand("fstat", new String[] { "-Ol", "-T",
+                BASELINE_FIELDS, path + "#have" }, null,
+                new IStreamingCallback() {
+                    public boolean startResults(int key) {
+                        return true;
+                    }
+
+                    public boolean endResults(int key) {
+                        return true;
+                    }
+
+                    public boolean handleResult(Map<String, Object> record,
+                            int key) throws P4JavaException {
+                        checkError(server, record);
+                        Object clientFile = record.get("clientFile");
+                        if (record.get("depotFile") == null
+                                || clientFile == null) {
+                            return true;
+                        }
+                        BaselineFile file = new BaselineFile();
+                        file.depotPath = record.get("depotFile").toString();
+                        file.fileType = (String) record.get("headType");
+                        file.digest = (String) record.get("digest");
+                        file.size = parseLong(record.get("fileSize"));
+                        file.opened = record.get("action") != null;
+                        files.put(new java.io.File(clientFile.toString())
+                                .getAbsolutePath(), file);
+                        return true;
+                    }
+                }, 0);
+        server.execStreamingMapCommand("fstat", new String[] { "-Ro", "-T",
+                OPENED_FIELDS, path }, null, new IStreamingCallback() {
+            public boolean startResults(int key) {
+                return true;
+            }
+
+            public boolean endResults(int key) {
+                return true;
+            }
+
+            public boolean handleResult(Map<String, Object> record, int key)
+                    throws P4JavaException {
+                checkError(server, record);
+                Object clientFile = record.get("clientFile");
+                if (clientFile != null) {
+                    opened.add(new java.io.File(clientFile.toString())
+                            .getAbsolutePath());
+                }
+                return true;
+            }
+        }, 0);
+        baseline = files;
+        openedPaths = opened;
+    }
+
+    /**
+     * Walk the directory with several threads. Compare each local file with
+     * the baseline, collecting the files to add and edit, and mark the
+     * baseline files found.
+     *
+     * @param dir
+     *            the directory
+     * @return the depot paths of the files to verify on the server
+     * @throws Exception
+     *             the exception
+     */
+    private List<String> walk(java.io.File dir) throws Exception {
+        final ConcurrentLinkedQueue<String> adds = new ConcurrentLinkedQueue<String>();
+        final ConcurrentLinkedQueue<String> edits = new ConcurrentLinkedQueue<String>();
+        final ConcurrentLinkedQueue<String> verifies = new ConcurrentLinkedQueue<String>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final ThreadLocal<FileDigester> digesters = new ThreadLocal<FileDigester>() {
+            protected FileDigester initialValue() {
+                return new FileDigester();
+            }
+        };
+        final String statCachePath = (statCache != null) ? statCache
+                .getAbsolutePath() : null;
+        final ExecutorService executor = Executors.newFixedThreadPool(Math
+                .max(1, threads));
+        stats = new ConcurrentHashMap<String, StatEntry>();
+        walkedDirs = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        // The ignore files from the client root down to the directory apply.
+        List<IgnoreRule> rules = Collections.emptyList();
+        boolean ignored = false;
+        List<java.io.File> ancestors = new ArrayList<java.io.File>();
+        String rootPath = getP4Client().getRoot();
+        java.io.File clientRoot = (rootPath != null) ? new java.io.File(
+                rootPath).getAbsoluteFile() : null;
+        for (java.io.File parent = dir.getParentFile(); parent != null
+                && clientRoot != null; parent = parent.getParentFile()) {
+            ancestors.add(0, parent);
+            if (parent.equals(clientRoot)) {
+                break;
+            }
+        }
+        if (!ancestors.isEmpty() && ancestors.get(0).equals(clientRoot)) {
+            for (java.io.File ancestor : ancestors) {
+                if (!ancestor.equals(clientRoot)) {
+                    ignored = isIgnored(rules, ancestor, true, ignored);
+                }
+                rules = readIgnoreRules(ancestor, rules);
+            }
+            ignored = isIgnored(rules, dir, true, ignored);
+        }
+        try {
+            submitDirectory(executor, dir, rules, ignored, adds, edits,
+                    verifies, pending, failure, done, digesters,
+                    statCachePath);
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure.get() != null) {
+            Throwable t = failure.get();
+            if (t instanceof Exception) {
+                throw (Exception) t;
+            }
+            throw new BuildException(t.getLocalizedMessage(), t, getLocation());
+        }
+        addPaths.addAll(adds);
+        editPaths.addAll(edits);
+        return new ArrayList<String>(verifies);
+    }
+
+    /**
+     * Submit the walk of a directory. The walk of each subdirectory is
+     * submitted in turn; the latch is released when all directories have been
+     * walked, or after the first failure.
+     *
+     * @param executor
+     *            the executor
+     * @param dir
+     *            the directory
+     * @param rules
+     *            the ignore rules of the enclosing directories
+     * @param ignored
+     *            true, if the directory is ignored
+     * @param adds
+     *            the files to add
+     * @param edits
+     *            the files to edit
+     * @param verifies
+     *            the files to verify on the server
+     * @param pending
+     *            the number of pending directories
+     * @param failure
+     *            the first failure
+     * @param done
+     *            the latch released when the walk is done
+     * @param digesters
+     *            the digesters of the threads
+     * @param statCachePath
+     *            the absolute path of the stat cache, or null
+     */
+    private void submitDirectory(final ExecutorService executor,
+            final java.io.File dir, final List<IgnoreRule> rules,
+            final boolean ignored, final ConcurrentLinkedQueue<String> adds,
+            final ConcurrentLinkedQueue<String> edits,
+            final ConcurrentLinkedQueue<String> verifies,
+            final AtomicInteger pending,
+            final AtomicReference<Throwable> failure,
+            final CountDownLatch done,
+            final ThreadLocal<FileDigester> digesters,
+            final String statCachePath) {
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                    java.io.File[] children = dir.listFiles();
+                    if (children == null) {
+                        // Its files would otherwise be opened for delete.
+                        throw new IOException("Cannot list directory " + dir); //$NON-NLS-1$
+                    }
+                    walkedDirs.add(dir.getAbsolutePath());
+                    List<IgnoreRule> dirRules = readIgnoreRules(dir, rules);
+                    for (java.io.File child : children) {
+                        String name = child.getName();
+                        if (child.isDirectory() && !isSymbolicLink(child)) {
+                            if (!isExcluded(name, true)) {
+                                submitDirectory(executor, child, dirRules,
+                                        isIgnored(dirRules, child, true,
+                                                ignored), adds, edits,
+                                        verifies, pending, failure, done,
+                                        digesters, statCachePath);
+                            }
+                            continue;
+                        }
+                        String path = child.getAbsolutePath();
+                        if (isExcluded(name, false)
+                                || path.equals(statCachePath)) {
+                            continue;
+                        }
+                        compareFile(child, path, isIgnored(dirRules, child,
+                                false, ignored), adds, edits, verifies,
+                                digesters.get());
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    done.countDown();
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        done.countDown();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Compare a local file with the baseline.
+     *
+     * @param file
+     *            the file
+     * @param path
+     *            the absolute path of the file
+     * @param ignored
+     *            true, if the file is ignored and not to be added
+     * @param adds
+     *            the files to add
+     * @param edits
+     *            the files to edit
+     * @param verifies
+     *            the files to verify on the server
+     * @param digester
+     *            the digester of this thread
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void compareFile(java.io.File file, String path,
+            boolean ignored, ConcurrentLinkedQueue<String> adds,
+            ConcurrentLinkedQueue<String> edits,
+            ConcurrentLinkedQueue<String> verifies, FileDigester digester)
+            throws IOException {
+        BaselineFile haveFile = baseline.get(path);
+        if (haveFile == null) {
+            if (!ignored && !openedPaths.contains(path)) {
+                adds.add(path);
+            }
+            return;
+        }
+        haveFile.found = true;
+        if (haveFile.opened || FileTypes.isSymlink(haveFile.fileType)) {
+            return;
+        }
+        if (!isLocallyComparable(haveFile.fileType) || haveFile.digest == null) {
+            verifies.add(haveFile.depotPath);
+            return;
+        }
+        boolean text = FileTypes.isText(haveFile.fileType);
+        boolean normalize = text && normalizeLineEnds;
+        long size = file.length();
+        if (!normalize && haveFile.size >= 0 && haveFile.size != size) {
+            edits.add(haveFile.depotPath);
+            return;
+        }
+        long lastModified = file.lastModified();
+        String digest = null;
+        StatEntry previous = (previousStats != null) ? previousStats.get(path)
+                : null;
+        if (previous != null && previous.size == size
+                && previous.lastModified == lastModified
+                && lastModified < previousStatsTime - STAT_CACHE_RACE_WINDOW) {
+            digest = previous.digest;
+        } else {
+            digest = digester.digest(file, normalize);
+        }
+        stats.put(path, new StatEntry(size, lastModified, digest));
+        if (!digest.equalsIgnoreCase(haveFile.digest)) {
+            edits.add(haveFile.depotPath);
+        }
+    }
+
+    /**
+     * Checks if a directory entry is a symbolic link: its baseline file has
+     * symlink type, or its canonical path differs from its absolute path
+     * within the canonical parent directory.
+     *
+     * @param file
+     *            the directory entry
+     * @return true, if the entry is a symbolic link
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private boolean isSymbolicLink(java.io.File file) throws IOException {
+        BaselineFile haveFile = baseline.get(file.getAbsolutePath());
+        if (haveFile != null && FileTypes.isSymlink(haveFile.fileType)) {
+            return true;
+        }
+        java.io.File entry = new java.io.File(file.getParentFile()
+                .getCanonicalFile(), file.getName());
+        return !entry.getCanonicalFile().equals(entry.getAbsoluteFile());
+    }
+
+    /**
+     * Checks if the walk would have found a file: its name is not excluded and
+     * its nearest existing directory was walked, with no excluded directory
+     * in between.
+     *
+     * @param file
+     *            the file
+     * @return true, if a missing file is really missing
+     */
+    private boolean isWalked(java.io.File file) {
+        if (isExcluded(file.getName(), false)) {
+            return false;
+        }
+        java.io.File dir = file.getParentFile();
+        while (dir != null && !dir.isDirectory()) {
+            if (isExcluded(dir.getName(), true)) {
+                return false;
+            }
+            dir = dir.getParentFile();
+        }
+        return dir != null && walkedDirs.contains(dir.getAbsolutePath());
+    }
+
+    /**
+     * Checks if a file or directory name is excluded from the walk.
+     *
+     * @param name
+     *            the name
+     * @param directory
+     *            true, if the name is a directory name
+     * @return true, if is excluded
+     */
+    private boolean isExcluded(String name, boolean directory) {
+        for (String pattern : excludedNames) {
+            if (SelectorUtils.match(pattern, name)) {
+                return true;
+            }
+        }
+        if (directory) {
+            for (String pattern : excludedDirNames) {
+                if (SelectorUtils.match(pattern, name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Verify files with "p4 diff -se" on the server, in batches.
+     *
+     * @param depotPaths
+     *            the depot paths
+     * @return the depot paths of the files that differ
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<String> verifyOnServer(List<String> depotPaths)
+            throws P4JavaException {
+        List<String> different = new ArrayList<String>();
+        int size = getBatchSize();
+        for (int i = 0; i < depotPaths.size(); i += size) {
+            List<IFileSpec> results = getP4Client().getDiffFiles(
+                    FileSpecBuilder.makeFileSpecList(depotPaths.subList(i,
+                            Math.min(i + size, depotPaths.size()))),
+                    new GetDiffFilesOptions().setUnopenedDifferent(true));
+            if (results != null) {
+                for (IFileSpec result : results) {
+                    if (result != null
+                            && result.getOpStatus() == FileSpecOpStatus.VALID
+                            && result.getDepotPathString() != null) {
+                        different.add(result.getDepotPathString());
+                    }
+                }
+            }
+        }
+        return different;
+    }
+
+    /**
+     * Open the files for add, edit and delete in batches. Log the returned file
+     * specs and their summary.
+     *
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private void openFiles() throws P4JavaException {
+        final int changelistId = parseChangelist(changelist);
+        fileSpecSummary = new FileSpecSummary();
+        int size = getBatchSize();
+        execFileSpecBatches(new FileSpecCommand() {
+            public List<IFileSpec> exec(List<IFileSpec> fileSpecs)
+                    throws P4JavaException {
+                return getP4Client().addFiles(fileSpecs,
+                        new AddFilesOptions(false, changelistId, null, true));
+            }
+        }, addPaths.iterator(), size);
+        execFileSpecBatches(new FileSpecCommand() {
+            public List<IFileSpec> exec(List<IFileSpec> fileSpecs)
+                    throws P4JavaException {
+                return getP4Client().editFiles(fileSpecs,
+                        new EditFilesOptions(false, false, changelistId, null));
+            }
+        }, editPaths.iterator(), size);
+        execFileSpecBatches(new FileSpecCommand() {
+            public List<IFileSpec> exec(List<IFileSpec> fileSpecs)
+                    throws P4JavaException {
+                return getP4Client().deleteFiles(fileSpecs,
+                        new DeleteFilesOptions(changelistId, false, false));
+            }
+        }, deletePaths.iterator(), size);
+        if (!summary) {
+            logFileSpecSummary(fileSpecSummary);
+        }
+    }
+
+    /**
+     * Read the stat cache, if specified and present.
+     */
+    private void readStatCache() {
+        previousStats = null;
+        previousStatsTime = 0;
+        if (statCache == null || !statCache.isFile()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(statCache), 65536));
+            try {
+                if (in.readInt() != STAT_CACHE_MAGIC) {
+                    throw new IOException("Not a stat cache: " + statCache); //$NON-NLS-1$
+                }
+                long time = in.readLong();
+                int count = in.readInt();
+                Map<String, StatEntry> entries = new HashMap<String, StatEntry>(
+                        count * 4 / 3 + 1);
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    entries.put(path, new StatEntry(in.readLong(), in
+                            .readLong(), in.readUTF()));
+                }
+                previousStats = entries;
+                previousStatsTime = time;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log(e.getLocalizedMessage(), Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * Write the stat cache, if specified.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void writeStatCache() throws IOException {
+        if (statCache == null) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(statCache), 65536));
+        try {
+            out.writeInt(STAT_CACHE_MAGIC);
+            out.writeLong(time);
+            out.writeInt(stats.size());
+            for (Map.Entry<String, StatEntry> entry : stats.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeUTF(entry.getValue().digest);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Log the counts of the reconciled files.
+     *
+     * @param verified
+     *            the number of files verified on the server
+     */
+    private void logReconcileSummary(int verified) {
+        int messagePriority = Project.MSG_INFO;
+        if (!isLoggable(messagePriority)) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append("reconcileSummary {" + LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("add").append("=")
+                .append(addPaths.size()).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("edit").append("=")
+                .append(editPaths.size()).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("delete").append("=")
+                .append(deletePaths.size()).append(LINE_SEPARATOR);
+        message.append(LINE_PADDING).append("verified").append("=")
+                .append(verified).append(LINE_SEPARATOR);
+        message.append("}" + LINE_SEPARATOR);
+        log(message.toString(), messagePriority);
+    }
+
+    /**
+     * Log the paths of the files to open in preview mode.
+     *
+     * @param action
+     *            the action
+     * @param paths
+     *            the paths
+     */
+    private void logPaths(String action, List<String> paths) {
+        int messagePriority = Project.MSG_INFO;
+        if (!isLoggable(messagePriority)) {
+            return;
+        }
+        for (String path : paths) {
+            log(action + " " + path, messagePriority);
+        }
+    }
+
+    /**
+     * Gets the batch size.
+     *
+     * @return the batch size
+     */
+    private int getBatchSize() {
+        return (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Checks if a local file of the type can be compared with the depot digest.
+     * Unicode and utf16 files are translated, keyword expanded files are
+     * modified, and resource files are stored differently when written to the
+     * client.
+     *
+     * @param fileType
+     *            the file type
+     * @return true, if is locally comparable
+     */
+    private boolean isLocallyComparable(String fileType) {
+        if (fileType == null || FileTypes.isKeywordExpanded(fileType)) {
+            return false;
+        }
+        if (FileTypes.isText(fileType)) {
+            return !verifyText;
+        }
+        return FileTypes.isBinary(fileType);
+    }
+
+    /**
+     * Parse a long value of a raw record.
+     *
+     * @param value
+     *            the value
+     * @return the long value, or -1
+     */
+    private static long parseLong(Object value) {
+        if (value != null) {
+            try {
+                return Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+                // Unknown.
+            }
+        }
+        return -1;
+    }
+}
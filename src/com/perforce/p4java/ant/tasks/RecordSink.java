@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.util.Map;
+
+import org.apache.tools.ant.Task;
+
+/**
+ * Receives the raw records of a streaming Perforce command one at a time. The
+ * records are not kept by the task, so implementations should process each
+ * record as it arrives. An implementation can be plugged into a streaming task
+ * as an Ant reference. </p>
+ *
+ * @see FstatTask
+ * @see CountRecordSink
+ * @see FileRecordSink
+ */
+public interface RecordSink {
+
+    /**
+     * Open the sink before the first record.
+     *
+     * @param task
+     *            the task producing the records
+     * @throws Exception
+     *             the exception
+     */
+    void open(Task task) throws Exception;
+
+    /**
+     * Handle a record.
+     *
+     * @param record
+     *            the record as a map of field names to values
+     * @return true, to continue; false, to stop the command
+     * @throws Exception
+     *             the exception
+     */
+    boolean handleRecord(Map<String, Object> record) throws Exception;
+
+    /**
+     * Close the sink after the last record.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    void close() throws Exception;
+}
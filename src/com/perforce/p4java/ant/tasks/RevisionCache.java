@@ -0,0 +1,362 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Content-addressed local cache of file revisions. </p>
+ *
+ * Revisions are stored under the cache directory by their MD5 digest (as
+ * reported by "p4 fstat -Ol"), so workspaces of the same depot on one machine
+ * share them. The total size of the cache is bounded: when it grows beyond the
+ * maximum size, the least recently used revisions are evicted. The last use of
+ * a revision is its modification time, which is updated on each hit. </p>
+ *
+ * Revisions are written to a temporary file and renamed, so several builds may
+ * use the same cache directory concurrently; a revision evicted by another
+ * build is simply a miss. </p>
+ *
+ * @see SyncTask
+ * @see Diff2Task
+ */
+public class RevisionCache {
+
+    /** Prefix of the project reference ids of revision caches. */
+    public static final String REFERENCE_ID_PREFIX = "p4.revision.cache:";
+
+    /** Lock used for creating the cache of a project. */
+    private static final Object CACHE_LOCK = new Object();
+
+    /** Fraction of the maximum size the cache is evicted down to. */
+    private static final double EVICTION_TARGET = 0.8;
+
+    /** The project using the cache. */
+    private Project project;
+
+    /** The cache directory. */
+    private File dir;
+
+    /** The maximum size in bytes. */
+    private long maxBytes;
+
+    /** The current size in bytes; -1 if not computed yet. */
+    private long size = -1;
+
+    /** Number of hits. */
+    private long hits = 0;
+
+    /** Number of misses. */
+    private long misses = 0;
+
+    /**
+     * Instantiates a new revision cache.
+     *
+     * @param project
+     *            the project
+     * @param dir
+     *            the cache directory
+     * @param maxBytes
+     *            the maximum size in bytes
+     */
+    protected RevisionCache(Project project, File dir, long maxBytes) {
+        this.project = project;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the revision cache of a directory for the project. Creates the
+     * cache and saves it as a project reference if it doesn't exist yet.
+     *
+     * @param project
+     *            the project
+     * @param dir
+     *            the cache directory
+     * @param maxBytes
+     *            the maximum size in bytes
+     * @return the revision cache
+     */
+    public static RevisionCache getInstance(Project project, File dir,
+            long maxBytes) {
+        String id = REFERENCE_ID_PREFIX + dir.getAbsolutePath();
+        synchronized (CACHE_LOCK) {
+            Object ref = project.getReference(id);
+            if (ref instanceof RevisionCache) {
+                RevisionCache cache = (RevisionCache) ref;
+                cache.maxBytes = maxBytes;
+                return cache;
+            }
+            RevisionCache cache = new RevisionCache(project,
+                    dir.getAbsoluteFile(), maxBytes);
+            project.addReference(id, cache);
+            return cache;
+        }
+    }
+
+    /**
+     * Copy a cached revision to a file. The target file is replaced.
+     *
+     * @param digest
+     *            the digest of the revision
+     * @param target
+     *            the target file
+     * @return true, if the revision was cached and copied
+     */
+    public boolean copyTo(String digest, File target) {
+        File cached = getFile(digest);
+        if (!cached.isFile()) {
+            countMiss();
+            return false;
+        }
+        try {
+            File parent = target.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+            }
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Cannot replace " + target); //$NON-NLS-1$
+            }
+            copy(cached, target);
+            cached.setLastModified(System.currentTimeMillis());
+            countHit();
+            return true;
+        } catch (IOException e) {
+            // Evicted by another build, or the target can't be written.
+            project.log(e.getLocalizedMessage(), Project.MSG_VERBOSE);
+            countMiss();
+            return false;
+        }
+    }
+
+    /**
+     * Gets the cached file of a revision, to be read in place.
+     *
+     * @param digest
+     *            the digest of the revision
+     * @return the cached file, or null if the revision is not cached
+     */
+    public File lookup(String digest) {
+        File cached = getFile(digest);
+        if (!cached.isFile()) {
+            countMiss();
+            return null;
+        }
+        cached.setLastModified(System.currentTimeMillis());
+        countHit();
+        return cached;
+    }
+
+    /**
+     * Store a file as the revision with the digest, unless it is already
+     * cached. Evict the least recently used revisions if the cache grows too
+     * large.
+     *
+     * @param digest
+     *            the digest of the revision
+     * @param source
+     *            the file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void put(String digest, File source) throws IOException {
+        File cached = getFile(digest);
+        if (cached.isFile()) {
+            return;
+        }
+        File parent = cached.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent); //$NON-NLS-1$
+        }
+        File tmp = File.createTempFile(digest, ".tmp", parent);
+        try {
+            copy(source, tmp);
+            if (!tmp.renameTo(cached) && !cached.isFile()) {
+                throw new IOException("Cannot rename " + tmp + " to " + cached); //$NON-NLS-1$
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+        synchronized (this) {
+            if (size < 0) {
+                size = computeSize();
+            } else {
+                size += cached.length();
+            }
+            if (size > maxBytes) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of hits.
+     *
+     * @return the hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of misses.
+     *
+     * @return the misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Count a hit.
+     */
+    private synchronized void countHit() {
+        hits++;
+    }
+
+    /**
+     * Count a miss.
+     */
+    private synchronized void countMiss() {
+        misses++;
+    }
+
+    /**
+     * Gets the cache file of a revision.
+     *
+     * @param digest
+     *            the digest
+     * @return the file
+     */
+    private File getFile(String digest) {
+        String name = digest.toUpperCase();
+        return new File(new File(dir, name.substring(0, 2)), name);
+    }
+
+    /**
+     * Compute the size of the cache.
+     *
+     * @return the size in bytes
+     */
+    private long computeSize() {
+        long total = 0;
+        for (File file : listRevisions()) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    /**
+     * Evict the least recently used revisions until the cache is below the
+     * eviction target.
+     */
+    private void evict() {
+        List<File> files = listRevisions();
+        final long[] lastUsed = new long[files.size()];
+        List<Integer> order = new ArrayList<Integer>(files.size());
+        long total = 0;
+        for (int i = 0; i < files.size(); i++) {
+            lastUsed[i] = files.get(i).lastModified();
+            total += files.get(i).length();
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return (lastUsed[a] < lastUsed[b]) ? -1
+                        : (lastUsed[a] > lastUsed[b]) ? 1 : 0;
+            }
+        });
+        long target = (long) (maxBytes * EVICTION_TARGET);
+        int evicted = 0;
+        for (Integer i : order) {
+            if (total <= target) {
+                break;
+            }
+            File file = files.get(i);
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                evicted++;
+            }
+        }
+        size = total;
+        project.log("Evicted " + evicted + " revision(s) from " + dir, //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+    }
+
+    /**
+     * List the revision files of the cache.
+     *
+     * @return the files
+     */
+    private List<File> listRevisions() {
+        List<File> files = new ArrayList<File>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] revisions = subdir.listFiles();
+                if (revisions != null) {
+                    for (File revision : revisions) {
+                        if (!revision.getName().endsWith(".tmp")) {
+                            files.add(revision);
+                        }
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Copy a file with file channels.
+     *
+     * @param source
+     *            the source
+     * @param target
+     *            the target
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long length = inChannel.size();
+                long position = 0;
+                while (position < length) {
+                    position += inChannel.transferTo(position, length
+                            - position, outChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the cache directory.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+}
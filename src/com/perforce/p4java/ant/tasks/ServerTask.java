@@ -3,19 +3,32 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 
 import com.perforce.p4java.PropertyDefs;
+import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.MessageSeverityCode;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.RpcSystemFileCommandsHelper;
+import com.perforce.p4java.impl.mapbased.server.Server;
 import com.perforce.p4java.option.Options;
 import com.perforce.p4java.option.UsageOptions;
 import com.perforce.p4java.option.server.LoginOptions;
@@ -31,6 +44,26 @@ import com.perforce.p4java.server.callback.ICommandCallback;
  */
 public abstract class ServerTask extends PerforceTask {
 
+    /**
+     * A unit of work executed on a Perforce server connection by
+     * {@link ServerTask#execParallel(List, int)}.
+     *
+     * @param <T>
+     *            the result type
+     */
+    protected interface ServerJob<T> {
+        /**
+         * Run the job.
+         *
+         * @param server
+         *            the connected server owned by the current thread
+         * @return the result
+         * @throws Exception
+         *             the exception
+         */
+        T run(IOptionsServer server) throws Exception;
+    }
+
     /**
      * This inner class is used for handling nested "globaloption" elements.
      */
@@ -209,6 +242,40 @@ public abstract class ServerTask extends PerforceTask {
      */
     private LoginOptions loginOptions = new LoginOptions(allHosts);
 
+    /**
+     * If true, connections are checked out from and returned to a build-scoped
+     * connection pool instead of being created and disconnected by each task.
+     */
+    protected boolean pooled = false;
+
+    /**
+     * If true, authentication tickets are reused from a build-scoped ticket
+     * cache and a tickets file instead of logging in for each task.
+     */
+    protected boolean useTicketCache = false;
+
+    /** Perforce tickets file used by the ticket cache. */
+    protected String ticketsFile = null;
+
+    /**
+     * Ticket timeout in seconds, used to expire cached tickets locally if the
+     * server doesn't report their expiration. Defaults to the Perforce default
+     * of 12 hours.
+     */
+    protected long ticketTimeout = PerforceTicketCache.DEFAULT_TICKET_TIMEOUT;
+
+    /**
+     * If true, the server has been set by an enclosing task, which owns the
+     * connection.
+     */
+    private boolean sharedServer = false;
+
+    /**
+     * The callback of the enclosing task, restored on the shared server when
+     * this task is done.
+     */
+    private ICommandCallback previousCallback = null;
+
     /**
      * Options for Perforce command.
      */
@@ -362,116 +429,701 @@ public abstract class ServerTask extends PerforceTask {
     }
 
     /**
-     * Initialize an instance of the Perforce server from the factory using the
-     * specified protocol, server port, protocol specific properties and usage
-     * options. Register callback on the server. Connect to server; set the user
-     * (if present) to server and login to the server with the user's password
-     * (if present).
+     * Sets the pooled.
+     *
+     * @param pooled
+     *            the new pooled
+     */
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    /**
+     * Sets the use ticket cache.
+     *
+     * @param useTicketCache
+     *            the new use ticket cache
+     */
+    public void setUseTicketCache(boolean useTicketCache) {
+        this.useTicketCache = useTicketCache;
+    }
+
+    /**
+     * Sets the tickets file.
+     *
+     * @param ticketsFile
+     *            the new tickets file
+     */
+    public void setTicketsFile(String ticketsFile) {
+        this.ticketsFile = ticketsFile;
+    }
+
+    /**
+     * Sets the ticket timeout.
+     *
+     * @param ticketTimeout
+     *            the new ticket timeout in seconds
+     */
+    public void setTicketTimeout(long ticketTimeout) {
+        this.ticketTimeout = ticketTimeout;
+    }
+
+    /**
+     * Initialize an instance of the Perforce server. Load the server options.
+     * If a server has been set by an enclosing task (i.e. a session), use it
+     * without connecting. Otherwise, acquire a connected server, either
+     * from the build-scoped connection pool (if pooling is enabled) or from the
+     * factory.
      */
     protected void initP4Server() {
         try {
-            // Initialize Perforce server options.
+            // Initialize Perforce server options; they are also needed for
+            // additional connections of a task within a session.
             initP4ServerOptions();
-            // Set default system file helper
-            ServerFactory
-                    .setRpcFileSystemHelper(new RpcSystemFileCommandsHelper());
-            // Get an instance of the P4J server.
-            p4Server = ServerFactory.getOptionsServer(protocol + "://" + port,
+            if (p4Server != null) {
+                // The server is owned by an enclosing task.
+                sharedServer = true;
+                previousCallback = p4Server
+                        .registerCallback(createCommandCallback());
+                return;
+            }
+            // Get a connected and logged in instance of the P4J server.
+            p4Server = acquireP4Server();
+        } catch (P4JavaException e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (P4JavaError e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (Throwable t) {
+            throw new BuildException(t.getLocalizedMessage(), t, getLocation());
+        }
+    }
+
+    /**
+     * Acquire a connected Perforce server. If pooling is enabled, check out an
+     * idle connection from the build-scoped connection pool and register this
+     * task's callback on it; otherwise, or if the pool has no idle connection
+     * with a matching key, create a new one. The server options must have been
+     * initialized before calling this method.
+     *
+     * @return the connected server
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected IOptionsServer acquireP4Server() throws P4JavaException {
+        if (!isPooled()) {
+            return createP4Server();
+        }
+        PerforceConnectionPool pool = PerforceConnectionPool
+                .getInstance(getProject());
+        String key = getPoolKey();
+        IOptionsServer server = pool.checkout(key);
+        if (server != null) {
+            try {
+                // Log the server messages to the current task.
+                server.registerCallback(createCommandCallback());
+                if (!isEmpty(user)) {
+                    // The ticket of the connection may have expired meanwhile.
+                    revalidate(server);
+                }
+            } catch (P4JavaException e) {
+                pool.discard(server);
+                throw e;
+            } catch (RuntimeException e) {
+                pool.discard(server);
+                throw e;
+            } catch (Error e) {
+                pool.discard(server);
+                throw e;
+            }
+            return server;
+        }
+        server = createP4Server();
+        pool.register(key, server);
+        return server;
+    }
+
+    /**
+     * Release a server acquired through {@link #acquireP4Server()}. If pooling
+     * is enabled, check the server back into the connection pool; otherwise,
+     * disconnect from the server.
+     *
+     * @param server
+     *            the server
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected void releaseP4Server(IOptionsServer server)
+            throws P4JavaException {
+        if (server == null) {
+            return;
+        }
+        if (isPooled()) {
+            server.registerCallback(null);
+            PerforceConnectionPool.getInstance(getProject()).checkin(
+                    getPoolKey(), server);
+        } else {
+            server.disconnect();
+        }
+    }
+
+    /**
+     * Create an instance of the Perforce server from the factory using the
+     * specified protocol, server port, protocol specific properties and usage
+     * options. Register callback on the server. Connect to server; set the user
+     * (if present) to server and authenticate it.
+     *
+     * @return the connected server
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected IOptionsServer createP4Server() throws P4JavaException {
+        // Set default system file helper
+        ServerFactory.setRpcFileSystemHelper(new RpcSystemFileCommandsHelper());
+        // Get an instance of the P4J server.
+        IOptionsServer server;
+        try {
+            server = ServerFactory.getOptionsServer(protocol + "://" + port,
                     protocolProps, usageOptions);
+        } catch (URISyntaxException e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        }
+        try {
             // Register server callback.
-            p4Server.registerCallback(new ICommandCallback() {
-                public void receivedServerMessage(int key, int genericCode,
-                        int severityCode, String message) {
-                    // Log warning messages from server, since it's not included
-                    // in the other callback methods.
-                    if (severityCode == MessageSeverityCode.E_WARN) {
-                        int messagePriority = Project.MSG_WARN;
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("receivedServerMessage {" + LINE_SEPARATOR);
-                        sb.append(LINE_PADDING).append("genericCode")
-                                .append("=").append(genericCode)
-                                .append(LINE_SEPARATOR);
-                        sb.append(LINE_PADDING).append("severityCode")
-                                .append("=").append(severityCode)
-                                .append(LINE_SEPARATOR);
-                        sb.append(LINE_PADDING).append("message").append("=")
-                                .append(message).append(LINE_SEPARATOR);
-                        sb.append("}" + LINE_SEPARATOR);
-                        log(sb.toString(), messagePriority);
+            server.registerCallback(createCommandCallback());
+            // Connect to the server.
+            server.connect();
+            // Set the Perforce charset.
+            if (!isEmpty(charset)) {
+                if (server.isConnected()) {
+                    if (server.supportsUnicode()) {
+                        server.setCharsetName(charset);
                     }
                 }
+            }
+            // Set server user.
+            if (!isEmpty(user)) {
+                server.setUserName(user);
+                authenticate(server);
+            }
+        } catch (P4JavaException e) {
+            disconnect(server);
+            throw e;
+        } catch (RuntimeException e) {
+            disconnect(server);
+            throw e;
+        } catch (Error e) {
+            disconnect(server);
+            throw e;
+        }
+        return server;
+    }
 
-                public void receivedServerInfoLine(int key, String infoLine) {
-                    int messagePriority = Project.MSG_INFO;
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("receivedServerInfoLine {" + LINE_SEPARATOR);
-                    sb.append(LINE_PADDING).append("infoLine").append("=")
-                            .append(infoLine).append(LINE_SEPARATOR);
-                    sb.append("}" + LINE_SEPARATOR);
-                    log(sb.toString(), messagePriority);
+    /**
+     * Disconnect a server that failed to connect or authenticate, keeping the
+     * original failure.
+     *
+     * @param server
+     *            the server
+     */
+    private void disconnect(IOptionsServer server) {
+        try {
+            if (server.isConnected()) {
+                server.disconnect();
+            }
+        } catch (Throwable t) {
+            log(t.getLocalizedMessage(), Project.MSG_VERBOSE);
+        }
+    }
+
+    /**
+     * Authenticate the user on the server. Reuse a cached ticket, if any,
+     * instead of logging in. A ticket read from the tickets file has an
+     * unknown expiration, so it is verified once with "p4 login -s" before it
+     * is used; if the server rejects it or it is about to expire, login with
+     * the user's password.
+     *
+     * @param server
+     *            the server
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected void authenticate(IOptionsServer server) throws P4JavaException {
+        if (isTicketCached()) {
+            PerforceTicketCache cache = PerforceTicketCache
+                    .getInstance(getProject());
+            String ticket = cache.getTicket(port, user, getTicketsFile());
+            if (ticket != null) {
+                server.setAuthTicket(ticket);
+                if (cache.isVerified(port, user, ticket)) {
+                    return;
+                }
+                long remaining = getTicketExpiration(server);
+                if (remaining >= 0
+                        && cache.verify(port, user, ticket, remaining)) {
+                    return;
                 }
+                cache.invalidate(port, user, ticket);
+                log("Perforce ticket rejected or expiring; logging in again.", //$NON-NLS-1$
+                        Project.MSG_VERBOSE);
+            }
+        }
+        login(server);
+    }
 
-                public void receivedServerErrorLine(int key, String errorLine) {
-                    int messagePriority = Project.MSG_ERR;
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("receivedServerErrorLine {" + LINE_SEPARATOR);
-                    sb.append(LINE_PADDING).append("errorLine").append("=")
-                            .append(errorLine).append(LINE_SEPARATOR);
-                    sb.append("}" + LINE_SEPARATOR);
-                    log(sb.toString(), messagePriority);
+    /**
+     * Make sure the ticket of a pooled connection is still valid. With the
+     * ticket cache, authenticate as for a new connection. Otherwise, if the
+     * pool doesn't know the ticket to be valid (it is about to expire, or a
+     * task using the connection was rejected), verify the ticket with
+     * "p4 login -s" and login again if it is rejected or about to expire.
+     *
+     * @param server
+     *            the pooled server
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected void revalidate(IOptionsServer server) throws P4JavaException {
+        if (isTicketCached()) {
+            authenticate(server);
+            return;
+        }
+        PerforceConnectionPool pool = PerforceConnectionPool
+                .getInstance(getProject());
+        if (pool.isTicketValid(server)) {
+            return;
+        }
+        long remaining = getTicketExpiration(server);
+        if (remaining < 0
+                || (remaining > 0 && remaining * 1000 <= PerforceTicketCache
+                        .EXPIRY_MARGIN)) {
+            log("Perforce ticket rejected or expiring; logging in again.", //$NON-NLS-1$
+                    Project.MSG_VERBOSE);
+            login(server);
+            return;
+        }
+        pool.setTicketExpiration(server, remaining);
+    }
+
+    /**
+     * Gets the remaining lifetime of the ticket of the server with
+     * "p4 login -s".
+     *
+     * @param server
+     *            the server
+     * @return the remaining lifetime in seconds, zero if unknown or
+     *         unlimited, or -1 if the server rejected the ticket
+     * @throws P4JavaException
+     *             if the command fails for another reason
+     */
+    private long getTicketExpiration(IOptionsServer server)
+            throws P4JavaException {
+        List<Map<String, Object>> results;
+        try {
+            results = server.execMapCmdList("login", new String[] { "-s" }, //$NON-NLS-1$
+                    null);
+        } catch (AccessException e) {
+            return -1;
+        }
+        long remaining = 0;
+        if (results != null) {
+            for (Map<String, Object> result : results) {
+                if (result == null) {
+                    continue;
                 }
+                if (getErrorStr(server, result) != null) {
+                    return -1;
+                }
+                Object expiration = result.get("TicketExpiration");
+                if (expiration != null) {
+                    try {
+                        remaining = Long.parseLong(expiration.toString());
+                    } catch (NumberFormatException e) {
+                        remaining = 0;
+                    }
+                }
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Login to the server with the user's password. If the ticket cache is
+     * enabled, save the new ticket to the cache with the remaining lifetime
+     * reported by the server; otherwise, if pooling is enabled, record it in
+     * the connection pool.
+     *
+     * @param server
+     *            the server
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected void login(IOptionsServer server) throws P4JavaException {
+        // Password can be null if it is not needed (i.e. SSO logins).
+        server.login(passwd, loginOptions);
+        if (!isTicketCached() && !isPooled()) {
+            return;
+        }
+        // The server's ticket timeout may be shorter than the local one.
+        long remaining = getTicketExpiration(server);
+        if (isTicketCached()) {
+            PerforceTicketCache.getInstance(getProject()).putTicket(port, user,
+                    server.getAuthTicket(),
+                    (remaining > 0) ? remaining : ticketTimeout,
+                    getTicketsFile());
+        } else {
+            PerforceConnectionPool.getInstance(getProject())
+                    .setTicketExpiration(server,
+                            (remaining > 0) ? remaining : ticketTimeout);
+        }
+    }
+
+    /**
+     * Drop the cached ticket, or the pool's record of the connection's
+     * ticket, if the server rejected it (for example because it was revoked or
+     * logged out), so the next task logs in or checks the ticket again.
+     *
+     * @param e
+     *            the failure
+     * @see PerforceTask#handleFailure(Exception)
+     */
+    protected void handleFailure(Exception e) {
+        if (p4Server == null || !isAccessFailure(e)) {
+            return;
+        }
+        if (isTicketCached()) {
+            PerforceTicketCache.getInstance(getProject()).invalidate(port,
+                    user, p4Server.getAuthTicket());
+            log("Perforce ticket rejected; the next task logs in again.", //$NON-NLS-1$
+                    Project.MSG_VERBOSE);
+        } else if (isPooled()) {
+            // Check the ticket again on the next checkout.
+            PerforceConnectionPool.getInstance(getProject()).invalidateTicket(
+                    p4Server);
+        }
+    }
+
+    /**
+     * Checks if a failure was caused by the server rejecting the login.
+     *
+     * @param t
+     *            the failure
+     * @return true, if is access failure
+     */
+    private static boolean isAccessFailure(Throwable t) {
+        while (t != null) {
+            if (t instanceof AccessException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
 
-                public void issuingServerCommand(int key, String command) {
-                    int messagePriority = Project.MSG_ERR;
+    /**
+     * Checks if tickets are cached for the whole build. The ticket cache is
+     * enabled by the "useTicketCache" attribute or the "p4.ticketcache"
+     * project property.
+     *
+     * @return true, if ticket cached
+     */
+    protected boolean isTicketCached() {
+        return useTicketCache
+                || Project.toBoolean(getProject().getProperty("p4.ticketcache"));
+    }
+
+    /**
+     * Gets the Perforce tickets file from the "ticketsFile" attribute, the
+     * "p4.tickets" project property or the "P4TICKETS" environment variable,
+     * respectively.
+     *
+     * @return the tickets file, or null
+     */
+    protected String getTicketsFile() {
+        if (!isEmpty(ticketsFile)) {
+            return ticketsFile;
+        }
+        String file = getProject().getProperty("p4.tickets");
+        if (isEmpty(file)) {
+            file = System.getenv("P4TICKETS");
+        }
+        return isEmpty(file) ? null : file;
+    }
+
+    /**
+     * Create the callback registered on the Perforce server. It logs the
+     * server messages to this task, skipping messages with a priority that is
+     * discarded by the build loggers.
+     *
+     * @return the command callback
+     */
+    protected ICommandCallback createCommandCallback() {
+        return new ICommandCallback() {
+            /** The build-scoped command metrics, or null if disabled. */
+            private final PerforceCommandMetrics metrics = PerforceCommandMetrics
+                    .getInstance(getProject());
+
+            /** Commands in progress by key, for the command metrics. */
+            private final Map<Integer, String> commands = new HashMap<Integer, String>();
+
+            public void receivedServerMessage(int key, int genericCode,
+                    int severityCode, String message) {
+                // Log warning messages from server, since it's not included
+                // in the other callback methods.
+                if (severityCode == MessageSeverityCode.E_WARN) {
+                    int messagePriority = Project.MSG_WARN;
+                    if (!isLoggable(messagePriority)) {
+                        return;
+                    }
                     StringBuilder sb = new StringBuilder();
-                    sb.append("issuingServerCommand {" + LINE_SEPARATOR);
-                    sb.append(LINE_PADDING).append("key").append("=")
-                            .append(key).append(LINE_SEPARATOR);
-                    sb.append(LINE_PADDING).append("command").append("=")
-                            .append(command).append(LINE_SEPARATOR);
+                    sb.append("receivedServerMessage {" + LINE_SEPARATOR);
+                    sb.append(LINE_PADDING).append("genericCode").append("=")
+                            .append(genericCode).append(LINE_SEPARATOR);
+                    sb.append(LINE_PADDING).append("severityCode").append("=")
+                            .append(severityCode).append(LINE_SEPARATOR);
+                    sb.append(LINE_PADDING).append("message").append("=")
+                            .append(message).append(LINE_SEPARATOR);
                     sb.append("}" + LINE_SEPARATOR);
                     log(sb.toString(), messagePriority);
                 }
+            }
 
-                public void completedServerCommand(int key, long millisecsTaken) {
-                    int messagePriority = Project.MSG_ERR;
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("completedServerCommand {" + LINE_SEPARATOR);
-                    sb.append(LINE_PADDING).append("key").append("=")
-                            .append(key).append(LINE_SEPARATOR);
-                    sb.append(LINE_PADDING).append("millisecsTaken")
-                            .append("=").append(millisecsTaken)
-                            .append(LINE_SEPARATOR);
-                    sb.append("}" + LINE_SEPARATOR);
-                    log(sb.toString(), messagePriority);
+            public void receivedServerInfoLine(int key, String infoLine) {
+                int messagePriority = Project.MSG_INFO;
+                if (!isLoggable(messagePriority)) {
+                    return;
                 }
-            });
-            // Connect to the server.
-            p4Server.connect();
-            // Set the Perforce charset.
-            if (!isEmpty(charset)) {
-                if (p4Server.isConnected()) {
-                    if (p4Server.supportsUnicode()) {
-                        p4Server.setCharsetName(charset);
+                StringBuilder sb = new StringBuilder();
+                sb.append("receivedServerInfoLine {" + LINE_SEPARATOR);
+                sb.append(LINE_PADDING).append("infoLine").append("=")
+                        .append(infoLine).append(LINE_SEPARATOR);
+                sb.append("}" + LINE_SEPARATOR);
+                log(sb.toString(), messagePriority);
+            }
+
+            public void receivedServerErrorLine(int key, String errorLine) {
+                int messagePriority = Project.MSG_ERR;
+                if (!isLoggable(messagePriority)) {
+                    return;
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append("receivedServerErrorLine {" + LINE_SEPARATOR);
+                sb.append(LINE_PADDING).append("errorLine").append("=")
+                        .append(errorLine).append(LINE_SEPARATOR);
+                sb.append("}" + LINE_SEPARATOR);
+                log(sb.toString(), messagePriority);
+            }
+
+            public void issuingServerCommand(int key, String command) {
+                if (metrics != null) {
+                    synchronized (commands) {
+                        commands.put(key, command);
                     }
                 }
+                int messagePriority = Project.MSG_ERR;
+                if (!isLoggable(messagePriority)) {
+                    return;
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append("issuingServerCommand {" + LINE_SEPARATOR);
+                sb.append(LINE_PADDING).append("key").append("=").append(key)
+                        .append(LINE_SEPARATOR);
+                sb.append(LINE_PADDING).append("command").append("=")
+                        .append(command).append(LINE_SEPARATOR);
+                sb.append("}" + LINE_SEPARATOR);
+                log(sb.toString(), messagePriority);
             }
-            // Set server user.
-            if (!isEmpty(user)) {
-                p4Server.setUserName(user);
-                // Login to the server with a password.
-                // Password can be null if it is not needed (i.e. SSO logins).
-                p4Server.login(passwd, loginOptions);
+
+            public void completedServerCommand(int key, long millisecsTaken) {
+                if (metrics != null) {
+                    String command;
+                    synchronized (commands) {
+                        command = commands.remove(key);
+                    }
+                    if (command != null) {
+                        metrics.record(command, millisecsTaken);
+                    }
+                }
+                int messagePriority = Project.MSG_ERR;
+                if (!isLoggable(messagePriority)) {
+                    return;
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append("completedServerCommand {" + LINE_SEPARATOR);
+                sb.append(LINE_PADDING).append("key").append("=").append(key)
+                        .append(LINE_SEPARATOR);
+                sb.append(LINE_PADDING).append("millisecsTaken").append("=")
+                        .append(millisecsTaken).append(LINE_SEPARATOR);
+                sb.append("}" + LINE_SEPARATOR);
+                log(sb.toString(), messagePriority);
             }
-        } catch (P4JavaException e) {
-            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
-        } catch (P4JavaError e) {
+        };
+    }
+
+    /**
+     * Prepare an additional server connection acquired for parallel jobs. This
+     * can be overridden by subclasses that need more state on the connection.
+     *
+     * @param server
+     *            the server
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected void prepareP4Server(IOptionsServer server)
+            throws P4JavaException {
+    }
+
+    /**
+     * Execute jobs concurrently over several Perforce server connections. Each
+     * worker thread acquires its own connection (from the connection pool, if
+     * pooling is enabled), runs jobs until none are left and releases the
+     * connection. The results are returned in the order of the jobs. The first
+     * failure stops the remaining jobs and is rethrown as a build exception.
+     *
+     * @param <T>
+     *            the result type
+     * @param jobs
+     *            the jobs
+     * @param threads
+     *            the maximum number of threads and connections
+     * @return the results
+     * @throws BuildException
+     *             the build exception
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> List<T> execParallel(final List<? extends ServerJob<T>> jobs,
+            int threads) throws BuildException {
+        int workers = Math.max(1, Math.min(threads, jobs.size()));
+        final Object[] results = new Object[jobs.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        IOptionsServer server = acquireP4Server();
+                        try {
+                            prepareP4Server(server);
+                            int index;
+                            while (!failed.get()
+                                    && (index = next.getAndIncrement()) < jobs
+                                            .size()) {
+                                try {
+                                    results[index] = jobs.get(index)
+                                            .run(server);
+                                } catch (Exception e) {
+                                    failed.set(true);
+                                    throw e;
+                                }
+                            }
+                        } finally {
+                            releaseP4Server(server);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+            if (cause instanceof BuildException) {
+                throw (BuildException) cause;
+            }
+            throw new BuildException(cause.getLocalizedMessage(), cause,
+                    getLocation());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
-        } catch (Throwable t) {
-            throw new BuildException(t.getLocalizedMessage(), t, getLocation());
+        } finally {
+            executor.shutdownNow();
+        }
+        List<T> list = new ArrayList<T>(results.length);
+        for (Object result : results) {
+            list.add((T) result);
+        }
+        return list;
+    }
+
+    /**
+     * Gets the error message of a raw record returned by a map or streaming
+     * command, if the record is an error. Warnings such as "no such file(s)"
+     * are not errors.
+     *
+     * @param server
+     *            the server
+     * @param record
+     *            the record
+     * @return the error message, or null
+     */
+    protected static String getErrorStr(IOptionsServer server,
+            Map<String, Object> record) {
+        if (server instanceof Server) {
+            return ((Server) server).getErrorStr(record);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the message of a raw record returned by a map or streaming
+     * command, if the record is an error, warning or info message.
+     *
+     * @param server
+     *            the server
+     * @param record
+     *            the record
+     * @return the message, or null
+     */
+    protected static String getErrorOrInfoStr(IOptionsServer server,
+            Map<String, Object> record) {
+        if (server instanceof Server) {
+            return ((Server) server).getErrorOrInfoStr(record);
+        }
+        return null;
+    }
+
+    /**
+     * Throw an exception if a raw record returned by a map or streaming
+     * command is an error.
+     *
+     * @param server
+     *            the server
+     * @param record
+     *            the record
+     * @throws P4JavaException
+     *             if the record is an error
+     * @see #getErrorStr(IOptionsServer, Map)
+     */
+    protected static void checkError(IOptionsServer server,
+            Map<String, Object> record) throws P4JavaException {
+        String errorStr = getErrorStr(server, record);
+        if (errorStr != null) {
+            throw new P4JavaException(errorStr);
         }
     }
 
+    /**
+     * Checks if connections are pooled for the whole build. Pooling is enabled
+     * by the "pooled" attribute or the "p4.pool" project property.
+     *
+     * @return true, if pooled
+     */
+    protected boolean isPooled() {
+        return pooled || Project.toBoolean(getProject().getProperty("p4.pool"));
+    }
+
+    /**
+     * Gets the connection pool key of this task.
+     *
+     * @return the pool key
+     */
+    protected String getPoolKey() {
+        return PerforceConnectionPool.makeKey(protocol, port, user, client,
+                charset);
+    }
+
     /**
      * Initialize the Perforce server options, such as protocol-specific
      * properties and usage options.
@@ -519,13 +1171,22 @@ public abstract class ServerTask extends PerforceTask {
 
     /**
      * Cleanup the Perforce server instance. Disconnect from the Perforce
-     * server. Also, set the server to null.
+     * server, or return it to the connection pool if pooling is enabled. A
+     * server set by an enclosing task is left connected, with the enclosing
+     * task's callback registered again. Also, set the server to null.
      *
      * Note: It does not logout, because that will delete the user's ticket.
      */
     protected void cleanupP4Server() {
         try {
-            p4Server.disconnect();
+            if (!sharedServer) {
+                releaseP4Server(p4Server);
+            } else if (p4Server != null) {
+                // Log the later server messages to the enclosing task again.
+                p4Server.registerCallback(previousCallback);
+            }
+            sharedServer = false;
+            previousCallback = null;
             p4Server = null;
         } catch (P4JavaException e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
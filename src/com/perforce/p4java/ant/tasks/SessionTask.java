@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.UnknownElement;
+
+/**
+ * Run nested tasks over one Perforce connection. </p>
+ *
+ * The session connects to the Perforce server (and optionally retrieves the
+ * client workspace) once, and sets the server and client on the nested
+ * Perforce tasks. The nested tasks use them without connecting, logging in or
+ * retrieving the client again, and leave them connected when they complete.
+ * Other nested tasks are executed as usual, so a sequence such as edit, build
+ * and submit can share a single connection. </p>
+ *
+ * @see PerforceTask
+ * @see ServerTask
+ * @see ClientTask
+ */
+public class SessionTask extends ClientTask implements TaskContainer {
+
+    /** Nested tasks executed within the session. */
+    protected List<Task> nestedTasks = Collections
+            .synchronizedList(new LinkedList<Task>());
+
+    /**
+     * If true, the client workspace is retrieved once and set on the nested
+     * client tasks.
+     */
+    protected boolean useClient = false;
+
+    /**
+     * Default constructor.
+     */
+    public SessionTask() {
+        super();
+    }
+
+    /**
+     * Add a nested task to the session.
+     *
+     * @param task
+     *            the task
+     * @see org.apache.tools.ant.TaskContainer#addTask(org.apache.tools.ant.Task)
+     */
+    public void addTask(Task task) {
+        nestedTasks.add(task);
+    }
+
+    /**
+     * Sets the use client.
+     *
+     * @param useClient
+     *            the new use client
+     */
+    public void setUseClient(boolean useClient) {
+        this.useClient = useClient;
+    }
+
+    /**
+     * Initialize the Perforce server, and the Perforce client if "useClient"
+     * is true.
+     *
+     * @see ClientTask#initP4()
+     */
+    @Override
+    protected void initP4() throws BuildException {
+        initP4Server();
+        if (useClient) {
+            initP4Client();
+        }
+    }
+
+    /**
+     * Cleanup the Perforce client and server instances.
+     *
+     * @see ClientTask#cleanupP4()
+     */
+    @Override
+    protected void cleanupP4() throws BuildException {
+        cleanupP4Client();
+        cleanupP4Server();
+    }
+
+    /**
+     * Execute the nested tasks in order. Set the session's server and client
+     * on the nested Perforce tasks before executing them.
+     *
+     * @see PerforceTask#execP4Command()
+     */
+    protected void execP4Command() throws BuildException {
+        for (Task task : nestedTasks) {
+            Object realThing = task;
+            if (task instanceof UnknownElement) {
+                // Configure the task so the real object can be injected.
+                UnknownElement element = (UnknownElement) task;
+                element.maybeConfigure();
+                realThing = element.getRealThing();
+            }
+            if (realThing instanceof ServerTask) {
+                ((ServerTask) realThing).setP4Server(getP4Server());
+            }
+            if (realThing instanceof ClientTask && getP4Client() != null) {
+                ((ClientTask) realThing).setP4Client(getP4Client());
+            }
+            task.perform();
+        }
+    }
+}
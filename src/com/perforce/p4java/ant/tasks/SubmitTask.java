@@ -3,17 +3,43 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
+import com.perforce.p4java.client.IClientSummary.ClientLineEnd;
+import com.perforce.p4java.core.ChangelistStatus;
 import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
 import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.generic.core.Changelist;
+import com.perforce.p4java.impl.mapbased.server.Server;
 import com.perforce.p4java.option.changelist.SubmitOptions;
+import com.perforce.p4java.option.client.ReopenFilesOptions;
+import com.perforce.p4java.option.client.RevertFilesOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
 
 /**
  * Commits a pending changelist and its files to the depot. </p>
@@ -28,6 +54,33 @@ import com.perforce.p4java.option.changelist.SubmitOptions;
  * If a (single) file pattern is given, only those files in the 'default'
  * changelist that match the pattern will be submitted. </p>
  *
+ * If "splitMaxFiles" or "splitMaxBytes" is positive, a changelist exceeding
+ * those bounds is split: its opened files, in depot path order, are moved
+ * into numbered changelists of at most "splitMaxFiles" files and
+ * "splitMaxBytes" bytes of local content (a single larger file or move gets
+ * its own changelist), with the description suffixed by the part number. The
+ * two halves of a move (its "move/add" and "move/delete" files) are kept in
+ * the same part, since neither can be submitted without the other. The parts
+ * are then submitted in sequence; a submit failing with a connection error or
+ * a timeout is retried up to "splitRetries" times after reconnecting, unless
+ * the part was submitted meanwhile. Other failures, such as rejections by a
+ * submit trigger, are not retried. Jobs are fixed by the last part only. The submitted
+ * changelist numbers are published, comma-separated, in "p4.changelists" and
+ * the "changelistsProperty" property. A part that is not submitted (for
+ * example because it must be resolved) stops the sequence, leaving the
+ * remaining parts pending. </p>
+ *
+ * If "revertUnchanged" is true, the files opened for edit whose local content
+ * is identical to their have revision are reverted before the submit (with
+ * -k, since the local files are already right, and made read-only again
+ * unless the client has "allwrite" or the type "+w"), so the server neither
+ * receives nor compares them. The MD5 digest of each local file is computed
+ * on "threads" threads and compared with the digest of the have revision
+ * reported by "p4 fstat -Ol", normalizing CRLF line endings of text files if
+ * the client writes them. Files whose type changed, keyword-expanded files
+ * and, on "mac" clients, text files are left opened. If no file is left, the
+ * submit is skipped. </p>
+ *
  * @see PerforceTask
  * @see ServerTask
  */
@@ -69,6 +122,57 @@ public class SubmitTask extends ClientTask {
      */
     protected String jobStatus;
 
+    /** If positive, the maximum number of files of a split changelist. */
+    protected int splitMaxFiles = 0;
+
+    /** If positive, the maximum bytes of local content of a split changelist. */
+    protected long splitMaxBytes = 0;
+
+    /** Number of retries of a split submit failed by a connection error. */
+    protected int splitRetries = 2;
+
+    /** Milliseconds to wait before retrying a failed split submit. */
+    protected long splitRetryDelay = 5000;
+
+    /** Name of property to set with the submitted changelist numbers. */
+    protected String changelistsProperty;
+
+    /** If true, files opened for edit but unchanged are reverted first. */
+    protected boolean revertUnchanged = false;
+
+    /** Number of threads computing digests of local files. */
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Default number of files reopened per command when splitting. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * An opened file of a changelist being split.
+     */
+    private static class OpenedFile {
+
+        /** The depot path. */
+        private String depotPath;
+
+        /** The size of the local file. */
+        private long size;
+
+        /** The local file; null if not in the client root. */
+        private java.io.File localFile;
+
+        /** The open action. */
+        private String action;
+
+        /** The file type it is opened with. */
+        private String fileType;
+
+        /** The have revision. */
+        private String haveRev;
+
+        /** The depot path of the other half of a move; null if not moved. */
+        private String movedPath;
+    }
+
     /**
      * Default constructor.
      */
@@ -147,6 +251,76 @@ public class SubmitTask extends ClientTask {
         ((SubmitOptions) commandOptions).setJobStatus(jobStatus);
     }
 
+    /**
+     * Sets the split max files.
+     *
+     * @param splitMaxFiles
+     *            the new split max files
+     */
+    public void setSplitMaxFiles(int splitMaxFiles) {
+        this.splitMaxFiles = splitMaxFiles;
+    }
+
+    /**
+     * Sets the split max bytes.
+     *
+     * @param splitMaxBytes
+     *            the new split max bytes
+     */
+    public void setSplitMaxBytes(long splitMaxBytes) {
+        this.splitMaxBytes = splitMaxBytes;
+    }
+
+    /**
+     * Sets the split retries.
+     *
+     * @param splitRetries
+     *            the new split retries
+     */
+    public void setSplitRetries(int splitRetries) {
+        this.splitRetries = splitRetries;
+    }
+
+    /**
+     * Sets the split retry delay.
+     *
+     * @param splitRetryDelay
+     *            the new split retry delay
+     */
+    public void setSplitRetryDelay(long splitRetryDelay) {
+        this.splitRetryDelay = splitRetryDelay;
+    }
+
+    /**
+     * Sets the revert unchanged.
+     *
+     * @param revertUnchanged
+     *            the new revert unchanged
+     */
+    public void setRevertUnchanged(boolean revertUnchanged) {
+        this.revertUnchanged = revertUnchanged;
+    }
+
+    /**
+     * Sets the threads.
+     *
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the changelists property.
+     *
+     * @param changelistsProperty
+     *            the new changelists property
+     */
+    public void setChangelistsProperty(String changelistsProperty) {
+        this.changelistsProperty = changelistsProperty;
+    }
+
     /**
      * Execute the Perforce submit command with changelist and options. Assign
      * the new changelist number to a specified property. Log the returned file
@@ -193,6 +367,21 @@ public class SubmitTask extends ClientTask {
                     }
                 }
             }
+            if (revertUnchanged) {
+                if (revertUnchangedFiles(change.getId()) == 0) {
+                    log("No changed files left to submit in changelist " //$NON-NLS-1$
+                            + change.getId() + ".", Project.MSG_INFO); //$NON-NLS-1$
+                    return;
+                }
+                // The refreshed changelist still lists the reverted files.
+                change = getP4Server().getChangelist(change.getId());
+                if (!isEmpty(changelistDescription)) {
+                    change.setDescription(changelistDescription);
+                }
+            }
+            if ((splitMaxFiles > 0 || splitMaxBytes > 0) && submitSplit(change)) {
+                return;
+            }
             retFileSpecs = change.submit(((SubmitOptions) commandOptions));
             // Change the value of the "p4.changelist" property in case the
             // Perforce server renumbered changelist after the submit.
@@ -209,11 +398,527 @@ public class SubmitTask extends ClientTask {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
         } catch (P4JavaError e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
         } catch (Throwable t) {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
 
+    /**
+     * Split the changelist if it exceeds the bounds, and submit the parts in
+     * sequence.
+     *
+     * @param change
+     *            the changelist
+     * @return true, if the changelist was split; false if it is within the
+     *         bounds and must be submitted as is
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws InterruptedException
+     *             if interrupted while waiting to retry
+     */
+    protected boolean submitSplit(IChangelist change) throws P4JavaException,
+            InterruptedException {
+        List<List<OpenedFile>> parts = splitFiles(listOpenedFiles(change
+                .getId()));
+        if (parts.size() <= 1) {
+            return false;
+        }
+        String description = change.getDescription();
+        if (change.getId() == IChangelist.DEFAULT
+                && isEmpty(changelistDescription)) {
+            throw new BuildException(
+                    "A changelistDescription is required to split the default changelist."); //$NON-NLS-1$
+        }
+        description = (description != null) ? description.trim() : "";
+        log("Splitting changelist " + change.getId() + " into " + parts.size() //$NON-NLS-1$
+                + " changelists.", Project.MSG_INFO); //$NON-NLS-1$
+        // Move all parts first, so an interrupted split leaves no part behind.
+        List<IChangelist> changes = new ArrayList<IChangelist>();
+        for (int i = 0; i < parts.size(); i++) {
+            String partDescription = description + " (part " + (i + 1) + "/" //$NON-NLS-1$
+                    + parts.size() + ")";
+            IChangelist part;
+            if (i == 0 && change.getId() != IChangelist.DEFAULT) {
+                part = change;
+                part.setDescription(partDescription);
+                part.update();
+            } else {
+                part = getP4Client().createChangelist(
+                        new Changelist(IChangelist.UNKNOWN, getP4Client()
+                                .getName(), getP4Server().getUserName(),
+                                ChangelistStatus.NEW, new Date(),
+                                partDescription, false, (Server) getP4Server()));
+                reopenFiles(parts.get(i), part.getId());
+            }
+            changes.add(part);
+        }
+        if (change.getId() != IChangelist.DEFAULT) {
+            // Its cached files still include those reopened in other parts.
+            changes.set(0, getP4Server().getChangelist(change.getId()));
+        }
+        SubmitOptions options = (SubmitOptions) commandOptions;
+        List<String> submitted = new ArrayList<String>();
+        try {
+            for (int i = 0; i < changes.size(); i++) {
+                boolean last = (i == changes.size() - 1);
+                SubmitOptions partOptions = new SubmitOptions(
+                        options.isReOpen(), last ? options.getJobIds() : null,
+                        options.getJobStatus());
+                int id = submitPart(changes.get(i), partOptions);
+                if (id == IChangelist.UNKNOWN) {
+                    throw new BuildException("Changelist " //$NON-NLS-1$
+                            + changes.get(i).getId() + " (part " + (i + 1) //$NON-NLS-1$
+                            + "/" + changes.size() //$NON-NLS-1$
+                            + ") was not submitted; the remaining parts are pending."); //$NON-NLS-1$
+                }
+                submitted.add(String.valueOf(id));
+            }
+        } finally {
+            String ids = join(submitted);
+            getProject().setProperty("p4.changelists", ids);
+            if (!submitted.isEmpty()) {
+                getProject().setProperty("p4.changelist",
+                        submitted.get(submitted.size() - 1));
+            }
+            if (!isEmpty(changelistsProperty)) {
+                getProject().setNewProperty(changelistsProperty, ids);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Submit a part of a split changelist, retrying after a connection failure
+     * unless it was submitted meanwhile.
+     *
+     * @param part
+     *            the changelist of the part
+     * @param options
+     *            the submit options
+     * @return the submitted changelist number, or IChangelist.UNKNOWN if the
+     *         server did not submit it
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws InterruptedException
+     *             if interrupted while waiting to retry
+     */
+    private int submitPart(IChangelist part, SubmitOptions options)
+            throws P4JavaException, InterruptedException {
+        int pendingId = part.getId();
+        for (int attempt = 0;; attempt++) {
+            try {
+                List<IFileSpec> fileSpecs = part.submit(options);
+                handleMessage(fileSpecs);
+                logFileSpecs(fileSpecs);
+                return (part.getStatus() == ChangelistStatus.SUBMITTED) ? part
+                        .getId() : IChangelist.UNKNOWN;
+            } catch (P4JavaException e) {
+                if (attempt >= splitRetries || !isConnectionFailure(e)) {
+                    throw e;
+                }
+                log("Submitting changelist " + pendingId + " failed: " //$NON-NLS-1$
+                        + e.getLocalizedMessage() + "; retrying.", //$NON-NLS-1$
+                        Project.MSG_WARN);
+            }
+            Thread.sleep(splitRetryDelay * (attempt + 1));
+            IOptionsServer server = getP4Server();
+            if (!server.isConnected()) {
+                server.connect();
+            }
+            if (listOpenedFiles(pendingId).isEmpty()) {
+                // The failed submit went through; it may have been renumbered.
+                return getLastSubmitted();
+            }
+            part = server.getChangelist(pendingId);
+        }
+    }
+
+    /**
+     * Checks if a failure was caused by the connection to the server, such as
+     * a lost connection or a timeout, rather than by the server refusing the
+     * command.
+     *
+     * @param t
+     *            the failure
+     * @return true, if is connection failure
+     */
+    private static boolean isConnectionFailure(Throwable t) {
+        while (t != null) {
+            if (t instanceof ConnectionException
+                    || t instanceof InterruptedIOException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Gets the most recent changelist submitted from the client.
+     *
+     * @return the changelist number
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private int getLastSubmitted() throws P4JavaException {
+        IOptionsServer server = getP4Server();
+        Map<String, Object>[] results = server.execMapCmd("changes",
+                new String[] { "-m1", "-s", "submitted", "-c",
+                        getP4Client().getName() }, null);
+        if (results != null) {
+            for (Map<String, Object> result : results) {
+                checkError(server, result);
+                if (result.get("change") != null) {
+                    return Integer.parseInt(result.get("change").toString());
+                }
+            }
+        }
+        return IChangelist.UNKNOWN;
+    }
+
+    /**
+     * List the files opened in a changelist with a streamed "p4 opened", in
+     * depot path order, with their local file and its size.
+     *
+     * @param changelistId
+     *            the changelist id
+     * @return the opened files
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<OpenedFile> listOpenedFiles(int changelistId)
+            throws P4JavaException {
+        final IOptionsServer server = getP4Server();
+        final String clientPrefix = "//" + getP4Client().getName() + "/";
+        final java.io.File root = new java.io.File(getP4Client().getRoot());
+        final List<OpenedFile> files = new ArrayList<OpenedFile>();
+        String change = (changelistId == IChangelist.DEFAULT) ? "default"
+                : String.valueOf(changelistId);
+        server.execStreamingMapCommand("opened", new String[] { "-c", change },
+                null, new IStreamingCallback() {
+                    public boolean startResults(int key) {
+                        return true;
+                    }
+
+                    public boolean endResults(int key) {
+                        return true;
+                    }
+
+                    public boolean handleResult(Map<String, Object> record,
+                            int key) throws P4JavaException {
+                        checkError(server, record);
+                        Object depotFile = record.get("depotFile");
+                        if (depotFile == null) {
+                            return true;
+                        }
+                        OpenedFile file = new OpenedFile();
+                        file.depotPath = depotFile.toString();
+                        file.action = (String) record.get("action");
+                        file.fileType = (String) record.get("type");
+                        file.haveRev = (String) record.get("rev");
+                        file.movedPath = (String) record.get("movedFile");
+                        Object clientFile = record.get("clientFile");
+                        if (clientFile != null
+                                && clientFile.toString().startsWith(
+                                        clientPrefix)) {
+                            file.localFile = new java.io.File(root, clientFile
+                                    .toString().substring(
+                                            clientPrefix.length()));
+                            // Deleted files have no local content.
+                            file.size = file.localFile.length();
+                        }
+                        files.add(file);
+                        return true;
+                    }
+                }, 0);
+        Collections.sort(files, new Comparator<OpenedFile>() {
+            public int compare(OpenedFile a, OpenedFile b) {
+                return a.depotPath.compareTo(b.depotPath);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Revert the files opened for edit in a changelist whose local content is
+     * identical to their have revision.
+     *
+     * @param changelistId
+     *            the changelist id
+     * @return the number of files left opened in the changelist
+     * @throws Exception
+     *             the exception
+     */
+    protected int revertUnchangedFiles(int changelistId) throws Exception {
+        List<OpenedFile> opened = listOpenedFiles(changelistId);
+        ClientLineEnd lineEnd = getP4Client().getLineEnd();
+        // Files of a share client may have been written with CRLF.
+        final boolean normalizeLineEnds = lineEnd == ClientLineEnd.SHARE
+                || (FileTypes.translatesLineEnds(lineEnd) && lineEnd != ClientLineEnd.MAC);
+        boolean compareText = lineEnd != ClientLineEnd.MAC;
+        List<OpenedFile> edits = new ArrayList<OpenedFile>();
+        for (OpenedFile file : opened) {
+            if ("edit".equals(file.action) && file.localFile != null
+                    && file.haveRev != null && file.fileType != null
+                    && !FileTypes.isKeywordExpanded(file.fileType)
+                    && (FileTypes.isBinary(file.fileType)
+                            || (compareText && FileTypes.isText(file.fileType)))) {
+                edits.add(file);
+            }
+        }
+        final Map<String, String[]> haveDigests = getHaveDigests(edits);
+        final ThreadLocal<FileDigester> digesters = new ThreadLocal<FileDigester>() {
+            protected FileDigester initialValue() {
+                return new FileDigester();
+            }
+        };
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                threads));
+        try {
+            for (final OpenedFile file : edits) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        String[] have = haveDigests.get(file.depotPath);
+                        // A changed file type must be submitted.
+                        if (have == null || have[1] == null
+                                || !file.fileType.equals(have[0])
+                                || !file.localFile.isFile()) {
+                            return Boolean.FALSE;
+                        }
+                        boolean normalize = normalizeLineEnds
+                                && FileTypes.isText(file.fileType);
+                        if (!normalize && have[2] != null
+                                && Long.parseLong(have[2]) != file.size) {
+                            return Boolean.FALSE;
+                        }
+                        return Boolean.valueOf(have[1].equalsIgnoreCase(digesters
+                                .get().digest(file.localFile, normalize)));
+                    }
+                }));
+            }
+            List<OpenedFile> unchanged = new ArrayList<OpenedFile>();
+            for (int i = 0; i < edits.size(); i++) {
+                if (futures.get(i).get().booleanValue()) {
+                    unchanged.add(edits.get(i));
+                }
+            }
+            revertFiles(unchanged);
+            log("Reverted " + unchanged.size() + " unchanged of " //$NON-NLS-1$
+                    + edits.size() + " compared file(s) opened for edit.", //$NON-NLS-1$
+                    Project.MSG_INFO);
+            return opened.size() - unchanged.size();
+        } catch (ExecutionException e) {
+            Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+            throw new BuildException(cause.getLocalizedMessage(), cause,
+                    getLocation());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the type, digest and size of the have revisions of files, with
+     * batches of streamed "p4 fstat -Ol".
+     *
+     * @param files
+     *            the files
+     * @return the type, digest and size by depot path
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private Map<String, String[]> getHaveDigests(List<OpenedFile> files)
+            throws P4JavaException {
+        final IOptionsServer server = getP4Server();
+        final Map<String, String[]> digests = new HashMap<String, String[]>();
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        for (int start = 0; start < files.size(); start += size) {
+            List<String> args = new ArrayList<String>();
+            args.add("-Ol");
+            args.add("-T");
+            args.add("depotFile,headType,digest,fileSize");
+            for (OpenedFile file : files.subList(start,
+                    Math.min(start + size, files.size()))) {
+                args.add(file.depotPath + "#" + file.haveRev);
+            }
+            server.execStreamingMapCommand("fstat",
+                    args.toArray(new String[args.size()]), null,
+                    new IStreamingCallback() {
+                        public boolean startResults(int key) {
+                            return true;
+                        }
+
+                        public boolean endResults(int key) {
+                            return true;
+                        }
+
+                        public boolean handleResult(
+                                Map<String, Object> record, int key)
+                                throws P4JavaException {
+                            checkError(server, record);
+                            Object depotFile = record.get("depotFile");
+                            if (depotFile != null) {
+                                digests.put(depotFile.toString(),
+                                        new String[] {
+                                                (String) record.get("headType"),
+                                                (String) record.get("digest"),
+                                                (String) record.get("fileSize") });
+                            }
+                            return true;
+                        }
+                    }, 0);
+        }
+        return digests;
+    }
+
+    /**
+     * Revert files with -k, in batches. Since -k leaves the local files as
+     * they are, the reverted files are made read-only, as a sync would have
+     * left them, unless the client has the "allwrite" option or their type
+     * has the "+w" modifier; otherwise a later sync could not replace them.
+     *
+     * @param files
+     *            the files
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private void revertFiles(List<OpenedFile> files) throws P4JavaException {
+        RevertFilesOptions options = new RevertFilesOptions()
+                .setNoClientRefresh(true);
+        boolean allWrite = getP4Client().getOptions() != null
+                && getP4Client().getOptions().isAllWrite();
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        for (int start = 0; start < files.size(); start += size) {
+            List<OpenedFile> batch = files.subList(start,
+                    Math.min(start + size, files.size()));
+            List<String> paths = new ArrayList<String>();
+            for (OpenedFile file : batch) {
+                paths.add(file.depotPath);
+            }
+            List<IFileSpec> fileSpecs = getP4Client().revertFiles(
+                    FileSpecBuilder.makeFileSpecList(paths), options);
+            Set<String> reverted = new HashSet<String>();
+            if (fileSpecs != null) {
+                for (IFileSpec fileSpec : fileSpecs) {
+                    if (fileSpec == null) {
+                        continue;
+                    }
+                    if (fileSpec.getOpStatus() == FileSpecOpStatus.VALID) {
+                        reverted.add(fileSpec.getDepotPathString());
+                    } else {
+                        logFileSpec(fileSpec);
+                    }
+                }
+            }
+            for (OpenedFile file : batch) {
+                if (reverted.contains(file.depotPath) && !allWrite
+                        && !FileTypes.isAlwaysWritable(file.fileType)) {
+                    file.localFile.setWritable(false, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Split files into parts bounded by "splitMaxFiles" and "splitMaxBytes".
+     * The two halves of a move are kept in the same part, since the server
+     * submits neither without the other.
+     *
+     * @param files
+     *            the files
+     * @return the parts
+     */
+    private List<List<OpenedFile>> splitFiles(List<OpenedFile> files) {
+        Map<String, OpenedFile> byPath = new HashMap<String, OpenedFile>();
+        for (OpenedFile file : files) {
+            byPath.put(file.depotPath, file);
+        }
+        Set<String> placed = new HashSet<String>();
+        List<List<OpenedFile>> parts = new ArrayList<List<OpenedFile>>();
+        List<OpenedFile> part = new ArrayList<OpenedFile>();
+        long bytes = 0;
+        for (OpenedFile file : files) {
+            if (!placed.add(file.depotPath)) {
+                continue;
+            }
+            List<OpenedFile> unit = new ArrayList<OpenedFile>(2);
+            unit.add(file);
+            long unitBytes = file.size;
+            OpenedFile partner = (file.movedPath != null) ? byPath
+                    .get(file.movedPath) : null;
+            if (partner != null && placed.add(partner.depotPath)) {
+                unit.add(partner);
+                unitBytes += partner.size;
+            }
+            if (!part.isEmpty()
+                    && ((splitMaxFiles > 0 && part.size() + unit.size() > splitMaxFiles) || (splitMaxBytes > 0 && bytes
+                            + unitBytes > splitMaxBytes))) {
+                parts.add(part);
+                part = new ArrayList<OpenedFile>();
+                bytes = 0;
+            }
+            part.addAll(unit);
+            bytes += unitBytes;
+        }
+        if (!part.isEmpty()) {
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * Reopen files in a changelist, in batches.
+     *
+     * @param files
+     *            the files
+     * @param changelistId
+     *            the changelist id
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private void reopenFiles(List<OpenedFile> files, int changelistId)
+            throws P4JavaException {
+        ReopenFilesOptions options = new ReopenFilesOptions(changelistId, null);
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        for (int start = 0; start < files.size(); start += size) {
+            List<String> paths = new ArrayList<String>();
+            for (OpenedFile file : files.subList(start,
+                    Math.min(start + size, files.size()))) {
+                paths.add(file.depotPath);
+            }
+            List<IFileSpec> fileSpecs = getP4Client().reopenFiles(
+                    FileSpecBuilder.makeFileSpecList(paths), options);
+            if (fileSpecs != null) {
+                for (IFileSpec fileSpec : fileSpecs) {
+                    if (fileSpec != null
+                            && fileSpec.getOpStatus() != FileSpecOpStatus.VALID) {
+                        logFileSpec(fileSpec);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Join values with commas.
+     *
+     * @param values
+     *            the values
+     * @return the joined values
+     */
+    private static String join(List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(",");
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
     /**
      * Gets the tokenized (by whitespace) job attribute.
      *
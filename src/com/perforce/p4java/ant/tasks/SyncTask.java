@@ -3,12 +3,32 @@
  */
 package com.perforce.p4java.ant.tasks;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
+import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.FileAction;
 import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.option.client.SyncOptions;
+import com.perforce.p4java.option.server.GetChangelistsOptions;
+import com.perforce.p4java.option.server.GetDirectoriesOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
 
 /**
  * Synchronize the client with its view of the depot. </p>
@@ -39,6 +59,17 @@ import com.perforce.p4java.option.client.SyncOptions;
  * has made writable. Setting the 'clobber' option in the client spec disables
  * this safety check. </p>
  * 
+ * If a "snapshot" file is specified, a have list snapshot of the client is
+ * written after the sync. When the whole client is synced to a changelist (or
+ * the head) and the snapshot records the changelist of the previous sync, only
+ * the files changed between the two changelists are synced. After a sync of
+ * only part of the client, the synced files are merged into the snapshot, and
+ * the snapshot no longer records a changelist. </p>
+ * 
+ * If a "revisionCache" directory is specified, files are copied from a local
+ * content-addressed revision cache shared by the workspaces of the machine,
+ * and only missing revisions are transferred from the server. </p>
+ * 
  * @see PerforceTask
  * @see ClientTask
  */
@@ -68,6 +99,92 @@ public class SyncTask extends ClientTask {
      */
     protected boolean serverBypass = false;
 
+    /**
+     * Number of concurrent connections used to sync the shards of the file
+     * specs. If greater than one, the sync runs in parallel mode.
+     */
+    protected int threads = 1;
+
+    /**
+     * How the file specs are split into shards in parallel mode: by
+     * "directory" or by file "count". Sharding by directory expands each
+     * "/..." wildcard one directory level using 'p4 dirs'; so does sharding by
+     * count if there are fewer file specs than threads.
+     */
+    protected String shardBy = SHARD_BY_DIRECTORY;
+
+    /**
+     * Have list snapshot file. If set, the snapshot is used to plan
+     * incremental syncs of the whole client and is rewritten after each sync.
+     */
+    protected java.io.File snapshot = null;
+
+    /**
+     * Directory of the local revision cache. If set, revisions are copied from
+     * the cache when possible and revisions transferred from the server are
+     * added to it.
+     */
+    protected java.io.File revisionCache = null;
+
+    /** Maximum size of the revision cache in megabytes. */
+    protected long revisionCacheSize = DEFAULT_REVISION_CACHE_SIZE;
+
+    /** Default maximum size of the revision cache in megabytes. */
+    public static final long DEFAULT_REVISION_CACHE_SIZE = 10240;
+
+    /** Fields requested from fstat for revisions filled from the cache. */
+    private static final String REVISION_CACHE_FIELDS = "depotFile,headRev,clientFile,headType,digest";
+
+    /** Shard the file specs by directory. */
+    public static final String SHARD_BY_DIRECTORY = "directory";
+
+    /** Shard the file specs by file count. */
+    public static final String SHARD_BY_COUNT = "count";
+
+    /**
+     * Default maximum number of file specs in a shard, used if "batchSize" is
+     * not set.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Regular expression pattern matching a path ending with the "/..."
+     * wildcard and an optional revision specifier.
+     */
+    private static final Pattern RECURSIVE_PATH_PATTERN = Pattern
+            .compile("^(.*/)\\.\\.\\.([#@].*)?$"); //$NON-NLS-1$
+
+    /**
+     * A file changed between two changelists, as reported by "p4 files".
+     */
+    private static class ChangedFile {
+
+        /** The depot path. */
+        private String depotPath;
+
+        /** The revision at the target changelist. */
+        private int revision;
+
+        /** If true, the revision is deleted. */
+        private boolean deleted;
+
+        /**
+         * Instantiates a new changed file.
+         * 
+         * @param depotPath
+         *            the depot path
+         * @param revision
+         *            the revision
+         * @param deleted
+         *            the deleted
+         */
+        ChangedFile(String depotPath, int revision, boolean deleted) {
+            this.depotPath = depotPath;
+            this.revision = revision;
+            this.deleted = deleted;
+        }
+    }
+
     /**
      * Default constructor.
      */
@@ -117,19 +234,79 @@ public class SyncTask extends ClientTask {
         ((SyncOptions) commandOptions).setServerBypass(serverBypass);
     }
 
+    /**
+     * Sets the threads.
+     * 
+     * @param threads
+     *            the new threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the shard by.
+     * 
+     * @param shardBy
+     *            the new shard by
+     */
+    public void setShardBy(String shardBy) {
+        this.shardBy = shardBy;
+    }
+
+    /**
+     * Sets the snapshot.
+     * 
+     * @param snapshot
+     *            the new snapshot
+     */
+    public void setSnapshot(java.io.File snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Sets the revision cache.
+     * 
+     * @param revisionCache
+     *            the new revision cache
+     */
+    public void setRevisionCache(java.io.File revisionCache) {
+        this.revisionCache = revisionCache;
+    }
+
+    /**
+     * Sets the revision cache size.
+     * 
+     * @param revisionCacheSize
+     *            the new revision cache size
+     */
+    public void setRevisionCacheSize(long revisionCacheSize) {
+        this.revisionCacheSize = revisionCacheSize;
+    }
+
     /**
      * Execute the Perforce sync command with file specs, changelist and
      * options. Log the returned file specs.
      * <p>
-     * Sync a Perforce client workspace against the Perforce server.
+     * Sync a Perforce client workspace against the Perforce server. If
+     * "threads" is greater than one, the file specs are split into shards
+     * which are synced concurrently over several connections. The results of
+     * the shards are merged in the order of the shards. If "snapshot" is set,
+     * the sync is planned with the have list snapshot, which is rewritten
+     * afterwards. If "revisionCache" is set, cached revisions are copied
+     * instead of being transferred.
      * 
      * @see PerforceTask#execP4Command()
      */
     protected void execP4Command() throws BuildException {
         try {
-            fileSpecs = FileSpecBuilder.makeFileSpecList(getFiles());
-            retFileSpecs = getP4Client().sync(fileSpecs,
-                    ((SyncOptions) commandOptions));
+            String[] paths = getFiles();
+            fileSpecs = FileSpecBuilder.makeFileSpecList(paths);
+            if (snapshot != null) {
+                retFileSpecs = syncWithSnapshot(paths);
+            } else {
+                retFileSpecs = sync(paths);
+            }
             logFileSpecs(retFileSpecs);
         } catch (P4JavaException e) {
             throw new BuildException(e.getLocalizedMessage(), e, getLocation());
@@ -139,4 +316,651 @@ public class SyncTask extends ClientTask {
             throw new BuildException(t.getLocalizedMessage(), t, getLocation());
         }
     }
+
+    /**
+     * Sync the file and revision specifiers, in parallel if "threads" is
+     * greater than one.
+     * 
+     * @param paths
+     *            the file and revision specifiers
+     * @return the returned file specs
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected List<IFileSpec> sync(String[] paths) throws P4JavaException {
+        fileSpecs = FileSpecBuilder.makeFileSpecList(paths);
+        SyncOptions options = (SyncOptions) commandOptions;
+        if (revisionCache != null && !options.isNoUpdate()
+                && !options.isClientBypass() && !options.isServerBypass()) {
+            return syncWithRevisionCache(paths);
+        }
+        return syncFromServer(paths);
+    }
+
+    /**
+     * Sync the file and revision specifiers from the server, in parallel if
+     * "threads" is greater than one.
+     * 
+     * @param paths
+     *            the file and revision specifiers
+     * @return the returned file specs
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<IFileSpec> syncFromServer(String[] paths)
+            throws P4JavaException {
+        if (threads > 1) {
+            return syncParallel(paths);
+        }
+        return getP4Client().sync(FileSpecBuilder.makeFileSpecList(paths),
+                ((SyncOptions) commandOptions));
+    }
+
+    /**
+     * Sync using the revision cache. A preview of the sync lists the revisions
+     * to transfer. Revisions whose local content is the depot content (see
+     * {@link FileTypes#isContentUntranslated}) and which are in the cache are
+     * copied to the workspace and synced with "-k", which only updates the
+     * have list. The other revisions are synced from the server; afterwards,
+     * the cacheable ones whose local digest matches the depot digest are
+     * added to the cache.
+     * <p>
+     * Writable files are not replaced unless the client has the "clobber"
+     * option, nor are revisions with the "+m" modifier or for a client with
+     * the "modtime" option, since their modification times are set by the
+     * server.
+     * 
+     * @param paths
+     *            the file and revision specifiers
+     * @return the returned file specs
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected List<IFileSpec> syncWithRevisionCache(String[] paths)
+            throws P4JavaException {
+        SyncOptions options = (SyncOptions) commandOptions;
+        RevisionCache cache = RevisionCache.getInstance(getProject(),
+                revisionCache, revisionCacheSize * 1024 * 1024);
+        List<IFileSpec> result = new ArrayList<IFileSpec>();
+        List<String> transfers = new ArrayList<String>();
+        List<String> others = new ArrayList<String>();
+        List<IFileSpec> preview = getP4Client().sync(
+                FileSpecBuilder.makeFileSpecList(paths),
+                new SyncOptions(options.isForceUpdate(), true, false, false));
+        if (preview != null) {
+            for (IFileSpec fileSpec : preview) {
+                if (fileSpec == null) {
+                    continue;
+                }
+                if (fileSpec.getOpStatus() != FileSpecOpStatus.VALID
+                        || fileSpec.getDepotPathString() == null) {
+                    result.add(fileSpec);
+                    continue;
+                }
+                String path = fileSpec.getDepotPathString() + "#"
+                        + fileSpec.getEndRevision();
+                FileAction action = fileSpec.getAction();
+                if (action == FileAction.ADDED || action == FileAction.UPDATED
+                        || action == FileAction.REFRESHED
+                        || action == FileAction.REPLACED) {
+                    transfers.add(path);
+                } else {
+                    others.add(path);
+                }
+            }
+        }
+        Map<String, Map<String, Object>> revisions = fetchRevisions(transfers);
+        boolean clobber = getP4Client().getOptions() != null
+                && getP4Client().getOptions().isClobber();
+        boolean allWrite = getP4Client().getOptions() != null
+                && getP4Client().getOptions().isAllWrite();
+        boolean modtime = getP4Client().getOptions() != null
+                && getP4Client().getOptions().isModtime();
+        List<String> filled = new ArrayList<String>();
+        List<Map<String, Object>> misses = new ArrayList<Map<String, Object>>();
+        for (String path : transfers) {
+            Map<String, Object> revision = revisions.get(path);
+            String fileType = (revision != null) ? (String) revision
+                    .get("headType") : null;
+            if (revision == null
+                    || revision.get("digest") == null
+                    || revision.get("clientFile") == null
+                    || modtime
+                    || FileTypes.hasModtime(fileType)
+                    || !FileTypes.isContentUntranslated(fileType,
+                            getP4Client().getLineEnd())) {
+                others.add(path);
+                continue;
+            }
+            java.io.File file = new java.io.File(revision.get("clientFile")
+                    .toString());
+            String digest = revision.get("digest").toString();
+            if ((!file.exists() || !file.canWrite() || clobber)
+                    && cache.copyTo(digest, file)) {
+                file.setExecutable(FileTypes.isExecutable(fileType), false);
+                file.setWritable(allWrite
+                        || FileTypes.isAlwaysWritable(fileType), true);
+                filled.add(path);
+            } else {
+                others.add(path);
+                misses.add(revision);
+            }
+        }
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        SyncOptions bypassOptions = new SyncOptions(options.isForceUpdate(),
+                false, true, false);
+        for (int i = 0; i < filled.size(); i += size) {
+            result.addAll(getP4Client().sync(
+                    FileSpecBuilder.makeFileSpecList(filled.subList(i,
+                            Math.min(i + size, filled.size()))), bypassOptions));
+        }
+        if (!others.isEmpty()) {
+            result.addAll(syncFromServer(others.toArray(new String[others
+                    .size()])));
+        }
+        FileDigester digester = new FileDigester();
+        for (Map<String, Object> revision : misses) {
+            java.io.File file = new java.io.File(revision.get("clientFile")
+                    .toString());
+            String digest = revision.get("digest").toString();
+            try {
+                if (file.isFile()
+                        && digest.equalsIgnoreCase(digester.digest(file, false))) {
+                    cache.put(digest, file);
+                }
+            } catch (IOException e) {
+                log(e.getLocalizedMessage(), Project.MSG_WARN);
+            }
+        }
+        log("Revision cache " + cache.getDirectory() + ": " + filled.size() //$NON-NLS-1$
+                + " file(s) copied, " + misses.size() + " file(s) transferred", //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+        return result;
+    }
+
+    /**
+     * Fetch the client file, type and digest of revisions with a streamed
+     * "p4 fstat -Ol", in batches.
+     * 
+     * @param paths
+     *            the depot paths with revisions
+     * @return the raw records by depot path with revision
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private Map<String, Map<String, Object>> fetchRevisions(List<String> paths)
+            throws P4JavaException {
+        final Map<String, Map<String, Object>> revisions = new HashMap<String, Map<String, Object>>();
+        final IOptionsServer server = getP4Server();
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        for (int i = 0; i < paths.size(); i += size) {
+            List<String> batch = paths.subList(i,
+                    Math.min(i + size, paths.size()));
+            List<String> args = new ArrayList<String>();
+            args.add("-Ol");
+            args.add("-T");
+            args.add(REVISION_CACHE_FIELDS);
+            args.addAll(batch);
+            server.execStreamingMapCommand("fstat",
+                    args.toArray(new String[args.size()]), null,
+                    new IStreamingCallback() {
+                        public boolean startResults(int key) {
+                            return true;
+                        }
+
+                        public boolean endResults(int key) {
+                            return true;
+                        }
+
+                        public boolean handleResult(
+                                Map<String, Object> record, int key)
+                                throws P4JavaException {
+                            checkError(server, record);
+                            if (record.get("depotFile") != null
+                                    && record.get("headRev") != null) {
+                                revisions.put(record.get("depotFile") + "#"
+                                        + record.get("headRev"), record);
+                            }
+                            return true;
+                        }
+                    }, 0);
+        }
+        return revisions;
+    }
+
+    /**
+     * Sync using the have list snapshot and rewrite it. If the whole client
+     * is synced to a changelist, the previous snapshot is usable and no
+     * forced update is requested, only the files changed since the changelist
+     * of the snapshot are synced, and the snapshot is updated with them. If
+     * only part of the client is synced, the synced files are merged into the
+     * snapshot, or the snapshot is deleted if it is not usable. Otherwise, the
+     * sync is done as usual and the snapshot is rebuilt from the have list.
+     * With "noUpdate" the snapshot is left untouched; after errors it is
+     * deleted, so the next sync rebuilds it.
+     * 
+     * @param paths
+     *            the file and revision specifiers
+     * @return the returned file specs
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected List<IFileSpec> syncWithSnapshot(String[] paths)
+            throws P4JavaException, IOException {
+        SyncOptions options = (SyncOptions) commandOptions;
+        String clientName = getP4Client().getName();
+        int targetChange = getTargetChange(paths);
+        if (targetChange < 0) {
+            // Partial sync; the changelist of the have list is unknown.
+            List<IFileSpec> result = sync(paths);
+            updateSnapshot(result, openSnapshot(false),
+                    getSyncedFiles(result), -1);
+            return result;
+        }
+        String[] target = { "//" + clientName + "/...@" + targetChange };
+        HaveListSnapshot previous = openSnapshot(true);
+        if (previous == null || options.isForceUpdate()
+                || targetChange < previous.getChange()) {
+            List<IFileSpec> result = sync(target);
+            updateSnapshot(result, null, null, targetChange);
+            return result;
+        }
+        List<ChangedFile> changed = planSync(previous, targetChange);
+        log("Sync plan: " + changed.size() + " file(s) changed since change " //$NON-NLS-1$
+                + previous.getChange(), Project.MSG_VERBOSE);
+        List<IFileSpec> result = new ArrayList<IFileSpec>();
+        if (!changed.isEmpty()) {
+            List<String> changedPaths = new ArrayList<String>();
+            for (ChangedFile file : changed) {
+                changedPaths.add(file.depotPath + "#" + file.revision);
+            }
+            int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+            if (threads > 1 || changedPaths.size() <= size) {
+                result = sync(changedPaths.toArray(new String[changedPaths
+                        .size()]));
+            } else {
+                for (int i = 0; i < changedPaths.size(); i += size) {
+                    List<String> batch = changedPaths.subList(i,
+                            Math.min(i + size, changedPaths.size()));
+                    result.addAll(sync(batch.toArray(new String[batch.size()])));
+                }
+            }
+        }
+        updateSnapshot(result, previous, changed, targetChange);
+        return result;
+    }
+
+    /**
+     * Gets the changelist the whole client is synced to: the changelist of a
+     * single "//client/...@change" path, or the most recent submitted
+     * changelist affecting the client if no path, "//client/..." or
+     * "//client/...#head" is given. Returns -1 for other syncs.
+     * 
+     * @param paths
+     *            the file and revision specifiers
+     * @return the target changelist, or -1
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected int getTargetChange(String[] paths) throws P4JavaException {
+        String clientPath = "//" + getP4Client().getName() + "/...";
+        if (paths != null && paths.length > 1) {
+            return -1;
+        }
+        if (paths != null && paths.length == 1
+                && !paths[0].equals(clientPath)
+                && !paths[0].equals(clientPath + "#head")) {
+            if (paths[0].startsWith(clientPath + "@")) {
+                try {
+                    return Integer.parseInt(paths[0].substring(clientPath
+                            .length() + 1));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+        List<IChangelistSummary> changes = getP4Server().getChangelists(
+                FileSpecBuilder.makeFileSpecList(clientPath),
+                new GetChangelistsOptions().setMaxMostRecent(1).setType(
+                        IChangelist.Type.SUBMITTED));
+        if (changes == null || changes.isEmpty() || changes.get(0) == null) {
+            return 0;
+        }
+        return changes.get(0).getId();
+    }
+
+    /**
+     * Open the snapshot if it is usable: it exists, belongs to the client and
+     * was written with the current client spec. For planning, it must also
+     * record the changelist it was synced to.
+     * 
+     * @param planning
+     *            if true, the snapshot must record a changelist
+     * @return the snapshot, or null
+     */
+    protected HaveListSnapshot openSnapshot(boolean planning) {
+        if (!snapshot.isFile()) {
+            return null;
+        }
+        try {
+            HaveListSnapshot previous = HaveListSnapshot.open(snapshot);
+            if (!previous.getClientName().equals(getP4Client().getName())) {
+                log("Snapshot belongs to client " + previous.getClientName(), //$NON-NLS-1$
+                        Project.MSG_VERBOSE);
+            } else if (previous.getClientUpdated() != getClientUpdated()) {
+                log("Client spec changed since the snapshot.", //$NON-NLS-1$
+                        Project.MSG_VERBOSE);
+            } else if (planning && previous.getChange() < 0) {
+                log("Snapshot has no changelist.", Project.MSG_VERBOSE); //$NON-NLS-1$
+            } else {
+                return previous;
+            }
+        } catch (IOException e) {
+            log(e.getLocalizedMessage(), Project.MSG_WARN);
+        }
+        return null;
+    }
+
+    /**
+     * Plan an incremental sync: list the files of the client changed after the
+     * changelist of the snapshot up to the target changelist, using a
+     * streamed "p4 files", and keep those whose target revision differs from
+     * the snapshot. Deleted files are kept only if the snapshot has them.
+     * 
+     * @param previous
+     *            the previous snapshot
+     * @param targetChange
+     *            the target changelist
+     * @return the changed files
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected List<ChangedFile> planSync(final HaveListSnapshot previous,
+            int targetChange) throws P4JavaException {
+        final List<ChangedFile> changed = new ArrayList<ChangedFile>();
+        if (targetChange <= previous.getChange()) {
+            return changed;
+        }
+        final IOptionsServer server = getP4Server();
+        String range = "//" + getP4Client().getName() + "/...@"
+                + (previous.getChange() + 1) + ",@" + targetChange;
+        server.execStreamingMapCommand("files", new String[] { range }, null,
+                new IStreamingCallback() {
+                    public boolean startResults(int key) {
+                        return true;
+                    }
+
+                    public boolean endResults(int key) {
+                        return true;
+                    }
+
+                    public boolean handleResult(Map<String, Object> record,
+                            int key) throws P4JavaException {
+                        checkError(server, record);
+                        Object depotFile = record.get("depotFile");
+                        Object rev = record.get("rev");
+                        if (depotFile == null || rev == null) {
+                            return true;
+                        }
+                        String action = String.valueOf(record.get("action"));
+                        boolean deleted = action.endsWith("delete")
+                                || action.equals("purge")
+                                || action.equals("archive");
+                        int revision = Integer.parseInt(rev.toString());
+                        HaveListSnapshot.Entry entry = previous
+                                .getEntry(depotFile.toString());
+                        if (deleted ? entry != null : (entry == null || entry
+                                .getRevision() != revision)) {
+                            changed.add(new ChangedFile(depotFile.toString(),
+                                    revision, deleted));
+                        }
+                        return true;
+                    }
+                }, 0);
+        return changed;
+    }
+
+    /**
+     * Gets the files synced by a sync from its returned file specs.
+     * 
+     * @param result
+     *            the returned file specs of the sync
+     * @return the synced files
+     */
+    protected List<ChangedFile> getSyncedFiles(List<IFileSpec> result) {
+        List<ChangedFile> synced = new ArrayList<ChangedFile>();
+        if (result != null) {
+            for (IFileSpec fileSpec : result) {
+                if (fileSpec != null
+                        && fileSpec.getOpStatus() == FileSpecOpStatus.VALID
+                        && fileSpec.getDepotPathString() != null) {
+                    synced.add(new ChangedFile(fileSpec.getDepotPathString(),
+                            fileSpec.getEndRevision(),
+                            fileSpec.getAction() == FileAction.DELETED));
+                }
+            }
+        }
+        return synced;
+    }
+
+    /**
+     * Rewrite the snapshot after a sync. If the synced files are known, merge
+     * their have list entries into the previous snapshot. After a sync of the
+     * whole client without a previous snapshot, rebuild it from the have list
+     * of the whole client. After a partial sync without a previous snapshot,
+     * delete it rather than scanning the whole client.
+     * 
+     * @param result
+     *            the returned file specs of the sync
+     * @param previous
+     *            the previous snapshot, or null
+     * @param changed
+     *            the synced files, or null
+     * @param change
+     *            the changelist the client was synced to, or -1
+     * @throws P4JavaException
+     *             the p4 java exception
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected void updateSnapshot(List<IFileSpec> result,
+            HaveListSnapshot previous, List<ChangedFile> changed, int change)
+            throws P4JavaException, IOException {
+        if (((SyncOptions) commandOptions).isNoUpdate()) {
+            return;
+        }
+        if (result != null) {
+            for (IFileSpec fileSpec : result) {
+                if (fileSpec != null
+                        && fileSpec.getOpStatus() == FileSpecOpStatus.ERROR) {
+                    log("Sync errors; deleting snapshot " + snapshot, //$NON-NLS-1$
+                            Project.MSG_VERBOSE);
+                    deleteSnapshot();
+                    return;
+                }
+            }
+        }
+        String clientName = getP4Client().getName();
+        if (previous == null && change < 0) {
+            log("Partial sync without a usable snapshot; deleting snapshot " //$NON-NLS-1$
+                    + snapshot, Project.MSG_VERBOSE);
+            deleteSnapshot();
+            return;
+        }
+        if (previous == null || changed == null) {
+            List<HaveListSnapshot.Entry> entries = HaveListSnapshot
+                    .fetchHaveList(getP4Server(), Arrays.asList("//"
+                            + clientName + "/...#have"));
+            HaveListSnapshot.write(snapshot, clientName, getClientUpdated(),
+                    change, entries);
+            return;
+        }
+        List<HaveListSnapshot.Entry> updates = new ArrayList<HaveListSnapshot.Entry>();
+        List<String> syncedPaths = new ArrayList<String>();
+        for (ChangedFile file : changed) {
+            // Remove all synced files first; the ones still had are re-added.
+            updates.add(new HaveListSnapshot.Entry(file.depotPath, 0, null));
+            if (!file.deleted) {
+                // The digest of the synced revision, not of the head.
+                syncedPaths.add(file.depotPath + "#have");
+            }
+        }
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        for (int i = 0; i < syncedPaths.size(); i += size) {
+            updates.addAll(HaveListSnapshot.fetchHaveList(getP4Server(),
+                    syncedPaths.subList(i, Math.min(i + size,
+                            syncedPaths.size()))));
+        }
+        // Sorting is stable, so a re-added entry follows its removal.
+        HaveListSnapshot.write(snapshot, clientName, getClientUpdated(),
+                change, HaveListSnapshot.merge(previous, updates));
+    }
+
+    /**
+     * Delete the snapshot file, if it exists.
+     * 
+     * @throws IOException
+     *             if the file can't be deleted
+     */
+    private void deleteSnapshot() throws IOException {
+        if (snapshot.exists() && !snapshot.delete()) {
+            throw new IOException("Cannot delete " + snapshot); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Gets the update time of the client spec.
+     * 
+     * @return the update time in milliseconds, or zero if unknown
+     */
+    private long getClientUpdated() {
+        Date updated = getP4Client().getUpdated();
+        return (updated != null) ? updated.getTime() : 0;
+    }
+
+    /**
+     * Sync the shards of the file and revision specifiers concurrently and
+     * merge the results in the order of the shards.
+     * 
+     * @param paths
+     *            the file and revision specifiers
+     * @return the merged file specs
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected List<IFileSpec> syncParallel(String[] paths)
+            throws P4JavaException {
+        List<List<IFileSpec>> shards = makeShards(paths);
+        log("Syncing " + shards.size() + " shard(s) with " + threads
+                + " thread(s).", Project.MSG_VERBOSE);
+        List<ServerJob<List<IFileSpec>>> jobs = new ArrayList<ServerJob<List<IFileSpec>>>();
+        for (final List<IFileSpec> shard : shards) {
+            jobs.add(new ServerJob<List<IFileSpec>>() {
+                public List<IFileSpec> run(IOptionsServer server)
+                        throws Exception {
+                    return server.getCurrentClient().sync(shard,
+                            ((SyncOptions) commandOptions));
+                }
+            });
+        }
+        List<IFileSpec> merged = new ArrayList<IFileSpec>();
+        for (List<IFileSpec> result : execParallel(jobs, threads)) {
+            if (result != null) {
+                merged.addAll(result);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Split the file and revision specifiers evenly into at least "threads"
+     * shards (if there are enough paths) of at most "batchSize" file specs.
+     * When sharding by directory, or when there are fewer paths than threads,
+     * a path ending with "/..." is expanded to its subdirectories and the
+     * files directly inside its directory. If no paths are given, the whole
+     * client workspace is sharded.
+     * 
+     * @param files
+     *            the file and revision specifiers
+     * @return the shards
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    protected List<List<IFileSpec>> makeShards(String[] files)
+            throws P4JavaException {
+        List<String> paths = new ArrayList<String>();
+        if (files == null || files.length == 0) {
+            paths.add("//" + getP4Client().getName() + "/...");
+        } else {
+            paths.addAll(Arrays.asList(files));
+        }
+        if (!SHARD_BY_DIRECTORY.equalsIgnoreCase(shardBy)
+                && !SHARD_BY_COUNT.equalsIgnoreCase(shardBy)) {
+            throw new BuildException("Unknown shardBy value: " + shardBy); //$NON-NLS-1$
+        }
+        if (SHARD_BY_DIRECTORY.equalsIgnoreCase(shardBy)
+                || paths.size() < threads) {
+            // Too few paths to keep the threads busy.
+            paths = expandDirectories(paths);
+        }
+        // Spread the paths evenly over at least "threads" shards, each of at
+        // most "batchSize" paths.
+        int size = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+        int count = Math.max((paths.size() + size - 1) / size,
+                Math.min(threads, paths.size()));
+        List<List<IFileSpec>> shards = new ArrayList<List<IFileSpec>>();
+        for (int i = 0, start = 0; i < count; i++) {
+            int end = start + (paths.size() - start) / (count - i);
+            shards.add(FileSpecBuilder.makeFileSpecList(paths.subList(start,
+                    end)));
+            start = end;
+        }
+        return shards;
+    }
+
+    /**
+     * Expand each path ending with "/..." one directory level. The path is
+     * replaced by a path for the files directly inside the directory and a
+     * recursive path for each subdirectory, keeping the revision specifier.
+     * Subdirectories with only deleted files are included ("p4 dirs -D"), so
+     * their files are removed from the workspace. Other paths are kept as
+     * they are.
+     * 
+     * @param paths
+     *            the paths
+     * @return the expanded paths
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<String> expandDirectories(List<String> paths)
+            throws P4JavaException {
+        List<String> expanded = new ArrayList<String>();
+        for (String path : paths) {
+            Matcher matcher = RECURSIVE_PATH_PATTERN.matcher(path);
+            if (!matcher.matches()) {
+                expanded.add(path);
+                continue;
+            }
+            String dir = matcher.group(1);
+            String rev = (matcher.group(2) != null) ? matcher.group(2) : "";
+            List<IFileSpec> dirs = getP4Server().getDirectories(
+                    FileSpecBuilder.makeFileSpecList(dir + "*" + rev),
+                    new GetDirectoriesOptions().setDeletedOnly(true));
+            expanded.add(dir + "*" + rev);
+            if (dirs != null) {
+                for (IFileSpec subdir : dirs) {
+                    if (subdir != null
+                            && subdir.getOpStatus() == FileSpecOpStatus.VALID
+                            && subdir.getOriginalPathString() != null) {
+                        expanded.add(subdir.getOriginalPathString() + "/..."
+                                + rev);
+                    }
+                }
+            }
+        }
+        return expanded;
+    }
 }
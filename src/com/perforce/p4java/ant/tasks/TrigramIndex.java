@@ -0,0 +1,982 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * On-disk trigram index of the text files of depot paths at a revision.
+ * </p>
+ *
+ * The index maps each trigram (three consecutive bytes of a line, with ASCII
+ * letters lower-cased) to the files containing it. A grep pattern can only
+ * match files containing all trigrams of its required literals, so the index
+ * narrows a search down to candidate files, which are then searched by the
+ * server. </p>
+ *
+ * The index is made of segments. Each segment has a file table
+ * ("segmentN.files"), sorted posting lists of file ids per trigram
+ * ("segmentN.post", memory-mapped when queried) and the ids of the files
+ * deleted since the segment was written ("segmentN.del"). An update marks the
+ * changed and removed files as deleted and writes the changed and added files
+ * to new segments; the paths, revision and segments of the index are
+ * committed last to "index.properties", along with the number of segments
+ * written by the build of the index, so the segments added by updates can be
+ * counted apart. </p>
+ *
+ * @see IndexTask
+ * @see GrepTask
+ */
+public class TrigramIndex {
+
+    /** Name of the properties file of the index. */
+    public static final String PROPERTIES_FILE = "index.properties";
+
+    /** Default maximum number of postings buffered for a segment. */
+    public static final int DEFAULT_SEGMENT_POSTINGS = 8 * 1024 * 1024;
+
+    /** Magic number of a postings file ("P4TG"). */
+    private static final int POSTINGS_MAGIC = 0x50345447;
+
+    /** Prefix of the segment files. */
+    private static final String SEGMENT_PREFIX = "segment";
+
+    /** Size of the read buffer of a trigram collector. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Number of distinct trigrams. */
+    private static final int TRIGRAMS = 1 << 24;
+
+    /** The index directory. */
+    private File dir;
+
+    /** The depot paths indexed. */
+    private List<String> paths;
+
+    /** The revision specifier the paths are indexed at. */
+    private String revision;
+
+    /** The segments. */
+    private List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Number of segments written by the build of the index; -1 until a new
+     * index is committed.
+     */
+    private int baseSegments = -1;
+
+    /** The segment and id of each live file by depot path. */
+    private Map<String, int[]> live = null;
+
+    /**
+     * A segment of the index.
+     */
+    private static class Segment {
+
+        /** The segment number. */
+        private int number;
+
+        /** The depot paths by file id. */
+        private String[] depotPaths;
+
+        /** The revisions by file id. */
+        private int[] revisions;
+
+        /** The deleted file ids. */
+        private BitSet deleted = new BitSet();
+
+        /** If true, the deleted file ids have to be written. */
+        private boolean deletedChanged = false;
+
+        /** The trigrams with postings, sorted. */
+        private int[] keys;
+
+        /** The start of the postings of each trigram; one extra at the end. */
+        private int[] starts;
+
+        /** The postings; null until the segment is queried. */
+        private IntBuffer postings;
+    }
+
+    /**
+     * Instantiates a new trigram index.
+     *
+     * @param dir
+     *            the index directory
+     * @param paths
+     *            the depot paths
+     * @param revision
+     *            the revision specifier
+     */
+    private TrigramIndex(File dir, List<String> paths, String revision) {
+        this.dir = dir;
+        this.paths = paths;
+        this.revision = revision;
+    }
+
+    /**
+     * Open the index in a directory.
+     *
+     * @param dir
+     *            the index directory
+     * @return the index, or null if there is none
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static TrigramIndex open(File dir) throws IOException {
+        File file = new File(dir, PROPERTIES_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        List<String> paths = new ArrayList<String>();
+        for (String path : properties.getProperty("paths", "").split("\n")) {
+            if (path.length() > 0) {
+                paths.add(path);
+            }
+        }
+        TrigramIndex index = new TrigramIndex(dir, paths, properties
+                .getProperty("revision", ""));
+        for (String number : properties.getProperty("segments", "").split(",")) {
+            if (number.trim().length() > 0) {
+                index.segments.add(index.readSegment(Integer.parseInt(number
+                        .trim())));
+            }
+        }
+        try {
+            index.baseSegments = Integer.parseInt(properties.getProperty(
+                    "baseSegments", "0").trim());
+        } catch (NumberFormatException e) {
+            index.baseSegments = 0;
+        }
+        return index;
+    }
+
+    /**
+     * Create an empty index in a directory, removing an existing one.
+     *
+     * @param dir
+     *            the index directory
+     * @param paths
+     *            the depot paths
+     * @return the index
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static TrigramIndex create(File dir, List<String> paths)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir); //$NON-NLS-1$
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SEGMENT_PREFIX)
+                        || file.getName().equals(PROPERTIES_FILE)) {
+                    file.delete();
+                }
+            }
+        }
+        return new TrigramIndex(dir, new ArrayList<String>(paths), "");
+    }
+
+    /**
+     * Gets the depot paths indexed.
+     *
+     * @return the paths
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Gets the revision specifier the paths are indexed at.
+     *
+     * @return the revision
+     */
+    public String getRevision() {
+        return revision;
+    }
+
+    /**
+     * Gets the number of segments.
+     *
+     * @return the segment count
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the number of segments added by updates since the index was built.
+     *
+     * @return the update segment count
+     */
+    public int getUpdateSegmentCount() {
+        return (baseSegments < 0) ? 0 : Math.max(0, segments.size()
+                - baseSegments);
+    }
+
+    /**
+     * Gets the revisions of the live files by depot path.
+     *
+     * @return the revisions
+     */
+    public Map<String, Integer> getIndexedRevisions() {
+        Map<String, Integer> revisions = new HashMap<String, Integer>();
+        for (Map.Entry<String, int[]> entry : getLive().entrySet()) {
+            Segment segment = segments.get(entry.getValue()[0]);
+            revisions.put(entry.getKey(),
+                    segment.revisions[entry.getValue()[1]]);
+        }
+        return revisions;
+    }
+
+    /**
+     * Mark a file as deleted.
+     *
+     * @param depotPath
+     *            the depot path
+     */
+    public void delete(String depotPath) {
+        int[] location = getLive().remove(depotPath);
+        if (location != null) {
+            Segment segment = segments.get(location[0]);
+            segment.deleted.set(location[1]);
+            segment.deletedChanged = true;
+        }
+    }
+
+    /**
+     * Create a writer adding files to new segments.
+     *
+     * @param maxPostings
+     *            the maximum number of postings buffered for a segment
+     * @return the segment writer
+     */
+    public SegmentWriter newSegmentWriter(int maxPostings) {
+        return new SegmentWriter(maxPostings);
+    }
+
+    /**
+     * Commit the index: write the deleted files of the segments and the
+     * properties of the index. The first commit of a new index records its
+     * segments as the segments of the build.
+     *
+     * @param newRevision
+     *            the revision specifier the paths are indexed at
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void commit(String newRevision) throws IOException {
+        StringBuilder numbers = new StringBuilder();
+        for (Segment segment : segments) {
+            if (segment.deletedChanged) {
+                writeDeleted(segment);
+            }
+            if (numbers.length() > 0) {
+                numbers.append(',');
+            }
+            numbers.append(segment.number);
+        }
+        StringBuilder joined = new StringBuilder();
+        for (String path : paths) {
+            joined.append(path).append('\n');
+        }
+        Properties properties = new Properties();
+        properties.setProperty("paths", joined.toString());
+        properties.setProperty("revision", newRevision);
+        properties.setProperty("segments", numbers.toString());
+        if (baseSegments < 0) {
+            baseSegments = segments.size();
+        }
+        properties.setProperty("baseSegments", String.valueOf(baseSegments));
+        File file = new File(dir, PROPERTIES_FILE);
+        File tmp = new File(dir, PROPERTIES_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, "Perforce trigram index"); //$NON-NLS-1$
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file); //$NON-NLS-1$
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file); //$NON-NLS-1$
+        }
+        revision = newRevision;
+    }
+
+    /**
+     * Gets the live files containing all the trigrams, as file specs with
+     * revisions ("path#rev") sorted by depot path.
+     *
+     * @param trigrams
+     *            the trigrams
+     * @return the candidate file specs
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public List<String> getCandidates(int[] trigrams) throws IOException {
+        List<String> candidates = new ArrayList<String>();
+        for (Segment segment : segments) {
+            int[] ids = intersect(segment, trigrams);
+            for (int id : ids) {
+                if (!segment.deleted.get(id)) {
+                    candidates.add(segment.depotPaths[id] + "#"
+                            + segment.revisions[id]);
+                }
+            }
+        }
+        Collections.sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * Gets the file ids of a segment containing all the trigrams.
+     *
+     * @param segment
+     *            the segment
+     * @param trigrams
+     *            the trigrams
+     * @return the sorted file ids
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private int[] intersect(Segment segment, int[] trigrams)
+            throws IOException {
+        int[] positions = new int[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            positions[i] = Arrays.binarySearch(segment.keys, trigrams[i]);
+            if (positions[i] < 0) {
+                return new int[0];
+            }
+        }
+        if (segment.postings == null) {
+            mapPostings(segment);
+        }
+        // Start with the shortest posting list.
+        int shortest = 0;
+        for (int i = 1; i < positions.length; i++) {
+            if (length(segment, positions[i]) < length(segment,
+                    positions[shortest])) {
+                shortest = i;
+            }
+        }
+        int[] result = read(segment, positions[shortest]);
+        int size = result.length;
+        for (int i = 0; i < positions.length && size > 0; i++) {
+            if (i == shortest) {
+                continue;
+            }
+            int start = segment.starts[positions[i]];
+            int end = segment.starts[positions[i] + 1];
+            int kept = 0;
+            int cursor = start;
+            for (int j = 0; j < size; j++) {
+                int id = result[j];
+                while (cursor < end && segment.postings.get(cursor) < id) {
+                    cursor++;
+                }
+                if (cursor < end && segment.postings.get(cursor) == id) {
+                    result[kept++] = id;
+                }
+            }
+            size = kept;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Gets the length of a posting list.
+     *
+     * @param segment
+     *            the segment
+     * @param position
+     *            the position of the trigram
+     * @return the length
+     */
+    private static int length(Segment segment, int position) {
+        return segment.starts[position + 1] - segment.starts[position];
+    }
+
+    /**
+     * Read a posting list.
+     *
+     * @param segment
+     *            the segment
+     * @param position
+     *            the position of the trigram
+     * @return the file ids
+     */
+    private static int[] read(Segment segment, int position) {
+        int[] ids = new int[length(segment, position)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = segment.postings.get(segment.starts[position] + i);
+        }
+        return ids;
+    }
+
+    /**
+     * Gets the live files, building the map on first use.
+     *
+     * @return the live files
+     */
+    private Map<String, int[]> getLive() {
+        if (live == null) {
+            live = new HashMap<String, int[]>();
+            for (int s = 0; s < segments.size(); s++) {
+                Segment segment = segments.get(s);
+                for (int id = 0; id < segment.depotPaths.length; id++) {
+                    if (!segment.deleted.get(id)) {
+                        live.put(segment.depotPaths[id], new int[] { s, id });
+                    }
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Gets a file of a segment.
+     *
+     * @param number
+     *            the segment number
+     * @param extension
+     *            the extension
+     * @return the file
+     */
+    private File getSegmentFile(int number, String extension) {
+        return new File(dir, SEGMENT_PREFIX + number + extension);
+    }
+
+    /**
+     * Read the file table, the deleted files and the trigram table of a
+     * segment.
+     *
+     * @param number
+     *            the segment number
+     * @return the segment
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private Segment readSegment(int number) throws IOException {
+        Segment segment = new Segment();
+        segment.number = number;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(getSegmentFile(number, ".files"))));
+        try {
+            int count = in.readInt();
+            segment.depotPaths = new String[count];
+            segment.revisions = new int[count];
+            for (int i = 0; i < count; i++) {
+                segment.depotPaths[i] = in.readUTF();
+                segment.revisions[i] = in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+        File deleted = getSegmentFile(number, ".del");
+        if (deleted.isFile()) {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(deleted)));
+            try {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    segment.deleted.set(in.readInt());
+                }
+            } finally {
+                in.close();
+            }
+        }
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                getSegmentFile(number, ".post"))));
+        try {
+            if (in.readInt() != POSTINGS_MAGIC) {
+                throw new IOException("Not a trigram postings file: " //$NON-NLS-1$
+                        + getSegmentFile(number, ".post"));
+            }
+            int keyCount = in.readInt();
+            segment.keys = new int[keyCount];
+            segment.starts = new int[keyCount + 1];
+            for (int i = 0; i < keyCount; i++) {
+                segment.keys[i] = in.readInt();
+                segment.starts[i + 1] = segment.starts[i] + in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+        return segment;
+    }
+
+    /**
+     * Memory-map the postings of a segment.
+     *
+     * @param segment
+     *            the segment
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void mapPostings(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(
+                segment.number, ".post"), "r");
+        try {
+            long offset = 8L + 8L * segment.keys.length;
+            long length = 4L * segment.starts[segment.keys.length];
+            segment.postings = file.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, offset, length)
+                    .asIntBuffer();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Write the deleted files of a segment.
+     *
+     * @param segment
+     *            the segment
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void writeDeleted(Segment segment) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getSegmentFile(segment.number, ".del"))));
+        try {
+            out.writeInt(segment.deleted.cardinality());
+            for (int id = segment.deleted.nextSetBit(0); id >= 0; id = segment.deleted
+                    .nextSetBit(id + 1)) {
+                out.writeInt(id);
+            }
+        } finally {
+            out.close();
+        }
+        segment.deletedChanged = false;
+    }
+
+    /**
+     * Writes added files to new segments. The postings of a segment are
+     * buffered as (trigram, file id) pairs, sorted and written when the
+     * buffer is full or the writer is closed.
+     */
+    public class SegmentWriter {
+
+        /** The maximum number of postings buffered. */
+        private int maxPostings;
+
+        /** The buffered (trigram, file id) pairs. */
+        private long[] pairs = new long[1024];
+
+        /** The number of buffered pairs. */
+        private int pairCount = 0;
+
+        /** The depot paths of the segment. */
+        private List<String> depotPaths = new ArrayList<String>();
+
+        /** The revisions of the segment. */
+        private List<Integer> revisions = new ArrayList<Integer>();
+
+        /**
+         * Instantiates a new segment writer.
+         *
+         * @param maxPostings
+         *            the maximum number of postings buffered
+         */
+        private SegmentWriter(int maxPostings) {
+            this.maxPostings = maxPostings;
+        }
+
+        /**
+         * Add a file with its trigrams.
+         *
+         * @param depotPath
+         *            the depot path
+         * @param rev
+         *            the revision
+         * @param trigrams
+         *            the distinct trigrams of the file
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        public void add(String depotPath, int rev, int[] trigrams)
+                throws IOException {
+            if (pairCount > 0 && pairCount + trigrams.length > maxPostings) {
+                flush();
+            }
+            int id = depotPaths.size();
+            depotPaths.add(depotPath);
+            revisions.add(rev);
+            if (pairCount + trigrams.length > pairs.length) {
+                pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2,
+                        pairCount + trigrams.length));
+            }
+            for (int trigram : trigrams) {
+                pairs[pairCount++] = ((long) trigram << 32) | id;
+            }
+        }
+
+        /**
+         * Write the buffered files to a new segment.
+         *
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        public void flush() throws IOException {
+            if (depotPaths.isEmpty()) {
+                return;
+            }
+            int number = 0;
+            for (Segment segment : segments) {
+                number = Math.max(number, segment.number + 1);
+            }
+            Arrays.sort(pairs, 0, pairCount);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(
+                            getSegmentFile(number, ".files"))));
+            try {
+                out.writeInt(depotPaths.size());
+                for (int i = 0; i < depotPaths.size(); i++) {
+                    out.writeUTF(depotPaths.get(i));
+                    out.writeInt(revisions.get(i));
+                }
+            } finally {
+                out.close();
+            }
+            int keyCount = 0;
+            for (int i = 0; i < pairCount; i++) {
+                if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32)) {
+                    keyCount++;
+                }
+            }
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getSegmentFile(number, ".post"))));
+            try {
+                out.writeInt(POSTINGS_MAGIC);
+                out.writeInt(keyCount);
+                for (int i = 0; i < pairCount;) {
+                    int key = (int) (pairs[i] >>> 32);
+                    int j = i;
+                    while (j < pairCount && (int) (pairs[j] >>> 32) == key) {
+                        j++;
+                    }
+                    out.writeInt(key);
+                    out.writeInt(j - i);
+                    i = j;
+                }
+                for (int i = 0; i < pairCount; i++) {
+                    out.writeInt((int) pairs[i]);
+                }
+            } finally {
+                out.close();
+            }
+            getSegmentFile(number, ".del").delete();
+            Segment segment = readSegment(number);
+            segments.add(segment);
+            if (live != null) {
+                for (int id = 0; id < segment.depotPaths.length; id++) {
+                    live.put(segment.depotPaths[id], new int[] {
+                            segments.size() - 1, id });
+                }
+            }
+            depotPaths.clear();
+            revisions.clear();
+            pairCount = 0;
+        }
+    }
+
+    /**
+     * Collects the distinct trigrams of file contents. A collector reuses its
+     * buffers and is not thread-safe; use one collector per thread.
+     */
+    public static class TrigramCollector {
+
+        /** The read buffer. */
+        private byte[] buffer = new byte[BUFFER_SIZE];
+
+        /** The trigrams seen in the current file. */
+        private BitSet seen = new BitSet(TRIGRAMS);
+
+        /** The distinct trigrams of the current file. */
+        private int[] keys = new int[1024];
+
+        /**
+         * Collect the distinct trigrams of a stream. Trigrams spanning a line
+         * end are skipped.
+         *
+         * @param in
+         *            the stream
+         * @return the trigrams
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        public int[] collect(InputStream in) throws IOException {
+            int count = 0;
+            int window = 0;
+            int valid = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    int b = buffer[i] & 0xFF;
+                    if (b == '\n' || b == '\r') {
+                        valid = 0;
+                        continue;
+                    }
+                    window = ((window << 8) | toLower(b)) & (TRIGRAMS - 1);
+                    if (++valid >= 3 && !seen.get(window)) {
+                        seen.set(window);
+                        if (count == keys.length) {
+                            keys = Arrays.copyOf(keys, count * 2);
+                        }
+                        keys[count++] = window;
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                seen.clear(keys[i]);
+            }
+            return Arrays.copyOf(keys, count);
+        }
+    }
+
+    /**
+     * Gets the distinct trigrams of a literal string.
+     *
+     * @param literal
+     *            the literal
+     * @param asciiOnly
+     *            if true, trigrams with non-ASCII bytes are skipped
+     * @return the trigrams
+     */
+    public static int[] getTrigrams(String literal, boolean asciiOnly) {
+        byte[] bytes;
+        try {
+            bytes = literal.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        BitSet seen = new BitSet();
+        List<Integer> trigrams = new ArrayList<Integer>();
+        for (int i = 0; i + 2 < bytes.length; i++) {
+            int b0 = bytes[i] & 0xFF;
+            int b1 = bytes[i + 1] & 0xFF;
+            int b2 = bytes[i + 2] & 0xFF;
+            if (asciiOnly && (b0 | b1 | b2) >= 0x80) {
+                continue;
+            }
+            int key = (toLower(b0) << 16) | (toLower(b1) << 8) | toLower(b2);
+            if (!seen.get(key)) {
+                seen.set(key);
+                trigrams.add(key);
+            }
+        }
+        int[] result = new int[trigrams.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = trigrams.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the trigrams every line matching a grep pattern must contain. The
+     * pattern is a basic regular expression, as searched by "p4 grep -G":
+     * "\(", "\)", "\{", "\}", "\|", "\?" and "\+" are operators, while
+     * unescaped parentheses, braces, "|", "?" and "+" are literal characters.
+     * Only literal runs that are required by the pattern are used; groups are
+     * skipped, since they may be repeated or optional, and a pattern with
+     * alternatives yields no trigrams.
+     *
+     * @param pattern
+     *            the pattern
+     * @param fixed
+     *            if true, the pattern is a fixed string
+     * @param asciiOnly
+     *            if true, trigrams with non-ASCII bytes are skipped
+     * @return the trigrams; empty if the index can't narrow the search
+     */
+    public static int[] getRequiredTrigrams(String pattern, boolean fixed,
+            boolean asciiOnly) {
+        if (fixed) {
+            return getTrigrams(pattern, asciiOnly);
+        }
+        List<String> runs = new ArrayList<String>();
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                if (++i >= pattern.length()) {
+                    endRun(runs, run);
+                    break;
+                }
+                char next = pattern.charAt(i);
+                if (next == '|') {
+                    return new int[0];
+                } else if (next == '?' || next == '{') {
+                    // The preceding character is optional.
+                    dropLast(run);
+                    endRun(runs, run);
+                    if (next == '{') {
+                        int close = pattern.indexOf("\\}", i);
+                        i = (close >= 0) ? close + 1 : pattern.length();
+                    }
+                } else if (next == '(') {
+                    // A group may be repeated or optional; skip it.
+                    endRun(runs, run);
+                    int depth = 1;
+                    while (depth > 0 && ++i < pattern.length()) {
+                        if (pattern.charAt(i) != '\\'
+                                || ++i >= pattern.length()) {
+                            continue;
+                        }
+                        char g = pattern.charAt(i);
+                        if (g == '|') {
+                            return new int[0];
+                        } else if (g == '(') {
+                            depth++;
+                        } else if (g == ')') {
+                            depth--;
+                        }
+                    }
+                } else if (next == '+' || next == ')' || next == '}'
+                        || next == '<' || next == '>' || next == '`'
+                        || next == '\'' || Character.isLetterOrDigit(next)) {
+                    // A repetition of a required character, an anchor, a
+                    // class such as \w, or a back reference.
+                    endRun(runs, run);
+                } else {
+                    run.append(next);
+                }
+            } else if (c == '*') {
+                // The preceding character is optional.
+                dropLast(run);
+                endRun(runs, run);
+            } else if (c == '[') {
+                endRun(runs, run);
+                i = getBracketEnd(pattern, i);
+            } else if (c == '.' || c == '^' || c == '$') {
+                endRun(runs, run);
+            } else {
+                run.append(c);
+            }
+        }
+        endRun(runs, run);
+        BitSet seen = new BitSet();
+        List<Integer> trigrams = new ArrayList<Integer>();
+        for (String literal : runs) {
+            for (int key : getTrigrams(literal, asciiOnly)) {
+                if (!seen.get(key)) {
+                    seen.set(key);
+                    trigrams.add(key);
+                }
+            }
+        }
+        int[] result = new int[trigrams.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = trigrams.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Remove the last character of a literal run, made optional by a
+     * quantifier.
+     *
+     * @param run
+     *            the run
+     */
+    private static void dropLast(StringBuilder run) {
+        if (run.length() > 0) {
+            run.setLength(run.length() - 1);
+        }
+    }
+
+    /**
+     * Gets the index of the "]" closing a bracket expression. A "]" first in
+     * the list (after an optional "^") is a literal, and character classes
+     * such as "[:alpha:]" are skipped.
+     *
+     * @param pattern
+     *            the pattern
+     * @param open
+     *            the index of the opening "["
+     * @return the index of the closing "]", or the pattern length
+     */
+    private static int getBracketEnd(String pattern, int open) {
+        int i = open + 1;
+        if (i < pattern.length() && pattern.charAt(i) == '^') {
+            i++;
+        }
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            i++;
+        }
+        for (; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == ']') {
+                return i;
+            }
+            if (c == '[' && i + 1 < pattern.length()) {
+                char kind = pattern.charAt(i + 1);
+                if (kind == ':' || kind == '.' || kind == '=') {
+                    int close = pattern.indexOf(kind + "]", i + 2);
+                    if (close >= 0) {
+                        i = close + 1;
+                    }
+                }
+            }
+        }
+        return pattern.length();
+    }
+
+    /**
+     * End a literal run.
+     *
+     * @param runs
+     *            the runs
+     * @param run
+     *            the current run
+     */
+    private static void endRun(List<String> runs, StringBuilder run) {
+        if (run.length() >= 3) {
+            runs.add(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    /**
+     * Lower-case an ASCII letter.
+     *
+     * @param b
+     *            the byte
+     * @return the lower-cased byte
+     */
+    private static int toLower(int b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+}
@@ -0,0 +1,395 @@
+/**
+ * Copyright (c) 2010 Perforce Software. All rights reserved.
+ */
+package com.perforce.p4java.ant.tasks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.UnknownElement;
+
+import com.perforce.p4java.core.IChangelist.Type;
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.server.GetChangelistsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Watch a Perforce counter and run nested tasks for each new submitted
+ * changelist. </p>
+ *
+ * The task polls the "change" counter, or another counter holding a
+ * changelist number (such as a review counter), over a single connection. An
+ * idle poll costs one command: for the "change" counter, the highest
+ * submitted changelist is read with "p4 changes -m1 -s submitted" instead of
+ * the counter, which already counts changelists whose submit is still in
+ * progress. When the counter advances, the submitted changelists in the new
+ * range (restricted to the file specs, if any) are listed, and the nested
+ * tasks are run once per changelist, oldest first, with the changelist number
+ * in "property". The nested tasks are configured anew for each changelist,
+ * and nested Perforce tasks use the watcher's connection. </p>
+ *
+ * The polling interval starts at "minInterval" and doubles after each idle
+ * poll up to "maxInterval"; it is reset when a new changelist is seen. A
+ * failed poll is logged and retried after the next interval, reconnecting if
+ * the connection was lost. </p>
+ *
+ * If "stateCounter" is set, the last changelist handled is saved in that
+ * counter after each run of the nested tasks, and the watcher resumes from it
+ * when restarted. Otherwise, only changelists submitted after the watcher
+ * started are handled. The watcher stops after "timeout" milliseconds or
+ * "maxRuns" runs of the nested tasks, if set. </p>
+ *
+ * @see PerforceTask
+ * @see ServerTask
+ * @see SessionTask
+ */
+public class WatchTask extends ServerTask implements TaskContainer {
+
+    /** Default minimum polling interval in milliseconds. */
+    public static final long DEFAULT_MIN_INTERVAL = 5000;
+
+    /** Default maximum polling interval in milliseconds. */
+    public static final long DEFAULT_MAX_INTERVAL = 300000;
+
+    /** Nested tasks executed for each changelist. */
+    protected List<Task> nestedTasks = Collections
+            .synchronizedList(new LinkedList<Task>());
+
+    /** The counter polled. */
+    protected String counter = "change";
+
+    /** The counter saving the last changelist handled. */
+    protected String stateCounter = null;
+
+    /** The property set to the changelist number. */
+    protected String property = "p4.change";
+
+    /** The minimum polling interval in milliseconds. */
+    protected long minInterval = DEFAULT_MIN_INTERVAL;
+
+    /** The maximum polling interval in milliseconds. */
+    protected long maxInterval = DEFAULT_MAX_INTERVAL;
+
+    /** If positive, the watcher stops after this many milliseconds. */
+    protected long timeout = 0;
+
+    /** If positive, the watcher stops after this many runs. */
+    protected int maxRuns = 0;
+
+    /** Number of runs of the nested tasks. */
+    protected int runs = 0;
+
+    /**
+     * Default constructor.
+     */
+    public WatchTask() {
+        super();
+    }
+
+    /**
+     * Add a nested task to the watcher.
+     *
+     * @param task
+     *            the task
+     * @see org.apache.tools.ant.TaskContainer#addTask(org.apache.tools.ant.Task)
+     */
+    public void addTask(Task task) {
+        nestedTasks.add(task);
+    }
+
+    /**
+     * Sets the counter.
+     *
+     * @param counter
+     *            the new counter
+     */
+    public void setCounter(String counter) {
+        this.counter = counter;
+    }
+
+    /**
+     * Sets the state counter.
+     *
+     * @param stateCounter
+     *            the new state counter
+     */
+    public void setStateCounter(String stateCounter) {
+        this.stateCounter = stateCounter;
+    }
+
+    /**
+     * Sets the property.
+     *
+     * @param property
+     *            the new property
+     */
+    public void setProperty(String property) {
+        this.property = property;
+    }
+
+    /**
+     * Sets the min interval.
+     *
+     * @param minInterval
+     *            the new min interval
+     */
+    public void setMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * Sets the max interval.
+     *
+     * @param maxInterval
+     *            the new max interval
+     */
+    public void setMaxInterval(long maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Sets the timeout.
+     *
+     * @param timeout
+     *            the new timeout
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the max runs.
+     *
+     * @param maxRuns
+     *            the new max runs
+     */
+    public void setMaxRuns(int maxRuns) {
+        this.maxRuns = maxRuns;
+    }
+
+    /**
+     * Poll the counter until the watcher stops, running the nested tasks for
+     * each new changelist.
+     *
+     * @see PerforceTask#execP4Command()
+     */
+    protected void execP4Command() throws BuildException {
+        try {
+            runs = 0;
+            long deadline = (timeout > 0) ? System.currentTimeMillis()
+                    + timeout : Long.MAX_VALUE;
+            int last = (stateCounter != null) ? readCounter(stateCounter)
+                    : readHead();
+            log("Watching counter " + counter + " from changelist " + last, //$NON-NLS-1$
+                    Project.MSG_VERBOSE);
+            long interval = Math.max(1, minInterval);
+            while (!isStopped(deadline)) {
+                int current;
+                try {
+                    current = readHead();
+                } catch (P4JavaException e) {
+                    log("Polling counter " + counter + " failed: " //$NON-NLS-1$
+                            + e.getLocalizedMessage(), Project.MSG_WARN);
+                    reconnect();
+                    current = last;
+                }
+                if (current > last) {
+                    for (int change : listChanges(last, current)) {
+                        runNestedTasks(change);
+                        // Saved at once, so a restart doesn't run it again.
+                        saveState(change);
+                        if (isStopped(deadline)) {
+                            return;
+                        }
+                    }
+                    last = current;
+                    // Also skips changelists not affecting the file specs.
+                    saveState(last);
+                    interval = Math.max(1, minInterval);
+                    continue;
+                }
+                long sleep = Math.min(interval, deadline
+                        - System.currentTimeMillis());
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+                interval = Math.min(interval * 2, Math.max(minInterval,
+                        maxInterval));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (P4JavaException e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (P4JavaError e) {
+            throw new BuildException(e.getLocalizedMessage(), e, getLocation());
+        } catch (BuildException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new BuildException(t.getLocalizedMessage(), t, getLocation());
+        }
+    }
+
+    /**
+     * Save the last changelist handled in the state counter, if set.
+     *
+     * @param change
+     *            the changelist
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private void saveState(int change) throws P4JavaException {
+        if (stateCounter != null) {
+            getP4Server().setCounter(stateCounter, String.valueOf(change),
+                    false);
+        }
+    }
+
+    /**
+     * Checks if the watcher has reached its timeout or maximum number of runs.
+     *
+     * @param deadline
+     *            the deadline
+     * @return true, if stopped
+     */
+    private boolean isStopped(long deadline) {
+        return (maxRuns > 0 && runs >= maxRuns)
+                || System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * Read the head of the watched counter: the highest submitted changelist
+     * for the "change" counter, the counter value otherwise.
+     *
+     * @return the changelist number, or 0 if none
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private int readHead() throws P4JavaException {
+        if (!"change".equals(counter)) { //$NON-NLS-1$
+            return readCounter(counter);
+        }
+        GetChangelistsOptions options = new GetChangelistsOptions();
+        options.setType(Type.SUBMITTED);
+        options.setMaxMostRecent(1);
+        List<IChangelistSummary> summaries = getP4Server().getChangelists(
+                null, options);
+        if (summaries == null || summaries.isEmpty()) {
+            return 0;
+        }
+        return summaries.get(0).getId();
+    }
+
+    /**
+     * Read a counter as a changelist number.
+     *
+     * @param name
+     *            the counter name
+     * @return the changelist number, or 0 if not set
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private int readCounter(String name) throws P4JavaException {
+        String value = getP4Server().getCounter(name);
+        if (value == null || value.trim().length() == 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BuildException("Counter " + name //$NON-NLS-1$
+                    + " is not a changelist number: " + value, e, //$NON-NLS-1$
+                    getLocation());
+        }
+    }
+
+    /**
+     * Reconnect to the server if the connection was lost.
+     */
+    private void reconnect() {
+        IOptionsServer server = getP4Server();
+        try {
+            if (!server.isConnected()) {
+                server.connect();
+            }
+        } catch (Exception e) {
+            log("Reconnecting failed: " + e.getLocalizedMessage(), //$NON-NLS-1$
+                    Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * List the submitted changelists above "from" up to "to" that affect the
+     * file specs, oldest first.
+     *
+     * @param from
+     *            the last changelist handled
+     * @param to
+     *            the current head of the counter
+     * @return the changelist numbers
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    private List<Integer> listChanges(int from, int to)
+            throws P4JavaException {
+        String[] paths = getFiles();
+        if (paths.length == 0) {
+            paths = new String[] { "//..." };
+        }
+        List<String> specs = new ArrayList<String>();
+        for (String path : paths) {
+            specs.add(path + "@" + (from + 1) + ",@" + to);
+        }
+        GetChangelistsOptions options = new GetChangelistsOptions();
+        options.setType(Type.SUBMITTED);
+        List<IChangelistSummary> summaries = getP4Server().getChangelists(
+                FileSpecBuilder.makeFileSpecList(specs), options);
+        List<Integer> changes = new ArrayList<Integer>();
+        if (summaries != null) {
+            for (IChangelistSummary summary : summaries) {
+                changes.add(summary.getId());
+            }
+        }
+        Collections.sort(changes);
+        return changes;
+    }
+
+    /**
+     * Run a fresh copy of the nested tasks for a changelist. Set the
+     * watcher's server on the nested Perforce tasks before executing them.
+     *
+     * @param change
+     *            the changelist number
+     */
+    private void runNestedTasks(int change) {
+        runs++;
+        getProject().setProperty(property, String.valueOf(change));
+        log("Running nested tasks for changelist " + change, //$NON-NLS-1$
+                Project.MSG_VERBOSE);
+        for (Task task : nestedTasks) {
+            Task run = task;
+            Object realThing = task;
+            if (task instanceof UnknownElement) {
+                // Configure a copy, so the properties are expanded again.
+                UnknownElement element = ((UnknownElement) task)
+                        .copy(getProject());
+                element.maybeConfigure();
+                run = element;
+                realThing = element.getRealThing();
+            }
+            if (realThing instanceof ServerTask) {
+                ((ServerTask) realThing).setP4Server(getP4Server());
+            }
+            run.perform();
+        }
+    }
+}